@@ -0,0 +1,178 @@
+package almonds;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.message.BasicHttpResponse;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * The objects and responses the benchmarks work on, shaped like the data of a
+ * real application: a narrow object of a few typical fields, a wide object of
+ * WIDE_FIELDS fields, and an object holding many pointers and dates. They are
+ * built deterministically, so that runs can be compared.
+ *
+ * @author js
+ */
+class BenchmarkFixtures
+{
+	static final String CLASS_NAME = "GameScore";
+	static final int WIDE_FIELDS = 100;
+	static final int POINTER_FIELDS = 20;
+	static final int PAGE_SIZE = 1000;
+
+	private static final long EPOCH = 1300000000000L;
+
+	/**
+	 * The shapes of the objects benchmarked.
+	 */
+	enum Shape
+	{
+		NARROW, WIDE, POINTERS
+	}
+
+	/**
+	 * @return An object as an application builds it before saving it, with
+	 *         its objectId and timestamps set.
+	 */
+	static ParseObject newObject(Shape shape, int index)
+	{
+		ParseObject object = new ParseObject(CLASS_NAME);
+		object.setObjectId(objectId(index));
+		object.setCreatedAt(ParseDateFormat.format(new Date(EPOCH + index * 1000L)));
+		object.setUpdatedAt(ParseDateFormat.format(new Date(EPOCH + index * 2000L)));
+
+		object.put("playerName", "Player " + index);
+		object.put("score", 1000 + index * 7);
+		object.put("cheatMode", index % 2 == 0);
+		object.put("level", "level-" + index % 50);
+
+		switch (shape)
+		{
+			case WIDE:
+				for (int i = 0; i < WIDE_FIELDS; i++)
+				{
+					switch (i % 4)
+					{
+						case 0:
+							object.put("field" + i, "value of field " + i + " for " + index);
+							break;
+						case 1:
+							object.put("field" + i, index * 31 + i);
+							break;
+						case 2:
+							object.put("field" + i, (index + i) % 3 == 0);
+							break;
+						default:
+							object.put("field" + i, Arrays.asList("a" + i, "b" + i, "c" + i));
+							break;
+					}
+				}
+				break;
+
+			case POINTERS:
+				for (int i = 0; i < POINTER_FIELDS; i++)
+				{
+					ParseObject pointee = new ParseObject("Player");
+					pointee.setObjectId(objectId(index * POINTER_FIELDS + i));
+
+					object.put("player" + i, pointee);
+					object.put("seen" + i, new Date(EPOCH + (index + i) * 60000L));
+				}
+				break;
+
+			default:
+				break;
+		}
+
+		return object;
+	}
+
+	/**
+	 * @return An object as Parse returns it from a query.
+	 */
+	static JSONObject newJson(Shape shape, int index)
+	{
+		return newObject(shape, index).toJSONObject();
+	}
+
+	/**
+	 * @return The body of a query response of PAGE_SIZE objects.
+	 */
+	static byte[] newPage(Shape shape)
+	{
+		JSONArray results = new JSONArray();
+
+		for (int i = 0; i < PAGE_SIZE; i++)
+		{
+			results.put(newJson(shape, i));
+		}
+
+		try
+		{
+			return new JSONObject().put("results", results).toString()
+					.getBytes(StandardCharsets.UTF_8);
+		}
+		catch (JSONException e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @return A response whose body is the given bytes, as ParseCommand hands
+	 *         it to the operations.
+	 */
+	static ParseResponse newResponse(byte[] body)
+	{
+		HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+		response.setEntity(new ByteArrayEntity(body, ContentType.APPLICATION_JSON));
+
+		return new ParseResponse(response);
+	}
+
+	/**
+	 * @return A query with the constraints of a typical screen of an
+	 *         application.
+	 */
+	static ParseQuery newQuery()
+	{
+		List<String> levels = new ArrayList<String>();
+
+		for (int i = 0; i < 20; i++)
+		{
+			levels.add("level-" + i);
+		}
+
+		ParseQuery query = new ParseQuery(CLASS_NAME)
+				.whereEqualTo("cheatMode", false)
+				.whereGreaterThan("score", 1000)
+				.whereLessThanOrEqualTo("score", 5000)
+				.whereContainedIn("level", levels)
+				.whereStartsWith("playerName", "Player 1")
+				.whereGreaterThanOrEqualTo("updatedAt", new Date(EPOCH))
+				.include("player0")
+				.selectKeys(Arrays.asList("playerName", "score", "level"));
+
+		query.orderByDescending("score");
+		query.addAscendingOrder("playerName");
+		query.setLimit(100);
+		query.setSkip(200);
+
+		return query;
+	}
+
+	private static String objectId(int index)
+	{
+		return String.format("%010d", index);
+	}
+}
@@ -0,0 +1,71 @@
+package almonds;
+
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encoding of a ParseObject into the body of a save, and decoding of an
+ * object returned by Parse.
+ *
+ * @author js
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ParseObjectBenchmark
+{
+	@Param({"NARROW", "WIDE", "POINTERS"})
+	public String shape;
+
+	private ParseObject mObject;
+	private JSONObject mJson;
+
+	@Setup
+	public void setUp()
+	{
+		mObject = BenchmarkFixtures.newObject(BenchmarkFixtures.Shape.valueOf(shape), 1);
+		mJson = BenchmarkFixtures.newJson(BenchmarkFixtures.Shape.valueOf(shape), 1);
+	}
+
+	/**
+	 * ParseObject.toJSONObject(), as done for the body of save().
+	 */
+	@Benchmark
+	public JSONObject toJSONObject()
+	{
+		return mObject.toJSONObject();
+	}
+
+	/**
+	 * The full body of save(): the object encoded and written as a string.
+	 */
+	@Benchmark
+	public String toRequestBody()
+	{
+		return mObject.toJSONObject().toString();
+	}
+
+	/**
+	 * The ParseObject(String, JSONObject) constructor, as used by get().
+	 */
+	@Benchmark
+	public ParseObject decode()
+	{
+		return new ParseObject(BenchmarkFixtures.CLASS_NAME, mJson);
+	}
+}
@@ -0,0 +1,44 @@
+package almonds;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONObject;
+import org.openjdk.jol.info.GraphLayout;
+
+/**
+ * Measures the heap retained per decoded ParseObject, as held by an
+ * application that keeps many rows of one class in memory. For each shape of
+ * BenchmarkFixtures, ROWS objects are decoded as ParseQuery decodes them and
+ * the whole graph reachable from them is measured with JOL, so that state
+ * shared between the rows is counted once:
+ *
+ *   java -cp benchmarks/target/benchmarks.jar almonds.ParseObjectFootprint
+ *
+ * @author js
+ */
+public class ParseObjectFootprint
+{
+	static final int ROWS = 5000;
+
+	public static void main(String[] args)
+	{
+		System.out.println(String.format("%-10s %12s %14s", "shape", "bytes/row", "objects/row"));
+
+		for (BenchmarkFixtures.Shape shape : BenchmarkFixtures.Shape.values())
+		{
+			List<ParseObject> rows = new ArrayList<ParseObject>(ROWS);
+
+			for (int i = 0; i < ROWS; i++)
+			{
+				JSONObject json = BenchmarkFixtures.newJson(shape, i);
+				rows.add(new ParseObject(BenchmarkFixtures.CLASS_NAME, json));
+			}
+
+			GraphLayout layout = GraphLayout.parseInstance(rows);
+
+			System.out.println(String.format("%-10s %12.1f %14.1f", shape,
+					(double) layout.totalSize() / ROWS, (double) layout.totalCount() / ROWS));
+		}
+	}
+}
@@ -0,0 +1,58 @@
+package almonds;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encoding of the constraints of a ParseQuery into the URL of a find. The
+ * URL is read through getCacheKey(), which is the class name followed by
+ * getURLConstraints().
+ *
+ * @author js
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ParseQueryBenchmark
+{
+	private ParseQuery mQuery;
+
+	@Setup
+	public void setUp()
+	{
+		mQuery = BenchmarkFixtures.newQuery();
+	}
+
+	/**
+	 * A query built and encoded once, as for a single find().
+	 */
+	@Benchmark
+	public String encodeNewQuery()
+	{
+		return BenchmarkFixtures.newQuery().getCacheKey();
+	}
+
+	/**
+	 * A query encoded again without changes, as for each page of an
+	 * iteration or each lookup in the cache; its where constraints are
+	 * already compiled.
+	 */
+	@Benchmark
+	public String encodeUnchangedQuery()
+	{
+		return mQuery.getCacheKey();
+	}
+}
@@ -0,0 +1,74 @@
+package almonds;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Decoding of a query response of BenchmarkFixtures.PAGE_SIZE objects, the
+ * largest page Parse returns.
+ *
+ * @author js
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ParseResponseBenchmark
+{
+	@Param({"NARROW", "WIDE", "POINTERS"})
+	public String shape;
+
+	private byte[] mPage;
+
+	@Setup
+	public void setUp()
+	{
+		mPage = BenchmarkFixtures.newPage(BenchmarkFixtures.Shape.valueOf(shape));
+	}
+
+	/**
+	 * ParseResponse.getJsonObject(): the whole page parsed into one
+	 * JSONObject.
+	 */
+	@Benchmark
+	public JSONObject getJsonObject()
+	{
+		return BenchmarkFixtures.newResponse(mPage).getJsonObject();
+	}
+
+	/**
+	 * The page decoded into ParseObjects as find() does, streaming the
+	 * results through a ParseResultReader.
+	 */
+	@Benchmark
+	public List<ParseObject> readResults() throws Exception
+	{
+		ParseResponse response = BenchmarkFixtures.newResponse(mPage);
+		ParseResultReader reader = new ParseResultReader(BenchmarkFixtures.CLASS_NAME,
+				response.getReader());
+		List<ParseObject> objects = new ArrayList<ParseObject>(BenchmarkFixtures.PAGE_SIZE);
+
+		for (ParseObject object = reader.next(); object != null; object = reader.next())
+		{
+			objects.add(object);
+		}
+
+		return objects;
+	}
+}
@@ -0,0 +1,443 @@
+package almonds;
+
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A load driver for the client. Worker threads each run a closed loop of
+ * requests, picked at random from a weighted mix of operations, against the
+ * in-process ParseStandInServer or any Parse server. After a warmup, the
+ * throughput and latency percentiles of each operation are measured and
+ * reported, with the errors by code and the client's own metrics.
+ *
+ * The operations work on GameScore objects: GET, UPDATE and FIND on objects
+ * seeded before the run, COUNT on the whole class, SAVE and BATCH (saveAll
+ * of BATCH_SIZE objects) on new objects, and DELETE on objects the same
+ * worker saved. Run with -help for the options.
+ *
+ * @author js
+ */
+public class ParseLoadTest
+{
+	static final String CLASS_NAME = "GameScore";
+	static final int BATCH_SIZE = 20;
+	static final int FIND_LIMIT = 20;
+	static final int MAX_SCORE = 10000;
+
+	private static final List<String> OPTIONS = Arrays.asList("-url", "-app", "-key",
+			"-threads", "-connections", "-warmup", "-duration", "-objects", "-mix", "-latency",
+			"-jitter", "-error-rate", "-rate-limit");
+
+	private static final String USAGE = String.join("\n",
+			"Options:",
+			"  -url URL          Parse server to load; by default a stand-in is started",
+			"  -app ID           application id (loadtest)",
+			"  -key KEY          REST API key (loadtest)",
+			"  -threads N        worker threads (16)",
+			"  -connections N    connection pool size (threads)",
+			"  -warmup S         seconds of warmup, not measured (5)",
+			"  -duration S       seconds measured (30)",
+			"  -objects N        objects seeded before the run (1000)",
+			"  -mix OP=W,...     weights of GET, FIND, COUNT, SAVE, UPDATE, DELETE, BATCH",
+			"                    (get=50,find=15,count=5,save=10,update=10,delete=5,batch=5)",
+			"  -latency MS       stand-in: least latency of a response (0)",
+			"  -jitter MS        stand-in: latency added at random, up to this (0)",
+			"  -error-rate R     stand-in: share of requests failed with a 500 (0)",
+			"  -rate-limit N     stand-in: requests served per second (0, no limit)");
+
+	private final Map<ParseOperation, Integer> mMix;
+	private final int mThreads;
+	private final long mWarmup;
+	private final long mDuration;
+	private final List<String> mSeeded = new ArrayList<String>();
+
+	private final Map<ParseOperation, ParseLatencyHistogram> mLatencies =
+			new EnumMap<ParseOperation, ParseLatencyHistogram>(ParseOperation.class);
+	private final Map<ParseOperation, LongAdder> mOperationErrors =
+			new EnumMap<ParseOperation, LongAdder>(ParseOperation.class);
+	private final Map<Integer, LongAdder> mErrors = new ConcurrentHashMap<Integer, LongAdder>();
+	private volatile boolean mMeasuring = false;
+	private volatile boolean mStopped = false;
+
+	/**
+	 * @param mix
+	 *            The weight of each operation in the workload.
+	 * @param threads
+	 *            The number of worker threads.
+	 * @param warmup
+	 *            The time run before measuring, in seconds.
+	 * @param duration
+	 *            The time measured, in seconds.
+	 */
+	ParseLoadTest(Map<ParseOperation, Integer> mix, int threads, long warmup, long duration)
+	{
+		mMix = mix;
+		mThreads = threads;
+		mWarmup = warmup;
+		mDuration = duration;
+
+		for (ParseOperation operation : ParseOperation.values())
+		{
+			mLatencies.put(operation, new ParseLatencyHistogram());
+			mOperationErrors.put(operation, new LongAdder());
+		}
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		Map<String, String> options = new LinkedHashMap<String, String>();
+
+		for (int i = 0; i < args.length; i++)
+		{
+			if (!OPTIONS.contains(args[i]) || i + 1 == args.length)
+			{
+				System.err.println(USAGE);
+				System.exit(args[i].equals("-help") ? 0 : 1);
+			}
+
+			options.put(args[i], args[++i]);
+		}
+
+		int threads = Integer.parseInt(options.getOrDefault("-threads", "16"));
+		int connections = Integer.parseInt(options.getOrDefault("-connections",
+				String.valueOf(threads)));
+		String url = options.get("-url");
+		ParseStandInServer server = null;
+
+		if (url == null)
+		{
+			long latency = Long.parseLong(options.getOrDefault("-latency", "0"));
+			long jitter = Long.parseLong(options.getOrDefault("-jitter", "0"));
+
+			server = new ParseStandInServer(0, null);
+			server.setLatency(latency, latency + jitter, TimeUnit.MILLISECONDS);
+			server.setErrorRate(Double.parseDouble(options.getOrDefault("-error-rate", "0")));
+			server.setRateLimit(Integer.parseInt(options.getOrDefault("-rate-limit", "0")));
+			server.start();
+			url = server.getUrl();
+		}
+
+		Parse.initialize(options.getOrDefault("-app", "loadtest"),
+				options.getOrDefault("-key", "loadtest"));
+		Parse.setParseAPIUrl(url);
+		Util.setMaxConnections(Math.max(connections, 1), Math.max(connections, 1));
+
+		ParseLoadTest test = new ParseLoadTest(parseMix(options.getOrDefault("-mix",
+				"get=50,find=15,count=5,save=10,update=10,delete=5,batch=5")), threads,
+				Long.parseLong(options.getOrDefault("-warmup", "5")),
+				Long.parseLong(options.getOrDefault("-duration", "30")));
+
+		System.out.println("Loading " + url + " with " + threads + " threads");
+		test.seed(Integer.parseInt(options.getOrDefault("-objects", "1000")));
+		test.run();
+		test.report(System.out);
+
+		if (server != null)
+		{
+			System.out.println(String.format("stand-in: %d requests, %d throttled, %d failed",
+					server.getRequestCount(), server.getThrottledCount(), server.getFailedCount()));
+			server.stop();
+		}
+
+		Util.shutdown();
+		System.exit(0);
+	}
+
+	/**
+	 * Parses a mix such as "get=50,save=10" into weights by operation.
+	 */
+	static Map<ParseOperation, Integer> parseMix(String mix)
+	{
+		Map<ParseOperation, Integer> weights =
+				new EnumMap<ParseOperation, Integer>(ParseOperation.class);
+
+		for (String entry : mix.split(","))
+		{
+			String[] parts = entry.split("=");
+
+			if (parts.length != 2)
+			{
+				throw new IllegalArgumentException("Invalid mix entry: " + entry);
+			}
+
+			int weight = Integer.parseInt(parts[1].trim());
+
+			if (weight > 0)
+			{
+				weights.put(ParseOperation.valueOf(parts[0].trim().toUpperCase()), weight);
+			}
+		}
+
+		if (weights.isEmpty())
+		{
+			throw new IllegalArgumentException("The mix has no operation.");
+		}
+
+		return weights;
+	}
+
+	/**
+	 * Saves the objects that GET, UPDATE and FIND work on.
+	 */
+	void seed(int count) throws ParseException
+	{
+		List<ParseObject> objects = new ArrayList<ParseObject>();
+
+		for (int i = 0; i < count; i++)
+		{
+			objects.add(newGameScore(ThreadLocalRandom.current()));
+		}
+
+		ParseObject.saveAll(objects);
+
+		for (ParseObject object : objects)
+		{
+			mSeeded.add(object.getObjectId());
+		}
+	}
+
+	/**
+	 * Runs the workers through the warmup and the measured time.
+	 */
+	void run() throws InterruptedException
+	{
+		CountDownLatch done = new CountDownLatch(mThreads);
+		ParseOperation[] wheel = getWheel();
+
+		for (int i = 0; i < mThreads; i++)
+		{
+			Thread worker = new Thread(() ->
+			{
+				try
+				{
+					work(wheel);
+				}
+				finally
+				{
+					done.countDown();
+				}
+			}, "almonds-loadtest-" + i);
+
+			worker.setDaemon(true);
+			worker.start();
+		}
+
+		TimeUnit.SECONDS.sleep(mWarmup);
+		Parse.getMetrics().reset();
+		mMeasuring = true;
+		TimeUnit.SECONDS.sleep(mDuration);
+		mMeasuring = false;
+		mStopped = true;
+		done.await();
+	}
+
+	/**
+	 * @return The operations repeated by weight, to pick from at random.
+	 */
+	private ParseOperation[] getWheel()
+	{
+		List<ParseOperation> wheel = new ArrayList<ParseOperation>();
+
+		for (Map.Entry<ParseOperation, Integer> entry : mMix.entrySet())
+		{
+			for (int i = 0; i < entry.getValue(); i++)
+			{
+				wheel.add(entry.getKey());
+			}
+		}
+
+		return wheel.toArray(new ParseOperation[wheel.size()]);
+	}
+
+	private void work(ParseOperation[] wheel)
+	{
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		Deque<ParseObject> saved = new ArrayDeque<ParseObject>();
+
+		while (!mStopped)
+		{
+			ParseOperation operation = wheel[random.nextInt(wheel.length)];
+
+			try
+			{
+				if (operation == ParseOperation.DELETE && saved.isEmpty())
+				{
+					// not measured: the object to delete
+					ParseObject object = newGameScore(random);
+					object.save();
+					saved.push(object);
+				}
+
+				boolean measuring = mMeasuring;
+				long start = System.nanoTime();
+				ParseException error = null;
+
+				try
+				{
+					execute(operation, random, saved);
+				}
+				catch (ParseException e)
+				{
+					error = e;
+				}
+
+				if (measuring)
+				{
+					mLatencies.get(operation).record(System.nanoTime() - start);
+
+					if (error != null)
+					{
+						mOperationErrors.get(operation).increment();
+						mErrors.computeIfAbsent(error.getCode(), code -> new LongAdder())
+								.increment();
+					}
+				}
+			}
+			catch (ParseException e)
+			{
+				// the object to delete could not be saved; counted by
+				// another operation
+			}
+		}
+	}
+
+	private void execute(ParseOperation operation, ThreadLocalRandom random,
+			Deque<ParseObject> saved) throws ParseException
+	{
+		switch (operation)
+		{
+			case GET:
+				new ParseQuery(CLASS_NAME).get(getSeeded(random));
+				break;
+
+			case FIND:
+			{
+				ParseQuery query = new ParseQuery(CLASS_NAME).whereGreaterThan("score",
+						random.nextInt(MAX_SCORE));
+				query.orderByAscending("score");
+				query.setLimit(FIND_LIMIT);
+				query.find();
+				break;
+			}
+
+			case COUNT:
+				new ParseQuery(CLASS_NAME).whereLessThan("score", random.nextInt(MAX_SCORE))
+						.count();
+				break;
+
+			case SAVE:
+			{
+				ParseObject object = newGameScore(random);
+				object.save();
+				saved.push(object);
+				break;
+			}
+
+			case UPDATE:
+			{
+				ParseObject object = new ParseObject(CLASS_NAME);
+				object.setObjectId(getSeeded(random));
+				object.put("score", random.nextInt(MAX_SCORE));
+				object.update();
+				break;
+			}
+
+			case DELETE:
+				saved.pop().delete();
+				break;
+
+			case BATCH:
+			{
+				List<ParseObject> objects = new ArrayList<ParseObject>();
+
+				for (int i = 0; i < BATCH_SIZE; i++)
+				{
+					objects.add(newGameScore(random));
+				}
+
+				ParseObject.saveAll(objects);
+				break;
+			}
+		}
+	}
+
+	private String getSeeded(ThreadLocalRandom random)
+	{
+		return mSeeded.get(random.nextInt(mSeeded.size()));
+	}
+
+	private static ParseObject newGameScore(ThreadLocalRandom random)
+	{
+		ParseObject object = new ParseObject(CLASS_NAME);
+		object.put("score", random.nextInt(MAX_SCORE));
+		object.put("playerName", "player" + random.nextInt(1000));
+		object.put("level", random.nextInt(100));
+		object.put("cheatMode", random.nextBoolean());
+
+		return object;
+	}
+
+	/**
+	 * Prints the throughput and latencies of each operation measured, the
+	 * errors and the client's metrics.
+	 */
+	void report(PrintStream out)
+	{
+		String format = "%-8s %9s %10s %8s %9s %9s %9s %9s %9s%n";
+		long total = 0;
+
+		out.printf(format, "op", "count", "ops/s", "errors", "p50 ms", "p95 ms", "p99 ms",
+				"p99.9 ms", "max ms");
+
+		for (Map.Entry<ParseOperation, ParseLatencyHistogram> entry : mLatencies.entrySet())
+		{
+			ParseLatencyHistogram latencies = entry.getValue();
+
+			if (latencies.getCount() == 0)
+			{
+				continue;
+			}
+
+			total += latencies.getCount();
+			out.printf(format, entry.getKey(), latencies.getCount(),
+					String.format("%.1f", (double) latencies.getCount() / mDuration),
+					mOperationErrors.get(entry.getKey()).sum(),
+					String.format("%.2f", latencies.getPercentile(50)),
+					String.format("%.2f", latencies.getPercentile(95)),
+					String.format("%.2f", latencies.getPercentile(99)),
+					String.format("%.2f", latencies.getPercentile(99.9)),
+					String.format("%.2f", latencies.getMax()));
+		}
+
+		long errors = 0;
+
+		for (LongAdder count : mErrors.values())
+		{
+			errors += count.sum();
+		}
+
+		out.printf(format, "total", total, String.format("%.1f", (double) total / mDuration),
+				errors, "", "", "", "", "");
+
+		for (Map.Entry<Integer, LongAdder> entry : mErrors.entrySet())
+		{
+			out.println("error " + entry.getKey() + ": " + entry.getValue().sum());
+		}
+
+		out.println();
+		out.println("client metrics:");
+		out.println(Parse.getMetrics());
+	}
+}
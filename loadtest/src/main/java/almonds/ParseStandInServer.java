@@ -0,0 +1,826 @@
+package almonds;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPInputStream;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * An in-process stand-in for the Parse REST API, so that the client can be
+ * load tested without a network or a Parse backend. Point the client at it
+ * with Parse.setParseAPIUrl(getUrl()).
+ *
+ * It keeps objects in memory and serves what the client uses: GET, POST, PUT
+ * and DELETE on /1/classes/, queries with where, order, limit, skip, keys,
+ * include and count, and POST on /1/batch. Query constraints are evaluated
+ * by ParseQueryMatcher, so they are supported as by the local datastore;
+ * others are rejected with INVALID_QUERY. Errors are answered with the
+ * status and JSON body Parse answers them with.
+ *
+ * Latency, server errors and a rate limit can be injected, and changed while
+ * the server runs, to see how the client behaves when Parse is slow, failing
+ * or throttling.
+ *
+ * @author js
+ */
+public class ParseStandInServer
+{
+	static final int DEFAULT_LIMIT = 100;
+	static final int MAX_LIMIT = 1000;
+
+	private static final String PATH_CLASSES = "/1/classes/";
+	private static final String PATH_BATCH = "/1/batch";
+
+	private static final String FIELD_OBJECT_ID = "objectId";
+	private static final String FIELD_CREATED_AT = "createdAt";
+	private static final String FIELD_UPDATED_AT = "updatedAt";
+	private static final String FIELD_TYPE = "__type";
+	private static final String FIELD_CLASS_NAME = "className";
+	private static final String FIELD_OP = "__op";
+
+	private static final String ID_CHARACTERS =
+			"0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz";
+
+	static
+	{
+		// without it, small responses wait on the delayed ACK of the client,
+		// adding about 40ms to each; read once, when the first server starts
+		if (System.getProperty("sun.net.httpserver.nodelay") == null)
+		{
+			System.setProperty("sun.net.httpserver.nodelay", "true");
+		}
+	}
+
+	private final HttpServer mServer;
+	private final ExecutorService mExecutor;
+	private final String mApplicationId;
+
+	// class name to objectId to object; objects are replaced, never changed
+	private final ConcurrentMap<String, ConcurrentSkipListMap<String, JSONObject>> mClasses =
+			new ConcurrentHashMap<String, ConcurrentSkipListMap<String, JSONObject>>();
+
+	private volatile long mMinLatency = 0;
+	private volatile long mMaxLatency = 0;
+	private volatile double mErrorRate = 0;
+	private volatile int mRateLimit = 0;
+
+	private long mWindowStart = System.nanoTime();
+	private int mWindowCount = 0;
+
+	private final LongAdder mRequests = new LongAdder();
+	private final LongAdder mThrottled = new LongAdder();
+	private final LongAdder mFailed = new LongAdder();
+
+	/**
+	 * Creates a server on the loopback interface, which serves once started.
+	 *
+	 * @param port
+	 *            The port to listen on, or 0 for any free port.
+	 * @param applicationId
+	 *            The application id requests must carry, or null to accept
+	 *            any.
+	 * @throws IOException
+	 *             If the port cannot be bound.
+	 */
+	public ParseStandInServer(int port, String applicationId) throws IOException
+	{
+		mApplicationId = applicationId;
+		mServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port),
+				0);
+		mServer.createContext("/", this::handle);
+
+		// handlers sleep for the injected latency, so each request gets a
+		// thread
+		mExecutor = Executors.newCachedThreadPool(
+				new ParseExecutors.NamedThreadFactory("almonds-standin"));
+		mServer.setExecutor(mExecutor);
+	}
+
+	public void start()
+	{
+		mServer.start();
+	}
+
+	public void stop()
+	{
+		mServer.stop(0);
+		mExecutor.shutdownNow();
+	}
+
+	/**
+	 * @return The URL to pass to Parse.setParseAPIUrl().
+	 */
+	public String getUrl()
+	{
+		InetSocketAddress address = mServer.getAddress();
+
+		return "http://" + address.getAddress().getHostAddress() + ":" + address.getPort();
+	}
+
+	/**
+	 * Delays every response by a random time between two bounds, as the
+	 * round trip to Parse would.
+	 *
+	 * @param min
+	 *            The shortest delay.
+	 * @param max
+	 *            The longest delay, at least min.
+	 * @param unit
+	 *            The unit of min and max.
+	 */
+	public void setLatency(long min, long max, TimeUnit unit)
+	{
+		if (min < 0 || max < min)
+		{
+			throw new IllegalArgumentException("The latency bounds must satisfy 0 <= min <= max.");
+		}
+
+		mMinLatency = unit.toNanos(min);
+		mMaxLatency = unit.toNanos(max);
+	}
+
+	/**
+	 * Fails a share of the requests with a 500 and INTERNAL_SERVER_ERROR,
+	 * which the client treats as transient. Defaults to 0.
+	 *
+	 * @param rate
+	 *            The share of requests to fail, between 0 and 1.
+	 */
+	public void setErrorRate(double rate)
+	{
+		if (rate < 0 || rate > 1)
+		{
+			throw new IllegalArgumentException("The error rate must be between 0 and 1.");
+		}
+
+		mErrorRate = rate;
+	}
+
+	/**
+	 * Answers the requests beyond a number per second with a 429 and
+	 * REQUEST_LIMIT_EXCEEDED, as Parse does once an application exceeds its
+	 * request limit. Defaults to 0.
+	 *
+	 * @param requestsPerSecond
+	 *            The requests served per second, or 0 for no limit.
+	 */
+	public void setRateLimit(int requestsPerSecond)
+	{
+		if (requestsPerSecond < 0)
+		{
+			throw new IllegalArgumentException("The rate limit may not be negative.");
+		}
+
+		mRateLimit = requestsPerSecond;
+	}
+
+	/**
+	 * @return The number of requests received, including those throttled or
+	 *         failed on purpose.
+	 */
+	public long getRequestCount()
+	{
+		return mRequests.sum();
+	}
+
+	/**
+	 * @return The number of requests answered with a 429 by the rate limit.
+	 */
+	public long getThrottledCount()
+	{
+		return mThrottled.sum();
+	}
+
+	/**
+	 * @return The number of requests failed by the error rate.
+	 */
+	public long getFailedCount()
+	{
+		return mFailed.sum();
+	}
+
+	/**
+	 * @return The number of objects stored in a class.
+	 */
+	public int getObjectCount(String className)
+	{
+		Map<String, JSONObject> objects = mClasses.get(className);
+
+		return objects == null ? 0 : objects.size();
+	}
+
+	/**
+	 * Drops every stored object.
+	 */
+	public void clear()
+	{
+		mClasses.clear();
+	}
+
+	private void handle(HttpExchange exchange) throws IOException
+	{
+		try
+		{
+			mRequests.increment();
+			delay();
+
+			String applicationId = exchange.getRequestHeaders().getFirst(
+					ParseCommand.HEADER_APPLICATION_ID);
+
+			if (mApplicationId != null && !mApplicationId.equals(applicationId))
+			{
+				send(exchange, 401, new JSONObject().put("error", "unauthorized"));
+				return;
+			}
+
+			if (isThrottled())
+			{
+				mThrottled.increment();
+				send(exchange, 429, toError(new ParseException(
+						ParseException.REQUEST_LIMIT_EXCEEDED, "Request limit exceeded.")));
+				return;
+			}
+
+			if (mErrorRate > 0 && ThreadLocalRandom.current().nextDouble() < mErrorRate)
+			{
+				mFailed.increment();
+				send(exchange, 500, toError(new ParseException(
+						ParseException.INTERNAL_SERVER_ERROR, "Internal server error.")));
+				return;
+			}
+
+			String method = exchange.getRequestMethod();
+			String path = exchange.getRequestURI().getRawPath();
+			Map<String, String> parameters = getParameters(exchange.getRequestURI().getRawQuery());
+			JSONObject body = readBody(exchange);
+
+			if (PATH_BATCH.equals(path) && "POST".equals(method))
+			{
+				send(exchange, 200, batch(body));
+			}
+			else
+			{
+				send(exchange, "POST".equals(method) ? 201 : 200,
+						dispatch(method, path, parameters, body));
+			}
+		}
+		catch (ParseException e)
+		{
+			send(exchange, e.getCode() == ParseException.OBJECT_NOT_FOUND ? 404 : 400,
+					toError(e));
+		}
+		catch (JSONException e)
+		{
+			send(exchange, 400, toError(new ParseException(ParseException.INVALID_JSON,
+					"Invalid JSON.")));
+		}
+		catch (InterruptedException e)
+		{
+			// the server is stopping
+			exchange.close();
+		}
+		catch (RuntimeException e)
+		{
+			send(exchange, 500, toError(new ParseException(ParseException.INTERNAL_SERVER_ERROR,
+					String.valueOf(e))));
+		}
+	}
+
+	private void delay() throws InterruptedException
+	{
+		long min = mMinLatency;
+		long max = mMaxLatency;
+
+		if (max > 0)
+		{
+			long nanos = min == max ? min : ThreadLocalRandom.current().nextLong(min, max + 1);
+			TimeUnit.NANOSECONDS.sleep(nanos);
+		}
+	}
+
+	/**
+	 * Counts a request against the rate limit, in windows of one second.
+	 *
+	 * @return Whether the request is beyond the limit.
+	 */
+	private synchronized boolean isThrottled()
+	{
+		int limit = mRateLimit;
+
+		if (limit == 0)
+		{
+			return false;
+		}
+
+		long now = System.nanoTime();
+
+		if (now - mWindowStart >= TimeUnit.SECONDS.toNanos(1))
+		{
+			mWindowStart = now;
+			mWindowCount = 0;
+		}
+
+		return ++mWindowCount > limit;
+	}
+
+	/**
+	 * Serves one request on /1/classes/, on its own or as part of a batch.
+	 *
+	 * @return The JSON to answer with.
+	 */
+	private JSONObject dispatch(String method, String path, Map<String, String> parameters,
+			JSONObject body) throws ParseException, JSONException
+	{
+		if (!path.startsWith(PATH_CLASSES))
+		{
+			throw new ParseException(ParseException.INVALID_CLASS_NAME, "Unknown path " + path
+					+ ".");
+		}
+
+		String[] parts = path.substring(PATH_CLASSES.length()).split("/");
+		String className = decode(parts[0]);
+
+		if (className.isEmpty() || parts.length > 2)
+		{
+			throw new ParseException(ParseException.INVALID_CLASS_NAME, "Unknown path " + path
+					+ ".");
+		}
+
+		if (parts.length == 1)
+		{
+			switch (method)
+			{
+				case "GET":
+					return find(className, parameters);
+				case "POST":
+					return create(className, body);
+				default:
+					break;
+			}
+		}
+		else
+		{
+			String objectId = decode(parts[1]);
+
+			switch (method)
+			{
+				case "GET":
+					return get(className, objectId, parameters);
+				case "PUT":
+					return update(className, objectId, body);
+				case "DELETE":
+					return delete(className, objectId);
+				default:
+					break;
+			}
+		}
+
+		throw new ParseException(ParseException.COMMAND_UNAVAILABLE, method + " is not supported on "
+				+ path + ".");
+	}
+
+	/**
+	 * Serves the requests of a batch in order, each with its own result.
+	 */
+	private JSONArray batch(JSONObject body) throws ParseException, JSONException
+	{
+		JSONArray requests = body == null ? null : body.optJSONArray("requests");
+
+		if (requests == null || requests.length() > ParseBatch.MAX_BATCH_SIZE)
+		{
+			throw new ParseException(ParseException.INVALID_JSON, "A batch must have between 0 and "
+					+ ParseBatch.MAX_BATCH_SIZE + " requests.");
+		}
+
+		JSONArray results = new JSONArray();
+
+		for (int i = 0; i < requests.length(); i++)
+		{
+			JSONObject request = requests.getJSONObject(i);
+
+			try
+			{
+				results.put(new JSONObject().put("success", dispatch(request.getString("method"),
+						request.getString("path"), Collections.<String, String> emptyMap(),
+						request.optJSONObject("body"))));
+			}
+			catch (ParseException e)
+			{
+				results.put(new JSONObject().put("error", toError(e)));
+			}
+		}
+
+		return results;
+	}
+
+	private JSONObject create(String className, JSONObject body) throws ParseException,
+			JSONException
+	{
+		String now = ParseDateFormat.format(new Date());
+		JSONObject object = apply(new JSONObject(), body);
+		ConcurrentSkipListMap<String, JSONObject> objects = getObjects(className);
+
+		object.put(FIELD_CREATED_AT, now);
+		object.put(FIELD_UPDATED_AT, now);
+
+		String objectId;
+
+		do
+		{
+			objectId = newObjectId();
+			object.put(FIELD_OBJECT_ID, objectId);
+		}
+		while (objects.putIfAbsent(objectId, object) != null);
+
+		return new JSONObject().put(FIELD_OBJECT_ID, objectId).put(FIELD_CREATED_AT, now);
+	}
+
+	private JSONObject update(String className, String objectId, JSONObject body)
+			throws ParseException, JSONException
+	{
+		String now = ParseDateFormat.format(new Date());
+		ConcurrentSkipListMap<String, JSONObject> objects = getObjects(className);
+
+		while (true)
+		{
+			JSONObject current = objects.get(objectId);
+
+			if (current == null)
+			{
+				throw notFound();
+			}
+
+			JSONObject updated = apply(copy(current), body);
+			updated.put(FIELD_UPDATED_AT, now);
+
+			if (objects.replace(objectId, current, updated))
+			{
+				return new JSONObject().put(FIELD_UPDATED_AT, now);
+			}
+		}
+	}
+
+	private JSONObject delete(String className, String objectId) throws ParseException
+	{
+		if (getObjects(className).remove(objectId) == null)
+		{
+			throw notFound();
+		}
+
+		return new JSONObject();
+	}
+
+	private JSONObject get(String className, String objectId, Map<String, String> parameters)
+			throws ParseException, JSONException
+	{
+		JSONObject object = getObjects(className).get(objectId);
+
+		if (object == null)
+		{
+			throw notFound();
+		}
+
+		return toResult(object, getList(parameters, "include"), getSelectedKeys(parameters));
+	}
+
+	private JSONObject find(String className, Map<String, String> parameters)
+			throws ParseException, JSONException
+	{
+		String where = parameters.get("where");
+		ParseQueryMatcher matcher = new ParseQueryMatcher(where != null ? new JSONObject(where)
+				: new JSONObject());
+		List<JSONObject> matches = new ArrayList<JSONObject>();
+
+		for (JSONObject object : getObjects(className).values())
+		{
+			if (matcher.matches(object))
+			{
+				matches.add(object);
+			}
+		}
+
+		List<String> order = getList(parameters, "order");
+
+		if (!order.isEmpty())
+		{
+			Collections.sort(matches, ParseQueryMatcher.getComparator(order));
+		}
+
+		int limit = Math.min(MAX_LIMIT, getInt(parameters, "limit", DEFAULT_LIMIT));
+		int skip = getInt(parameters, "skip", 0);
+		List<String> include = getList(parameters, "include");
+		Set<String> keys = getSelectedKeys(parameters);
+		JSONArray results = new JSONArray();
+
+		for (int i = skip; i < matches.size() && i < skip + limit; i++)
+		{
+			results.put(toResult(matches.get(i), include, keys));
+		}
+
+		JSONObject response = new JSONObject().put("results", results);
+
+		if ("1".equals(parameters.get("count")))
+		{
+			response.put("count", matches.size());
+		}
+
+		return response;
+	}
+
+	/**
+	 * Copies a stored object for a response, with its included pointers
+	 * replaced by the objects they point to and only its selected keys.
+	 */
+	private JSONObject toResult(JSONObject object, List<String> include, Set<String> keys)
+			throws JSONException
+	{
+		JSONObject result = copy(object);
+
+		for (String path : include)
+		{
+			include(result, path);
+		}
+
+		if (keys != null)
+		{
+			for (String key : JSONObject.getNames(object))
+			{
+				if (!keys.contains(key) && !FIELD_OBJECT_ID.equals(key)
+						&& !FIELD_CREATED_AT.equals(key) && !FIELD_UPDATED_AT.equals(key))
+				{
+					result.remove(key);
+				}
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * Replaces the pointer at a key of a copied object, which may be dotted
+	 * to reach into included objects, with a copy of the object it points to.
+	 */
+	private void include(JSONObject object, String path) throws JSONException
+	{
+		int dot = path.indexOf('.');
+		String key = dot < 0 ? path : path.substring(0, dot);
+		Object value = object.opt(key);
+
+		if (value instanceof JSONObject
+				&& "Pointer".equals(((JSONObject) value).optString(FIELD_TYPE)))
+		{
+			JSONObject pointer = (JSONObject) value;
+			JSONObject pointee = getObjects(pointer.optString(FIELD_CLASS_NAME)).get(
+					pointer.optString(FIELD_OBJECT_ID));
+
+			if (pointee != null)
+			{
+				value = copy(pointee).put(FIELD_TYPE, "Object").put(FIELD_CLASS_NAME,
+						pointer.optString(FIELD_CLASS_NAME));
+				object.put(key, value);
+			}
+		}
+
+		if (dot >= 0 && value instanceof JSONObject)
+		{
+			include((JSONObject) value, path.substring(dot + 1));
+		}
+	}
+
+	/**
+	 * Applies the fields of a request body to an object: values replace the
+	 * stored ones, and the Delete and Increment operations are carried out.
+	 */
+	private static JSONObject apply(JSONObject object, JSONObject body) throws ParseException,
+			JSONException
+	{
+		String[] keys = body == null ? null : JSONObject.getNames(body);
+
+		if (keys == null)
+		{
+			return object;
+		}
+
+		for (String key : keys)
+		{
+			if (FIELD_OBJECT_ID.equals(key) || FIELD_CREATED_AT.equals(key)
+					|| FIELD_UPDATED_AT.equals(key))
+			{
+				continue;
+			}
+
+			Object value = body.get(key);
+			String op = value instanceof JSONObject ? ((JSONObject) value).optString(FIELD_OP,
+					null) : null;
+
+			if (op == null)
+			{
+				object.put(key, value);
+			}
+			else if ("Delete".equals(op))
+			{
+				object.remove(key);
+			}
+			else if ("Increment".equals(op))
+			{
+				object.put(key, object.optLong(key) + ((JSONObject) value).optLong("amount"));
+			}
+			else
+			{
+				throw new ParseException(ParseException.INVALID_JSON, "The operation " + op
+						+ " is not supported.");
+			}
+		}
+
+		return object;
+	}
+
+	private ConcurrentSkipListMap<String, JSONObject> getObjects(String className)
+	{
+		ConcurrentSkipListMap<String, JSONObject> objects = mClasses.get(className);
+
+		if (objects == null)
+		{
+			objects = new ConcurrentSkipListMap<String, JSONObject>();
+			ConcurrentSkipListMap<String, JSONObject> previous = mClasses.putIfAbsent(className,
+					objects);
+
+			if (previous != null)
+			{
+				objects = previous;
+			}
+		}
+
+		return objects;
+	}
+
+	private static JSONObject copy(JSONObject object) throws JSONException
+	{
+		String[] keys = JSONObject.getNames(object);
+
+		return keys == null ? new JSONObject() : new JSONObject(object, keys);
+	}
+
+	private static String newObjectId()
+	{
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		char[] id = new char[10];
+
+		for (int i = 0; i < id.length; i++)
+		{
+			id[i] = ID_CHARACTERS.charAt(random.nextInt(ID_CHARACTERS.length()));
+		}
+
+		return new String(id);
+	}
+
+	private static ParseException notFound()
+	{
+		return new ParseException(ParseException.OBJECT_NOT_FOUND, "Object not found.");
+	}
+
+	private static JSONObject toError(ParseException e)
+	{
+		try
+		{
+			return new JSONObject().put("code", e.getCode()).put("error", e.getMessage());
+		}
+		catch (JSONException e1)
+		{
+			throw new IllegalStateException(e1);
+		}
+	}
+
+	private static Map<String, String> getParameters(String query)
+	{
+		Map<String, String> parameters = new HashMap<String, String>();
+
+		if (query == null)
+		{
+			return parameters;
+		}
+
+		for (String pair : query.split("&"))
+		{
+			int equals = pair.indexOf('=');
+
+			if (equals > 0)
+			{
+				parameters.put(decode(pair.substring(0, equals)), decode(pair.substring(equals + 1)));
+			}
+		}
+
+		return parameters;
+	}
+
+	private static List<String> getList(Map<String, String> parameters, String name)
+	{
+		String value = parameters.get(name);
+
+		return value == null || value.isEmpty() ? Collections.<String> emptyList() : Arrays
+				.asList(value.split(","));
+	}
+
+	private static Set<String> getSelectedKeys(Map<String, String> parameters)
+	{
+		return parameters.containsKey("keys") ? new HashSet<String>(getList(parameters, "keys"))
+				: null;
+	}
+
+	private static int getInt(Map<String, String> parameters, String name, int defaultValue)
+			throws ParseException
+	{
+		String value = parameters.get(name);
+
+		try
+		{
+			return value == null ? defaultValue : Math.max(0, Integer.parseInt(value));
+		}
+		catch (NumberFormatException e)
+		{
+			throw new ParseException(ParseException.INVALID_QUERY, "Invalid " + name + ": " + value
+					+ ".");
+		}
+	}
+
+	private static String decode(String s)
+	{
+		try
+		{
+			return URLDecoder.decode(s, "UTF-8");
+		}
+		catch (UnsupportedEncodingException e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @return The JSON body of a request, inflated if it is compressed, or
+	 *         null if it has none.
+	 */
+	private static JSONObject readBody(HttpExchange exchange) throws IOException, JSONException
+	{
+		InputStream in = exchange.getRequestBody();
+
+		if ("gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding")))
+		{
+			in = new GZIPInputStream(in);
+		}
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+
+		for (int n = in.read(buffer); n >= 0; n = in.read(buffer))
+		{
+			out.write(buffer, 0, n);
+		}
+
+		String body = new String(out.toByteArray(), StandardCharsets.UTF_8).trim();
+
+		return body.isEmpty() ? null : new JSONObject(body);
+	}
+
+	private static void send(HttpExchange exchange, int status, Object json) throws IOException
+	{
+		byte[] bytes = json.toString().getBytes(StandardCharsets.UTF_8);
+
+		exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+		exchange.sendResponseHeaders(status, bytes.length);
+
+		try (OutputStream out = exchange.getResponseBody())
+		{
+			out.write(bytes);
+		}
+	}
+}
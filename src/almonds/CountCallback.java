@@ -0,0 +1,6 @@
+package almonds;
+
+public abstract class CountCallback
+{
+	public abstract void done(int count, ParseException e);
+}
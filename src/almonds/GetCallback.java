@@ -3,4 +3,21 @@ package almonds;
 public abstract class GetCallback
 {
 	public abstract void done(ParseObject object);
+
+	/**
+	 * Called when the fetch completes, successfully or not. Override it to be
+	 * told of failures; by default, done(object) is called on success only.
+	 * 
+	 * @param object
+	 *            The object fetched, or null if the fetch failed.
+	 * @param e
+	 *            The failure, or null if the fetch succeeded.
+	 */
+	public void done(ParseObject object, ParseException e)
+	{
+		if (e == null)
+		{
+			done(object);
+		}
+	}
 }
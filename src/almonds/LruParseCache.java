@@ -0,0 +1,227 @@
+package almonds;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An in-memory ParseCache bounded both in size and in age. When it holds
+ * maxEntries results, storing another one evicts the least recently used;
+ * results older than the time to live are never returned.
+ * 
+ * Objects are copied on the way in and on the way out, down to their
+ * included objects and their lists, maps, byte arrays, Dates and JSON
+ * values, so changes made to objects or lists returned by a query never leak
+ * into the cache.
+ * 
+ * The results of get() are also indexed by object, so that removeObject()
+ * finds them whichever keys were included or selected.
+ * 
+ * @author js
+ */
+public class LruParseCache implements ParseCache
+{
+	public static final int DEFAULT_MAX_ENTRIES = 1000;
+	public static final long DEFAULT_TIME_TO_LIVE = 10 * 60 * 1000;
+
+	private final long mTimeToLive;
+	private final Map<String, CacheEntry> mEntries;
+
+	// the keys of the results of get() held for each object, by
+	// className/objectId; guarded by mEntries
+	private final Map<String, Set<String>> mObjectKeys = new HashMap<String, Set<String>>();
+
+	/**
+	 * Constructs a cache of DEFAULT_MAX_ENTRIES results that live for
+	 * DEFAULT_TIME_TO_LIVE milliseconds.
+	 */
+	public LruParseCache()
+	{
+		this(DEFAULT_MAX_ENTRIES, DEFAULT_TIME_TO_LIVE);
+	}
+
+	/**
+	 * @param maxEntries
+	 *            The number of query results kept.
+	 * @param timeToLive
+	 *            How long a result is returned after it was stored, in
+	 *            milliseconds.
+	 */
+	public LruParseCache(final int maxEntries, long timeToLive)
+	{
+		if (maxEntries <= 0 || timeToLive <= 0)
+		{
+			throw new IllegalArgumentException("Cache bounds must be positive.");
+		}
+
+		mTimeToLive = timeToLive;
+		mEntries = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true)
+		{
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest)
+			{
+				if (size() > maxEntries)
+				{
+					unindex(eldest.getKey());
+					return true;
+				}
+
+				return false;
+			}
+		};
+	}
+
+	public List<ParseObject> get(String key)
+	{
+		CacheEntry entry;
+
+		synchronized (mEntries)
+		{
+			entry = mEntries.get(key);
+
+			if (entry == null)
+			{
+				return null;
+			}
+
+			if (System.currentTimeMillis() - entry.mStoredAt > mTimeToLive)
+			{
+				mEntries.remove(key);
+				unindex(key);
+				return null;
+			}
+		}
+
+		return copy(entry.mObjects);
+	}
+
+	public void put(String key, List<ParseObject> objects)
+	{
+		CacheEntry entry = new CacheEntry(copy(objects), System.currentTimeMillis());
+
+		synchronized (mEntries)
+		{
+			mEntries.put(key, entry);
+
+			String object = getObject(key);
+
+			if (object != null)
+			{
+				Set<String> keys = mObjectKeys.get(object);
+
+				if (keys == null)
+				{
+					keys = new HashSet<String>(2);
+					mObjectKeys.put(object, keys);
+				}
+
+				keys.add(key);
+			}
+		}
+	}
+
+	public void remove(String key)
+	{
+		synchronized (mEntries)
+		{
+			mEntries.remove(key);
+			unindex(key);
+		}
+	}
+
+	public void removeObject(String className, String objectId)
+	{
+		synchronized (mEntries)
+		{
+			Set<String> keys = mObjectKeys.remove(ParseQuery.getCacheKey(className, objectId));
+
+			if (keys != null)
+			{
+				mEntries.keySet().removeAll(keys);
+			}
+		}
+	}
+
+	public void clear()
+	{
+		synchronized (mEntries)
+		{
+			mEntries.clear();
+			mObjectKeys.clear();
+		}
+	}
+
+	/**
+	 * @return The number of results currently held, including expired ones
+	 *         that have not been evicted yet.
+	 */
+	public int size()
+	{
+		synchronized (mEntries)
+		{
+			return mEntries.size();
+		}
+	}
+
+	/**
+	 * @return The className/objectId a key stores the result of get() for,
+	 *         or null if it stores the result of find(). Class names cannot
+	 *         hold a slash, and the constraints of find() are URL parameters,
+	 *         in which any slash follows the "?".
+	 */
+	private static String getObject(String key)
+	{
+		int slash = key.indexOf('/');
+		int query = key.indexOf('?');
+
+		if (slash < 0 || query >= 0 && query < slash)
+		{
+			return null;
+		}
+
+		return query < 0 ? key : key.substring(0, query);
+	}
+
+	/**
+	 * Forgets a key in mObjectKeys once its result is gone.
+	 */
+	private void unindex(String key)
+	{
+		String object = getObject(key);
+		Set<String> keys = object == null ? null : mObjectKeys.get(object);
+
+		if (keys != null && keys.remove(key) && keys.isEmpty())
+		{
+			mObjectKeys.remove(object);
+		}
+	}
+
+	private static List<ParseObject> copy(List<ParseObject> objects)
+	{
+		List<ParseObject> copies = new ArrayList<ParseObject>(objects.size());
+
+		for (ParseObject object : objects)
+		{
+			copies.add(object.copy());
+		}
+
+		return copies;
+	}
+
+	private static class CacheEntry
+	{
+		final List<ParseObject> mObjects;
+		final long mStoredAt;
+
+		CacheEntry(List<ParseObject> objects, long storedAt)
+		{
+			mObjects = objects;
+			mStoredAt = storedAt;
+		}
+	}
+}
@@ -1,12 +1,49 @@
 package almonds;
 
+import java.io.File;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+
 public class Parse 
 {
-	private static String mApplicationId;
-	private static String mRestAPIKey;
+	private static volatile String mApplicationId;
+	private static volatile String mRestAPIKey;
 	
-	private static final String PARSE_API_URL = "https://api.parse.com";
+	private static final String DEFAULT_PARSE_API_URL = "https://api.parse.com";
 	private static final String PARSE_API_URL_CLASSES = "/1/classes/";
+	private static final String PARSE_API_URL_BATCH = "/1/batch";
+
+	private static volatile String mParseAPIUrl = DEFAULT_PARSE_API_URL;
+	private static volatile String mParseAPIPathClasses = PARSE_API_URL_CLASSES;
+
+	// the settings are read on executor, I/O, scheduler and eventually
+	// threads without a lock, so they are volatile for changes to be seen
+
+	private static volatile int mBatchConcurrency = 4;
+
+	// null for the defaults
+	private static volatile ExecutorService mExecutor;
+	private static volatile Executor mCallbackExecutor;
+
+	private static volatile ParseCache mCache = new LruParseCache();
+	private static volatile boolean mCoalesceReads = true;
+	private static volatile int mRequestCompressionThreshold = -1;
+	private static volatile ParseRetryPolicy mRetryPolicy = new ParseRetryPolicy();
+	private static volatile ParseCircuitBreaker mCircuitBreaker = new ParseCircuitBreaker();
+	private static volatile ParseRateLimiter mRateLimiter;
+	private static final Map<String, ParseRateLimiter> mClassRateLimiters =
+			new ConcurrentHashMap<String, ParseRateLimiter>();
+
+	private static final Map<ParseOperation, ParseTransferStats> mTransferStats = newTransferStats();
+	private static final ParseMetrics mMetrics = new ParseMetrics();
+
+	private static volatile File mEventuallyDirectory;
+	private static volatile File mLocalDatastoreDirectory;
 	
 	/**
 	 * @param applicationId
@@ -17,9 +54,361 @@ public class Parse
 		mApplicationId = applicationId;
 		mRestAPIKey = restAPIKey;
 	}
+
+	/**
+	 * @param applicationId
+	 * @param restAPIKey
+	 * @param executor
+	 *            Runs the work of *InBackground operations around their
+	 *            requests, which the non-blocking client sends and receives
+	 *            on its own I/O thread: handling the responses, such as
+	 *            decoding the objects of a query, and the callbacks when
+	 *            callbackExecutor is null. If null, a bounded pool of daemon
+	 *            threads is used. Tasks are submitted to it from the I/O
+	 *            thread, which they must not run on: an executor that runs
+	 *            tasks on the submitting thread, directly or as its
+	 *            CallerRunsPolicy, fails the queries it is handed there.
+	 * @param callbackExecutor
+	 *            Runs the callbacks of background operations. If null,
+	 *            callbacks run on the thread that completed the operation.
+	 */
+	static public void initialize(String applicationId, String restAPIKey,
+			ExecutorService executor, Executor callbackExecutor)
+	{
+		initialize(applicationId, restAPIKey);
+
+		mExecutor = executor;
+		mCallbackExecutor = callbackExecutor;
+	}
 	
 	static public String getApplicationId() {return mApplicationId;}
 	static public String getRestAPIKey() {return mRestAPIKey;}
-	static public String getParseAPIUrl() {return PARSE_API_URL;}
+	static public String getParseAPIUrl() {return mParseAPIUrl;}
 	static public String getParseAPIUrlClasses() {return getParseAPIUrl() + PARSE_API_URL_CLASSES;}
+	static public String getParseAPIUrlBatch() {return getParseAPIUrl() + PARSE_API_URL_BATCH;}
+	static String getParseAPIPathClasses() {return mParseAPIPathClasses;}
+
+	/**
+	 * Sets the server that requests are sent to, such as a self-hosted Parse
+	 * server or a stand-in for tests. Defaults to https://api.parse.com.
+	 * 
+	 * @param url
+	 *            The scheme, host, port and path that precede /1/classes/ in
+	 *            the URLs of the server, such as http://localhost:1337/parse,
+	 *            or null for the default. A trailing slash is ignored.
+	 */
+	static public void setParseAPIUrl(String url)
+	{
+		if (url == null)
+		{
+			url = DEFAULT_PARSE_API_URL;
+		}
+
+		while (url.endsWith("/"))
+		{
+			url = url.substring(0, url.length() - 1);
+		}
+
+		URI uri;
+
+		try
+		{
+			uri = new URI(url);
+		}
+		catch (URISyntaxException e)
+		{
+			throw new IllegalArgumentException("Invalid Parse API URL: " + url, e);
+		}
+
+		if (!"http".equalsIgnoreCase(uri.getScheme()) && !"https".equalsIgnoreCase(uri.getScheme())
+				|| uri.getHost() == null || uri.getRawQuery() != null || uri.getRawFragment() != null)
+		{
+			throw new IllegalArgumentException("The Parse API URL must be an http or https URL "
+					+ "without query or fragment: " + url);
+		}
+
+		// the requests of a batch address objects by their path on the server
+		mParseAPIPathClasses = (uri.getRawPath() != null ? uri.getRawPath() : "")
+				+ PARSE_API_URL_CLASSES;
+		mParseAPIUrl = url;
+	}
+
+	/**
+	 * Sets how many chunks of a batch operation (see ParseObject.saveAll) may
+	 * be sent to Parse at the same time. Defaults to 4.
+	 * 
+	 * @param concurrency
+	 *            The maximum number of concurrent batch requests.
+	 */
+	static public void setBatchConcurrency(int concurrency)
+	{
+		if (concurrency <= 0)
+		{
+			throw new IllegalArgumentException("Batch concurrency must be positive.");
+		}
+
+		mBatchConcurrency = concurrency;
+	}
+
+	static public int getBatchConcurrency() {return mBatchConcurrency;}
+
+	/**
+	 * Replaces the cache consulted by queries according to their cache
+	 * policy. Defaults to an LruParseCache with its default bounds.
+	 * 
+	 * @param cache
+	 *            The cache to use.
+	 */
+	static public void setCache(ParseCache cache)
+	{
+		if (cache == null)
+		{
+			throw new IllegalArgumentException("The cache may not be null.");
+		}
+
+		mCache = cache;
+	}
+
+	static public ParseCache getCache() {return mCache;}
+
+	/**
+	 * Sets whether identical reads that are in flight at the same time share a
+	 * single request: concurrent ParseQuery.get() calls for the same object,
+	 * or find() calls with the same constraints, wait on the first one instead
+	 * of issuing their own. Defaults to true.
+	 * 
+	 * A read that joins one already in flight may not see a write made after
+	 * that read was sent; disable coalescing if this matters.
+	 * 
+	 * @param coalesceReads
+	 */
+	static public void setCoalesceReads(boolean coalesceReads)
+	{
+		mCoalesceReads = coalesceReads;
+	}
+
+	static public boolean isCoalesceReads() {return mCoalesceReads;}
+
+	/**
+	 * Sets the size from which request bodies are sent gzip compressed.
+	 * Responses are always requested compressed. Defaults to -1, which never
+	 * compresses requests, since not every Parse server accepts compressed
+	 * bodies.
+	 * 
+	 * @param bytes
+	 *            The smallest body to compress, or -1 to compress none.
+	 */
+	static public void setRequestCompressionThreshold(int bytes)
+	{
+		mRequestCompressionThreshold = bytes;
+	}
+
+	static public int getRequestCompressionThreshold() {return mRequestCompressionThreshold;}
+
+	/**
+	 * Replaces the policy deciding which failed requests are sent again.
+	 * Defaults to a ParseRetryPolicy with its default settings; use
+	 * ParseRetryPolicy.noRetries() to turn retries off.
+	 * 
+	 * @param retryPolicy
+	 */
+	static public void setRetryPolicy(ParseRetryPolicy retryPolicy)
+	{
+		if (retryPolicy == null)
+		{
+			throw new IllegalArgumentException("The retry policy may not be null.");
+		}
+
+		mRetryPolicy = retryPolicy;
+	}
+
+	static public ParseRetryPolicy getRetryPolicy() {return mRetryPolicy;}
+
+	/**
+	 * Replaces the circuit breaker that fails requests fast while Parse is
+	 * failing. Defaults to a ParseCircuitBreaker with its default settings.
+	 * 
+	 * @param circuitBreaker
+	 *            The breaker, or null to always send requests.
+	 */
+	static public void setCircuitBreaker(ParseCircuitBreaker circuitBreaker)
+	{
+		mCircuitBreaker = circuitBreaker;
+	}
+
+	static public ParseCircuitBreaker getCircuitBreaker() {return mCircuitBreaker;}
+
+	/**
+	 * Limits the rate of all requests to Parse, including batches. By default
+	 * there is no limit.
+	 * 
+	 * @param rateLimiter
+	 *            The limiter, or null to remove the limit.
+	 */
+	static public void setRateLimiter(ParseRateLimiter rateLimiter)
+	{
+		mRateLimiter = rateLimiter;
+	}
+
+	static public ParseRateLimiter getRateLimiter() {return mRateLimiter;}
+
+	/**
+	 * Limits the rate of requests on the objects of one class, in addition to
+	 * the limit set for all requests. Batches are only subject to the latter,
+	 * since they may span classes.
+	 * 
+	 * @param className
+	 * @param rateLimiter
+	 *            The limiter, or null to remove the limit.
+	 */
+	static public void setRateLimiter(String className, ParseRateLimiter rateLimiter)
+	{
+		if (rateLimiter == null)
+		{
+			mClassRateLimiters.remove(className);
+		}
+		else
+		{
+			mClassRateLimiters.put(className, rateLimiter);
+		}
+	}
+
+	static public ParseRateLimiter getRateLimiter(String className)
+	{
+		return mClassRateLimiters.get(className);
+	}
+
+	/**
+	 * Sets the directory of the log that saveEventually(), updateEventually()
+	 * and deleteEventually() write to. Writes already in the log of the
+	 * previous directory stay there until it is used again. Only one process
+	 * at a time may use a directory.
+	 * 
+	 * @param directory
+	 *            The directory, or null for the default: .almonds/eventually/
+	 *            followed by the application id, in the home directory of the
+	 *            user.
+	 */
+	static public void setEventuallyDirectory(File directory)
+	{
+		mEventuallyDirectory = directory;
+	}
+
+	static public File getEventuallyDirectory()
+	{
+		return mEventuallyDirectory != null ? mEventuallyDirectory
+				: getDefaultDirectory("eventually");
+	}
+
+	/**
+	 * Sets the directory of the local datastore that ParseObject.pin() writes
+	 * to and ParseQuery.fromLocalDatastore() reads from. Only one process at a
+	 * time may use a directory.
+	 * 
+	 * @param directory
+	 *            The directory, or null for the default: .almonds/datastore/
+	 *            followed by the application id, in the home directory of the
+	 *            user.
+	 */
+	static public void setLocalDatastoreDirectory(File directory)
+	{
+		mLocalDatastoreDirectory = directory;
+	}
+
+	static public File getLocalDatastoreDirectory()
+	{
+		return mLocalDatastoreDirectory != null ? mLocalDatastoreDirectory
+				: getDefaultDirectory("datastore");
+	}
+
+	private static File getDefaultDirectory(String name)
+	{
+		return new File(new File(new File(System.getProperty("user.home"), ".almonds"), name),
+				mApplicationId != null ? mApplicationId : "default");
+	}
+
+	/**
+	 * Opens the log of Parse.getEventuallyDirectory(), so that the writes a
+	 * previous run left in it are sent right away. Otherwise the log is only
+	 * opened by the first eventual write or getEventuallyQueueSize(). Call
+	 * this at startup, after initialize().
+	 * 
+	 * @throws ParseException
+	 *             If the log cannot be opened.
+	 */
+	static public void startEventually() throws ParseException
+	{
+		ParseEventually.getInstance();
+	}
+
+	/**
+	 * Accessor to the number of eventual writes not yet sent to Parse.
+	 * 
+	 * @return The number of writes in the log.
+	 * @throws ParseException
+	 *             If the log cannot be opened.
+	 */
+	static public int getEventuallyQueueSize() throws ParseException
+	{
+		return ParseEventually.getInstance().size();
+	}
+
+	/**
+	 * Accessor to the bytes sent and received by requests of an operation,
+	 * before and after compression.
+	 * 
+	 * @param operation
+	 * @return The live statistics of the operation.
+	 */
+	static public ParseTransferStats getTransferStats(ParseOperation operation)
+	{
+		return mTransferStats.get(operation);
+	}
+
+	/**
+	 * Accessor to the latencies, errors, rows and bytes of the operations of
+	 * the client, and to the utilization of its connections and executor.
+	 * 
+	 * @return The live metrics.
+	 */
+	static public ParseMetrics getMetrics() {return mMetrics;}
+
+	private static Map<ParseOperation, ParseTransferStats> newTransferStats()
+	{
+		Map<ParseOperation, ParseTransferStats> stats =
+				new EnumMap<ParseOperation, ParseTransferStats>(ParseOperation.class);
+
+		for (ParseOperation operation : ParseOperation.values())
+		{
+			stats.put(operation, new ParseTransferStats(operation));
+		}
+
+		return stats;
+	}
+
+	/**
+	 * Accessor to the executor that runs background operations, creating the
+	 * default one on first use.
+	 * 
+	 * @return The background executor.
+	 */
+	static public ExecutorService getExecutor()
+	{
+		ExecutorService executor = mExecutor;
+
+		return executor != null ? executor : ParseExecutors.getBackgroundExecutor();
+	}
+
+	/**
+	 * Accessor to the executor that runs the callbacks of background
+	 * operations.
+	 * 
+	 * @return The callback executor.
+	 */
+	static public Executor getCallbackExecutor()
+	{
+		Executor executor = mCallbackExecutor;
+
+		return executor != null ? executor : ParseExecutors.IMMEDIATE;
+	}
 }
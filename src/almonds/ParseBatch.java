@@ -0,0 +1,365 @@
+package almonds;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Writes many ParseObjects through the REST batch endpoint. The objects are
+ * split into chunks of at most MAX_BATCH_SIZE requests, which is the most
+ * Parse accepts in a single batch, and up to Parse.getBatchConcurrency()
+ * chunks are in flight at the same time on the non-blocking client.
+ *
+ * @author js
+ */
+class ParseBatch
+{
+	static final int MAX_BATCH_SIZE = 50;
+
+	static final String METHOD_POST = "POST";
+	static final String METHOD_PUT = "PUT";
+	static final String METHOD_DELETE = "DELETE";
+
+	// not an HTTP method: METHOD_POST for new objects, METHOD_PUT for the
+	// others
+	static final String METHOD_SAVE = "SAVE";
+
+	private static final String FIELD_REQUESTS = "requests";
+	private static final String FIELD_SUCCESS = "success";
+	private static final String FIELD_ERROR = "error";
+
+	private String[] mMethods;
+	private List<ParseObject> mObjects;
+	private ParseException[] mErrors;
+
+	// whether the error of an object is that of the request of its whole
+	// chunk rather than its own
+	private boolean[] mRequestErrors;
+
+	// positions in mObjects of the objects that need a request, and the keys
+	// sent for each object
+	private List<Integer> mPending = new ArrayList<Integer>();
+	private List<Set<String>> mKeys = new ArrayList<Set<String>>();
+
+	/**
+	 * @param method
+	 *            One of METHOD_POST, METHOD_PUT, METHOD_DELETE or METHOD_SAVE,
+	 *            applied to every object.
+	 * @param objects
+	 *            The objects to write. Objects that are put without changes
+	 *            are skipped, and objects that are put or deleted without an
+	 *            objectId fail with MISSING_OBJECT_ID without being sent.
+	 */
+	ParseBatch(String method, List<ParseObject> objects)
+	{
+		mMethods = new String[objects.size()];
+		mObjects = objects;
+		mErrors = new ParseException[objects.size()];
+		mRequestErrors = new boolean[objects.size()];
+
+		for (int i = 0; i < objects.size(); i++)
+		{
+			ParseObject object = objects.get(i);
+			Set<String> keys = object.getDirtyKeySnapshot();
+			String objectId = object.getObjectId();
+
+			mMethods[i] = !METHOD_SAVE.equals(method) ? method
+					: objectId == null ? METHOD_POST : METHOD_PUT;
+			mKeys.add(keys);
+
+			if (!METHOD_POST.equals(mMethods[i]) && objectId == null)
+			{
+				mErrors[i] = new ParseException(ParseException.MISSING_OBJECT_ID,
+						"An object without an objectId cannot be updated or deleted.");
+			}
+			else if (!METHOD_PUT.equals(mMethods[i]) || !keys.isEmpty())
+			{
+				mPending.add(i);
+			}
+		}
+	}
+
+	/**
+	 * Sends every chunk of the batch and maps the results back onto the
+	 * objects.
+	 *
+	 * @throws ParseBatchException
+	 *             If any of the objects could not be written.
+	 */
+	void execute() throws ParseException
+	{
+		int chunks = (mPending.size() + MAX_BATCH_SIZE - 1) / MAX_BATCH_SIZE;
+
+		if (chunks == 1)
+		{
+			executeChunk(0, mPending.size());
+		}
+		else if (chunks > 1)
+		{
+			executeConcurrently(chunks);
+		}
+
+		for (ParseException e : mErrors)
+		{
+			if (e != null)
+			{
+				throw new ParseBatchException("One or more objects of the batch failed.",
+						Arrays.asList(mErrors));
+			}
+		}
+	}
+
+	/**
+	 * @param index
+	 *            The position of an object in the batch.
+	 * @return Whether the object failed with the request of its chunk as a
+	 *         whole, because it could not be sent or Parse rejected or did not
+	 *         answer it, rather than with an error of its own.
+	 */
+	boolean isRequestError(int index)
+	{
+		return mRequestErrors[index];
+	}
+
+	/**
+	 * Sends the chunks on the non-blocking client, with at most
+	 * Parse.getBatchConcurrency() of them in flight at a time, and waits for
+	 * all of them.
+	 */
+	private void executeConcurrently(int chunks) throws ParseException
+	{
+		final Semaphore inFlight = new Semaphore(Parse.getBatchConcurrency());
+		List<CompletableFuture<Void>> futures = new ArrayList<CompletableFuture<Void>>();
+
+		try
+		{
+			for (int i = 0; i < chunks; i++)
+			{
+				int from = i * MAX_BATCH_SIZE;
+				int to = Math.min(from + MAX_BATCH_SIZE, mPending.size());
+
+				inFlight.acquire();
+
+				CompletableFuture<Void> future = executeChunkAsync(from, to);
+				future.whenComplete((v, t) -> inFlight.release());
+				futures.add(future);
+			}
+
+			CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()]))
+					.join();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new ParseException(ParseException.OTHER_CAUSE,
+					"Interrupted while waiting for the batch to complete.", e);
+		}
+	}
+
+	/**
+	 * Sends the pending objects in [from, to) as one batch request. Failures
+	 * are recorded per object rather than thrown.
+	 */
+	private void executeChunk(final int from, final int to)
+	{
+		try
+		{
+			ParseCommand.execute(ParseOperation.BATCH, newChunkRequest(from, to),
+					response -> handleChunkResponse(from, to, response));
+		}
+		catch (ParseException e)
+		{
+			setErrors(from, to, e);
+		}
+	}
+
+	/**
+	 * Sends the pending objects in [from, to) as executeChunk() does, without
+	 * waiting.
+	 *
+	 * @return A future completed once the results are recorded, never
+	 *         exceptionally.
+	 */
+	private CompletableFuture<Void> executeChunkAsync(final int from, final int to)
+	{
+		HttpPost httppost;
+
+		try
+		{
+			httppost = newChunkRequest(from, to);
+		}
+		catch (ParseException e)
+		{
+			setErrors(from, to, e);
+			return CompletableFuture.completedFuture(null);
+		}
+
+		return ParseCommand.executeAsync(ParseOperation.BATCH, httppost,
+				response -> handleChunkResponse(from, to, response)).handle((v, t) -> {
+			if (t != null)
+			{
+				setErrors(from, to, ParseCommand.toParseException(t));
+			}
+
+			return null;
+		});
+	}
+
+	private HttpPost newChunkRequest(int from, int to) throws ParseException
+	{
+		HttpPost httppost = new HttpPost(Parse.getParseAPIUrlBatch());
+		httppost.setEntity(new StringEntity(toJSONObject(from, to).toString(),
+				ContentType.APPLICATION_JSON));
+
+		return httppost;
+	}
+
+	private Void handleChunkResponse(int from, int to, ParseResponse response)
+			throws ParseException
+	{
+		if (response.isFailed())
+		{
+			throw response.getException();
+		}
+
+		JSONArray results = response.getJsonArray();
+
+		if (results == null || results.length() != to - from)
+		{
+			throw new ParseException(ParseException.INVALID_JSON,
+					"Invalid batch response from Parse servers.");
+		}
+
+		for (int i = from; i < to; i++)
+		{
+			applyResult(mPending.get(i), results.optJSONObject(i - from));
+		}
+
+		return null;
+	}
+
+	private JSONObject toJSONObject(int from, int to) throws ParseException
+	{
+		JSONObject jo = new JSONObject();
+		JSONArray requests = new JSONArray();
+
+		try
+		{
+			for (int i = from; i < to; i++)
+			{
+				int index = mPending.get(i);
+				String method = mMethods[index];
+				ParseObject object = mObjects.get(index);
+				JSONObject request = new JSONObject();
+
+				String path = Parse.getParseAPIPathClasses() + object.getClassName();
+
+				if (!METHOD_POST.equals(method))
+				{
+					path += "/" + object.getObjectId();
+				}
+
+				request.put("method", method);
+				request.put("path", path);
+
+				if (METHOD_POST.equals(method))
+				{
+					request.put("body", object.toJSONObject());
+				}
+				else if (METHOD_PUT.equals(method))
+				{
+					request.put("body", object.toJSONObject(mKeys.get(index)));
+				}
+
+				requests.put(request);
+			}
+
+			jo.put(FIELD_REQUESTS, requests);
+		}
+		catch (JSONException e)
+		{
+			throw new ParseException(ParseException.INVALID_JSON,
+					"Could not encode the objects of the batch.", e);
+		}
+
+		return jo;
+	}
+
+	private void applyResult(int index, JSONObject result)
+	{
+		ParseObject object = mObjects.get(index);
+
+		if (result == null)
+		{
+			mErrors[index] = new ParseException(ParseException.INVALID_JSON,
+					"Missing result in batch response.");
+			return;
+		}
+
+		JSONObject success = result.optJSONObject(FIELD_SUCCESS);
+
+		if (success != null)
+		{
+			// the object changed on the server, whatever the response holds
+			if (!METHOD_POST.equals(mMethods[index]))
+			{
+				Parse.getCache().removeObject(object.getClassName(), object.getObjectId());
+			}
+
+			try
+			{
+				if (METHOD_POST.equals(mMethods[index]))
+				{
+					object.setObjectId(success.getString("objectId"));
+					object.setCreatedAt(success.getString("createdAt"));
+					object.clearDirtyKeys(mKeys.get(index));
+				}
+				else if (METHOD_PUT.equals(mMethods[index]))
+				{
+					object.setUpdatedAt(success.getString("updatedAt"));
+					object.clearDirtyKeys(mKeys.get(index));
+				}
+			}
+			catch (JSONException e)
+			{
+				mErrors[index] = new ParseException(ParseException.INVALID_JSON,
+						"Although Parse reports object successfully written, the response was invalid.",
+						e);
+			}
+
+			return;
+		}
+
+		JSONObject error = result.optJSONObject(FIELD_ERROR);
+
+		if (error != null)
+		{
+			mErrors[index] = new ParseException(error.optInt("code", ParseException.OTHER_CAUSE),
+					error.optString("error", "Error undefined by Parse server."));
+		}
+		else
+		{
+			mErrors[index] = new ParseException(ParseException.INVALID_JSON,
+					"Invalid result in batch response.");
+		}
+	}
+
+	private void setErrors(int from, int to, ParseException e)
+	{
+		for (int i = from; i < to; i++)
+		{
+			mErrors[mPending.get(i)] = e;
+			mRequestErrors[mPending.get(i)] = true;
+		}
+	}
+}
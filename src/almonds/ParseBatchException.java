@@ -0,0 +1,35 @@
+package almonds;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Thrown by the ParseObject batch operations when one or more of the objects
+ * could not be written. The remaining objects were written successfully.
+ * 
+ * @author js
+ */
+public class ParseBatchException extends ParseException
+{
+	private static final long serialVersionUID = 1L;
+
+	private List<ParseException> mErrors;
+
+	ParseBatchException(String theMessage, List<ParseException> errors)
+	{
+		super(AGGREGATE_ERROR, theMessage);
+		mErrors = Collections.unmodifiableList(errors);
+	}
+
+	/**
+	 * Accessor to the per-object errors of the batch.
+	 * 
+	 * @return A list with one entry per object passed to the batch operation,
+	 *         in the same order. An entry is null if that object was written
+	 *         successfully.
+	 */
+	public List<ParseException> getErrors()
+	{
+		return mErrors;
+	}
+}
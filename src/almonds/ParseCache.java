@@ -0,0 +1,64 @@
+package almonds;
+
+import java.util.List;
+
+/**
+ * A store for the results of ParseQuery.get() and ParseQuery.find(), consulted
+ * according to the query's CachePolicy. Implementations must be safe for use
+ * from several threads. The default is an LruParseCache; another can be set
+ * with Parse.setCache().
+ * 
+ * @author js
+ */
+public interface ParseCache
+{
+	/**
+	 * @param key
+	 *            Identifies a query: its class name followed by either
+	 *            "/objectId" and the included or selected keys for get(), or
+	 *            its URL constraints for find().
+	 * @return The objects last stored for the key, or null if there are none
+	 *         or they have expired.
+	 */
+	List<ParseObject> get(String key);
+
+	/**
+	 * Stores the result of a query.
+	 * 
+	 * @param key
+	 *            Identifies the query.
+	 * @param objects
+	 *            The objects the query returned.
+	 */
+	void put(String key, List<ParseObject> objects);
+
+	/**
+	 * Discards the result stored for a query, if any.
+	 * 
+	 * @param key
+	 *            Identifies the query.
+	 */
+	void remove(String key);
+
+	/**
+	 * Discards the results of get() stored for an object, whichever keys were
+	 * included or selected for them, once the object has changed on the
+	 * server. The default only discards the result of a get() without
+	 * included or selected keys; implementations that can find the others
+	 * should override it.
+	 * 
+	 * @param className
+	 *            The class of the object.
+	 * @param objectId
+	 *            The objectId of the object.
+	 */
+	default void removeObject(String className, String objectId)
+	{
+		remove(ParseQuery.getCacheKey(className, objectId));
+	}
+
+	/**
+	 * Discards every stored result.
+	 */
+	void clear();
+}
@@ -0,0 +1,127 @@
+package almonds;
+
+/**
+ * Stops requests from being sent while Parse is failing. After a number of
+ * consecutive transient failures the breaker opens, and requests fail at once
+ * with CONNECTION_FAILED instead of adding load to a struggling server. Once
+ * the open time has passed, a single trial request is let through: if it
+ * succeeds the breaker closes, otherwise it opens again.
+ *
+ * @author js
+ */
+public class ParseCircuitBreaker
+{
+	public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+	public static final long DEFAULT_OPEN_TIME = 10000;
+
+	/**
+	 * The states of a circuit breaker.
+	 */
+	public enum State
+	{
+		/**
+		 * Requests are sent.
+		 */
+		CLOSED,
+
+		/**
+		 * Requests fail without being sent.
+		 */
+		OPEN,
+
+		/**
+		 * A trial request is being sent; others fail without being sent.
+		 */
+		HALF_OPEN
+	}
+
+	private final int mFailureThreshold;
+	private final long mOpenTime;
+
+	private State mState = State.CLOSED;
+	private int mConsecutiveFailures = 0;
+	// when the breaker opened, or when the trial request was let through
+	private long mSince;
+
+	/**
+	 * Constructs a breaker that opens after DEFAULT_FAILURE_THRESHOLD
+	 * consecutive failures for DEFAULT_OPEN_TIME milliseconds.
+	 */
+	public ParseCircuitBreaker()
+	{
+		this(DEFAULT_FAILURE_THRESHOLD, DEFAULT_OPEN_TIME);
+	}
+
+	/**
+	 * @param failureThreshold
+	 *            The number of consecutive transient failures that opens the
+	 *            breaker.
+	 * @param openTime
+	 *            How long the breaker stays open before a trial request, in
+	 *            milliseconds.
+	 */
+	public ParseCircuitBreaker(int failureThreshold, long openTime)
+	{
+		if (failureThreshold <= 0 || openTime <= 0)
+		{
+			throw new IllegalArgumentException("Failure threshold and open time must be positive.");
+		}
+
+		mFailureThreshold = failureThreshold;
+		mOpenTime = openTime;
+	}
+
+	public synchronized State getState()
+	{
+		return mState;
+	}
+
+	/**
+	 * Closes the breaker and forgets past failures.
+	 */
+	public synchronized void reset()
+	{
+		mState = State.CLOSED;
+		mConsecutiveFailures = 0;
+	}
+
+	/**
+	 * Decides if a request may be sent, letting a trial request through once
+	 * the breaker has been open long enough.
+	 */
+	synchronized boolean allowRequest()
+	{
+		if (mState == State.CLOSED)
+		{
+			return true;
+		}
+
+		// an open breaker lets a trial through after the open time, and so does
+		// a half open one whose trial never reported back
+		if (System.currentTimeMillis() - mSince >= mOpenTime)
+		{
+			mState = State.HALF_OPEN;
+			mSince = System.currentTimeMillis();
+			return true;
+		}
+
+		return false;
+	}
+
+	synchronized void recordSuccess()
+	{
+		mState = State.CLOSED;
+		mConsecutiveFailures = 0;
+	}
+
+	synchronized void recordFailure()
+	{
+		mConsecutiveFailures++;
+
+		if (mState == State.HALF_OPEN || mConsecutiveFailures >= mFailureThreshold)
+		{
+			mState = State.OPEN;
+			mSince = System.currentTimeMillis();
+		}
+	}
+}
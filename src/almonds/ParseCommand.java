@@ -0,0 +1,602 @@
+package almonds;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.nio.client.methods.HttpAsyncMethods;
+
+/**
+ * Executes REST requests against the Parse API. All ParseObject and ParseQuery
+ * operations go through here, so they share the pooled clients returned by
+ * Util and carry the same authentication headers.
+ *
+ * Each operation supplies a ResponseHandler that turns the ParseResponse into
+ * its result. The same handler serves the blocking execute() and the
+ * non-blocking executeAsync(), so both paths behave identically, including
+ * the compression of bodies, the statistics kept per ParseOperation and the
+ * metrics recorded in Parse.getMetrics().
+ */
+class ParseCommand
+{
+	static final String HEADER_APPLICATION_ID = "X-Parse-Application-Id";
+	static final String HEADER_REST_API_KEY = "X-Parse-REST-API-Key";
+
+	/**
+	 * Turns a response from Parse into the result of an operation.
+	 */
+	interface ResponseHandler<T>
+	{
+		T handle(ParseResponse response) throws ParseException;
+	}
+
+	/**
+	 * Adds the Parse authentication headers to the request, compresses its
+	 * body if it is large enough and executes it.
+	 *
+	 * The returned ParseResponse holds a pooled connection until it is
+	 * released, so callers must call ParseResponse.release() once they are
+	 * done with it, including when handling the response fails.
+	 *
+	 * @param operation
+	 *            The kind of request, by which statistics are kept.
+	 * @param request
+	 *            The request to execute.
+	 * @return The response, which must be released by the caller.
+	 * @throws IOException
+	 *             If the connection to Parse fails.
+	 */
+	static ParseResponse execute(ParseOperation operation, HttpRequestBase request)
+			throws IOException
+	{
+		ParseTransferStats stats = Parse.getTransferStats(operation);
+		prepare(request, stats);
+
+		HttpResponse httpResponse = Util.getHttpClient().execute(request);
+		ParseCompression.prepareResponse(httpResponse, stats);
+
+		return new ParseResponse(httpResponse);
+	}
+
+	/**
+	 * Executes the request on the calling thread and hands the response to the
+	 * handler. The response is always released. Transient failures are
+	 * retried according to Parse.getRetryPolicy(), and no request is sent
+	 * while Parse.getCircuitBreaker() is open.
+	 *
+	 * @param operation
+	 *            The kind of request, by which statistics are kept and retries
+	 *            decided.
+	 * @param request
+	 *            The request to execute.
+	 * @param handler
+	 *            Turns the response into the result.
+	 * @return The result of the handler.
+	 * @throws ParseException
+	 *             If the connection fails or the handler rejects the response.
+	 */
+	static <T> T execute(ParseOperation operation, HttpRequestBase request,
+			ResponseHandler<T> handler) throws ParseException
+	{
+		return execute(operation, getDefaultPriority(operation), request, handler);
+	}
+
+	/**
+	 * Executes the request as execute(operation, request, handler) does, in
+	 * the given lane of the rate limiters.
+	 */
+	static <T> T execute(ParseOperation operation, ParseRateLimiter.Priority priority,
+			HttpRequestBase request, ResponseHandler<T> handler) throws ParseException
+	{
+		long start = System.nanoTime();
+
+		try
+		{
+			T result = send(operation, priority, request, handler);
+			record(operation, request, start, null);
+
+			return result;
+		}
+		catch (ParseException e)
+		{
+			record(operation, request, start, e);
+			throw e;
+		}
+	}
+
+	private static <T> T send(ParseOperation operation, ParseRateLimiter.Priority priority,
+			HttpRequestBase request, ResponseHandler<T> handler) throws ParseException
+	{
+		ParseRetryPolicy retryPolicy = Parse.getRetryPolicy();
+		ParseCircuitBreaker breaker = Parse.getCircuitBreaker();
+		long start = System.currentTimeMillis();
+
+		for (int attempt = 1;; attempt++)
+		{
+			try
+			{
+				acquirePermit(request, priority).join();
+			}
+			catch (CompletionException e)
+			{
+				throw toParseException(e);
+			}
+
+			checkCircuitBreaker(breaker);
+
+			ParseException failure;
+			long retryAfter = 0;
+
+			try
+			{
+				ParseResponse response = execute(operation, request);
+
+				try
+				{
+					if (!response.isTransientFailure())
+					{
+						recordSuccess(breaker);
+						return handler.handle(response);
+					}
+
+					failure = response.getException();
+					retryAfter = response.getRetryAfter();
+				}
+				finally
+				{
+					response.release();
+				}
+			}
+			catch (IOException e)
+			{
+				failure = ParseResponse.getConnectionFailedException(e);
+			}
+
+			recordFailure(breaker);
+
+			long delay = retryPolicy.getRetryDelay(operation, attempt,
+					System.currentTimeMillis() - start, retryAfter);
+
+			if (delay < 0)
+			{
+				throw failure;
+			}
+
+			try
+			{
+				Thread.sleep(delay);
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw failure;
+			}
+		}
+	}
+
+	/**
+	 * Executes the request on the non-blocking client. No thread waits on the
+	 * network while the request is in flight, nor between retries; once the
+	 * response has arrived the handler runs on Parse.getExecutor(), off the
+	 * I/O threads, and so does the completion of a failed request. A response
+	 * the executor has no room for fails the request. Retries, rate limits
+	 * and the circuit breaker apply as for execute(); a request held by a rate
+	 * limiter does not occupy a thread either.
+	 *
+	 * The results of FIND are handed to the handler as soon as their headers
+	 * are in, and read through ParseStreamingConsumer while they arrive, so
+	 * that they are not held whole in memory; the executor thread then waits
+	 * on the rest of the body.
+	 *
+	 * @param operation
+	 *            The kind of request, by which statistics are kept and retries
+	 *            decided.
+	 * @param request
+	 *            The request to execute.
+	 * @param handler
+	 *            Turns the response into the result.
+	 * @return A future completed with the result of the handler, or
+	 *         exceptionally with a ParseException.
+	 */
+	static <T> CompletableFuture<T> executeAsync(ParseOperation operation,
+			HttpRequestBase request, ResponseHandler<T> handler)
+	{
+		return executeAsync(operation, getDefaultPriority(operation), request, handler);
+	}
+
+	/**
+	 * Executes the request as executeAsync(operation, request, handler) does,
+	 * in the given lane of the rate limiters.
+	 */
+	static <T> CompletableFuture<T> executeAsync(ParseOperation operation,
+			ParseRateLimiter.Priority priority, HttpRequestBase request,
+			ResponseHandler<T> handler)
+	{
+		CompletableFuture<T> future = new CompletableFuture<T>();
+		long start = System.nanoTime();
+
+		future.whenComplete((result, t) -> record(operation, request, start,
+				t == null ? null : toParseException(t)));
+
+		executeAsync(operation, priority, request, handler, future, 1,
+				System.currentTimeMillis());
+
+		return future;
+	}
+
+	private static <T> void executeAsync(final ParseOperation operation,
+			final ParseRateLimiter.Priority priority, final HttpRequestBase request,
+			final ResponseHandler<T> handler, final CompletableFuture<T> future,
+			final int attempt, final long start)
+	{
+		final CompletableFuture<Void> permit = acquirePermit(request, priority);
+
+		if (!permit.isDone())
+		{
+			// a request given up while held leaves the queue
+			future.whenComplete((result, t) -> permit.cancel(false));
+		}
+
+		permit.whenComplete((v, t) -> {
+			if (t != null)
+			{
+				future.completeExceptionally(toParseException(t));
+			}
+			else if (!future.isDone())
+			{
+				sendAsync(operation, priority, request, handler, future, attempt, start);
+			}
+		});
+	}
+
+	private static <T> void sendAsync(final ParseOperation operation,
+			final ParseRateLimiter.Priority priority, final HttpRequestBase request,
+			final ResponseHandler<T> handler, final CompletableFuture<T> future,
+			final int attempt, final long start)
+	{
+		final ParseCircuitBreaker breaker = Parse.getCircuitBreaker();
+		final ParseTransferStats stats = Parse.getTransferStats(operation);
+
+		try
+		{
+			checkCircuitBreaker(breaker);
+			prepare(request, stats);
+		}
+		catch (ParseException e)
+		{
+			future.completeExceptionally(e);
+			return;
+		}
+		catch (IOException e)
+		{
+			future.completeExceptionally(ParseResponse.getConnectionFailedException(e));
+			return;
+		}
+
+		// the results of queries may be large, so they are read as they
+		// arrive; other responses are small and are read whole by the I/O
+		// thread first, so that no executor thread waits on the network
+		final ParseStreamingConsumer consumer = operation == ParseOperation.FIND
+				? new ParseStreamingConsumer(httpResponse -> handOff(httpResponse, stats, breaker,
+						handler, future))
+				: null;
+
+		FutureCallback<HttpResponse> callback = new FutureCallback<HttpResponse>()
+		{
+			public void completed(final HttpResponse httpResponse)
+			{
+				if (consumer != null && consumer.isStreamed())
+				{
+					return;
+				}
+
+				ParseCompression.prepareResponse(httpResponse, stats);
+				ParseResponse response = new ParseResponse(httpResponse);
+
+				if (response.isTransientFailure())
+				{
+					ParseException failure;
+					long retryAfter = response.getRetryAfter();
+
+					try
+					{
+						failure = response.getException();
+					}
+					finally
+					{
+						response.release();
+					}
+
+					retryAsync(failure, retryAfter);
+					return;
+				}
+
+				recordSuccess(breaker);
+
+				try
+				{
+					Parse.getExecutor().execute(() -> complete(future, handler, response));
+				}
+				catch (RejectedExecutionException e)
+				{
+					// the executor is full; the default one rejects responses
+					// rather than running them here
+					response.release();
+					future.completeExceptionally(newRejectedException(e));
+				}
+			}
+
+			public void failed(Exception e)
+			{
+				if (consumer != null && consumer.isRejected())
+				{
+					future.completeExceptionally(newRejectedException(e.getCause()));
+				}
+				else if (consumer == null || !consumer.isStreamed())
+				{
+					retryAsync(ParseResponse.getConnectionFailedException(e), 0);
+				}
+
+				// otherwise the reader of the body fails
+			}
+
+			public void cancelled()
+			{
+				future.cancel(false);
+			}
+
+			private void retryAsync(ParseException failure, long retryAfter)
+			{
+				recordFailure(breaker);
+
+				long delay = Parse.getRetryPolicy().getRetryDelay(operation, attempt,
+						System.currentTimeMillis() - start, retryAfter);
+
+				if (delay < 0 || future.isDone())
+				{
+					failOffIoThread(future, failure);
+					return;
+				}
+
+				try
+				{
+					ParseExecutors.getScheduler().schedule(() -> executeAsync(operation, priority,
+							request, handler, future, attempt + 1, start), delay,
+							TimeUnit.MILLISECONDS);
+				}
+				catch (RejectedExecutionException e)
+				{
+					future.completeExceptionally(failure);
+				}
+			}
+		};
+
+		if (consumer != null)
+		{
+			Util.getAsyncHttpClient().execute(HttpAsyncMethods.create(request), consumer,
+					callback);
+		}
+		else
+		{
+			Util.getAsyncHttpClient().execute(request, callback);
+		}
+	}
+
+	/**
+	 * Hands a streamed response to Parse.getExecutor(), where the handler
+	 * reads its body while the I/O thread is still receiving it.
+	 *
+	 * @throws RejectedExecutionException
+	 *             If the executor has no room for it, or runs it on the I/O
+	 *             thread, as a direct executor or CallerRunsPolicy would.
+	 */
+	private static <T> void handOff(HttpResponse httpResponse, ParseTransferStats stats,
+			ParseCircuitBreaker breaker, final ResponseHandler<T> handler,
+			final CompletableFuture<T> future)
+	{
+		ParseCompression.prepareResponse(httpResponse, stats);
+		final ParseResponse response = new ParseResponse(httpResponse);
+
+		Parse.getExecutor().execute(() ->
+		{
+			// only the I/O thread fills the body, so reading it there would
+			// wait forever
+			if (ParseExecutors.isIoThread())
+			{
+				throw new RejectedExecutionException(
+						"The executor ran a streamed response on the I/O thread.");
+			}
+
+			complete(future, handler, response);
+		});
+		recordSuccess(breaker);
+	}
+
+	private static ParseException newRejectedException(Throwable cause)
+	{
+		return new ParseException(ParseException.OTHER_CAUSE,
+				"Background executor rejected the response.", cause);
+	}
+
+	/**
+	 * Completes a future exceptionally on Parse.getExecutor(), so that what
+	 * depends on it does not run on the I/O thread that saw the failure. Only
+	 * if the executor rejects it is the future completed right away.
+	 */
+	private static void failOffIoThread(final CompletableFuture<?> future,
+			final ParseException failure)
+	{
+		try
+		{
+			Parse.getExecutor().execute(() -> future.completeExceptionally(failure));
+		}
+		catch (RejectedExecutionException e)
+		{
+			future.completeExceptionally(failure);
+		}
+	}
+
+	/**
+	 * Bulk operations wait behind interactive ones when requests are held by
+	 * a rate limiter.
+	 */
+	static ParseRateLimiter.Priority getDefaultPriority(ParseOperation operation)
+	{
+		return operation == ParseOperation.BATCH ? ParseRateLimiter.Priority.BACKGROUND
+				: ParseRateLimiter.Priority.INTERACTIVE;
+	}
+
+	/**
+	 * Takes a permit from the rate limiter of the class the request is on, if
+	 * any, then from the one of all requests, if any.
+	 */
+	private static CompletableFuture<Void> acquirePermit(HttpRequestBase request,
+			final ParseRateLimiter.Priority priority)
+	{
+		CompletableFuture<Void> permit = CompletableFuture.completedFuture(null);
+		String className = getClassName(request);
+
+		if (className != null)
+		{
+			ParseRateLimiter classLimiter = Parse.getRateLimiter(className);
+
+			if (classLimiter != null)
+			{
+				permit = classLimiter.acquire(priority);
+			}
+		}
+
+		final ParseRateLimiter limiter = Parse.getRateLimiter();
+
+		if (limiter != null)
+		{
+			permit = permit.thenCompose(v -> limiter.acquire(priority));
+		}
+
+		return permit;
+	}
+
+	/**
+	 * @return The class a request is on, or null for requests such as batches
+	 *         that are not on a single class.
+	 */
+	private static String getClassName(HttpRequestBase request)
+	{
+		String path = request.getURI().getPath();
+		String classes = Parse.getParseAPIPathClasses();
+		int index = path.indexOf(classes);
+
+		if (index < 0)
+		{
+			return null;
+		}
+
+		String className = path.substring(index + classes.length());
+		int slash = className.indexOf('/');
+
+		return slash < 0 ? className : className.substring(0, slash);
+	}
+
+	private static void record(ParseOperation operation, HttpRequestBase request, long start,
+			ParseException error)
+	{
+		Parse.getMetrics().record(operation, getClassName(request), System.nanoTime() - start,
+				error);
+	}
+
+	private static void checkCircuitBreaker(ParseCircuitBreaker breaker) throws ParseException
+	{
+		if (breaker != null && !breaker.allowRequest())
+		{
+			throw new ParseException(ParseException.CONNECTION_FAILED,
+					"Parse servers are failing; requests fail fast until they recover.");
+		}
+	}
+
+	private static void recordSuccess(ParseCircuitBreaker breaker)
+	{
+		if (breaker != null)
+		{
+			breaker.recordSuccess();
+		}
+	}
+
+	private static void recordFailure(ParseCircuitBreaker breaker)
+	{
+		if (breaker != null)
+		{
+			breaker.recordFailure();
+		}
+	}
+
+	/**
+	 * Recovers the ParseException a future was completed with.
+	 *
+	 * @param t
+	 *            The exception observed on the future.
+	 * @return The ParseException, or one wrapping t if the future failed for
+	 *         another reason.
+	 */
+	static ParseException toParseException(Throwable t)
+	{
+		if ((t instanceof CompletionException || t instanceof ExecutionException)
+				&& t.getCause() != null)
+		{
+			t = t.getCause();
+		}
+
+		if (t instanceof ParseException)
+		{
+			return (ParseException) t;
+		}
+
+		return new ParseException(ParseException.OTHER_CAUSE, "Operation failed.", t);
+	}
+
+	/**
+	 * @return A future already completed exceptionally with t.
+	 */
+	static <T> CompletableFuture<T> failedFuture(Throwable t)
+	{
+		CompletableFuture<T> future = new CompletableFuture<T>();
+		future.completeExceptionally(t);
+
+		return future;
+	}
+
+	private static <T> void complete(CompletableFuture<T> future, ResponseHandler<T> handler,
+			ParseResponse response)
+	{
+		try
+		{
+			future.complete(handler.handle(response));
+		}
+		catch (ParseException e)
+		{
+			future.completeExceptionally(e);
+		}
+		catch (RuntimeException e)
+		{
+			future.completeExceptionally(e);
+		}
+		finally
+		{
+			response.release();
+		}
+	}
+
+	private static void prepare(HttpRequestBase request, ParseTransferStats stats)
+			throws IOException
+	{
+		request.setHeader(HEADER_APPLICATION_ID, Parse.getApplicationId());
+		request.setHeader(HEADER_REST_API_KEY, Parse.getRestAPIKey());
+
+		ParseCompression.prepareRequest(request, stats);
+	}
+}
@@ -0,0 +1,194 @@
+package almonds;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.entity.DeflateDecompressingEntity;
+import org.apache.http.client.entity.GzipDecompressingEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * Compresses request bodies and decompresses response bodies for ParseCommand,
+ * counting their bytes on both sides of the compression. This is done here
+ * rather than by the HTTP clients, because the non-blocking client does not
+ * decompress responses and neither client reports the bytes on the wire.
+ *
+ * @author js
+ */
+class ParseCompression
+{
+	static final String ACCEPT_ENCODING = "gzip,deflate";
+
+	private static final String ENCODING_GZIP = "gzip";
+	private static final String ENCODING_DEFLATE = "deflate";
+
+	/**
+	 * Asks for a compressed response and, if the body of the request is at
+	 * least Parse.getRequestCompressionThreshold() bytes, compresses it.
+	 */
+	static void prepareRequest(HttpRequest request, ParseTransferStats stats) throws IOException
+	{
+		request.setHeader("Accept-Encoding", ACCEPT_ENCODING);
+
+		HttpEntity entity = null;
+
+		if (request instanceof HttpEntityEnclosingRequest)
+		{
+			entity = ((HttpEntityEnclosingRequest) request).getEntity();
+		}
+
+		if (entity == null)
+		{
+			stats.addRequest(0, 0);
+			return;
+		}
+
+		long length = entity.getContentLength();
+		int threshold = Parse.getRequestCompressionThreshold();
+
+		if (threshold < 0 || length < threshold || entity.getContentEncoding() != null)
+		{
+			stats.addRequest(length, length);
+			return;
+		}
+
+		byte[] body = EntityUtils.toByteArray(entity);
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream(body.length / 4 + 64);
+		OutputStream out = new GZIPOutputStream(compressed);
+
+		try
+		{
+			out.write(body);
+		}
+		finally
+		{
+			out.close();
+		}
+
+		ByteArrayEntity gzipped = new ByteArrayEntity(compressed.toByteArray());
+		gzipped.setContentType(entity.getContentType());
+		gzipped.setContentEncoding(ENCODING_GZIP);
+
+		((HttpEntityEnclosingRequest) request).setEntity(gzipped);
+		stats.addRequest(body.length, gzipped.getContentLength());
+	}
+
+	/**
+	 * Replaces the body of the response with one that decompresses it, if it
+	 * is compressed, and counts the bytes read.
+	 */
+	static void prepareResponse(HttpResponse response, ParseTransferStats stats)
+	{
+		HttpEntity entity = response.getEntity();
+
+		if (entity == null)
+		{
+			return;
+		}
+
+		String encoding = null;
+		Header header = entity.getContentEncoding();
+
+		if (header != null)
+		{
+			encoding = header.getValue().trim().toLowerCase(Locale.ROOT);
+		}
+
+		if (ENCODING_GZIP.equals(encoding) || "x-gzip".equals(encoding))
+		{
+			entity = new CountingEntity(new GzipDecompressingEntity(new CountingEntity(entity,
+					stats.getResponseBytesReceivedCounter())), stats.getResponseBytesCounter());
+		}
+		else if (ENCODING_DEFLATE.equals(encoding))
+		{
+			entity = new CountingEntity(new DeflateDecompressingEntity(new CountingEntity(entity,
+					stats.getResponseBytesReceivedCounter())), stats.getResponseBytesCounter());
+		}
+		else
+		{
+			entity = new CountingEntity(new CountingEntity(entity,
+					stats.getResponseBytesReceivedCounter()), stats.getResponseBytesCounter());
+		}
+
+		response.setEntity(entity);
+		response.removeHeaders("Content-Encoding");
+		response.removeHeaders("Content-Length");
+	}
+
+	/**
+	 * An entity that counts the bytes read from its content.
+	 */
+	private static class CountingEntity extends HttpEntityWrapper
+	{
+		private final LongAdder mCounter;
+
+		CountingEntity(HttpEntity entity, LongAdder counter)
+		{
+			super(entity);
+			mCounter = counter;
+		}
+
+		public InputStream getContent() throws IOException
+		{
+			return new FilterInputStream(super.getContent())
+			{
+				public int read() throws IOException
+				{
+					int b = super.read();
+
+					if (b >= 0)
+					{
+						mCounter.increment();
+					}
+
+					return b;
+				}
+
+				public int read(byte[] b, int off, int len) throws IOException
+				{
+					int n = super.read(b, off, len);
+
+					if (n > 0)
+					{
+						mCounter.add(n);
+					}
+
+					return n;
+				}
+			};
+		}
+
+		public void writeTo(OutputStream out) throws IOException
+		{
+			InputStream in = getContent();
+
+			try
+			{
+				byte[] buffer = new byte[4096];
+				int n;
+
+				while ((n = in.read(buffer)) != -1)
+				{
+					out.write(buffer, 0, n);
+				}
+			}
+			finally
+			{
+				in.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,197 @@
+package almonds;
+
+import java.util.Date;
+
+/**
+ * Converts between Dates and the ISO 8601 strings Parse uses for dates, such
+ * as "2011-08-21T18:02:52.249Z". Dates are always written in UTC with
+ * milliseconds.
+ *
+ * Both directions are done by hand on the fixed layout of these strings,
+ * rather than with a SimpleDateFormat, since every date of every decoded
+ * object goes through them: parsing a date allocates nothing but the Date.
+ *
+ * @author js
+ */
+class ParseDateFormat
+{
+	// "yyyy-MM-ddTHH:mm:ss" and the "Z" that ends it
+	private static final int LENGTH_NO_MILLIS = 20;
+
+	private static final long MILLIS_PER_DAY = 86400000L;
+
+	// days from 0000-03-01 to 1970-01-01
+	private static final long EPOCH_DAYS = 719468;
+
+	/**
+	 * @param date
+	 *            The date to format.
+	 * @return The date as Parse expects it.
+	 */
+	static String format(Date date)
+	{
+		long millis = date.getTime();
+		long days = Math.floorDiv(millis, MILLIS_PER_DAY);
+		int millisOfDay = (int) Math.floorMod(millis, MILLIS_PER_DAY);
+
+		// the civil date of a day count, see http://howardhinnant.github.io/date_algorithms.html
+		long shifted = days + EPOCH_DAYS;
+		long era = Math.floorDiv(shifted, 146097);
+		int dayOfEra = (int) (shifted - era * 146097);
+		int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+		int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+		int shiftedMonth = (5 * dayOfYear + 2) / 153;
+		int day = dayOfYear - (153 * shiftedMonth + 2) / 5 + 1;
+		int month = shiftedMonth < 10 ? shiftedMonth + 3 : shiftedMonth - 9;
+		long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+
+		if (year < 0 || year > 9999)
+		{
+			// beyond what four digits hold; ISO 8601 signs such years
+			return java.time.Instant.ofEpochMilli(millis).toString();
+		}
+
+		char[] chars = new char[LENGTH_NO_MILLIS + 4];
+		put(chars, 0, (int) year, 4);
+		chars[4] = '-';
+		put(chars, 5, month, 2);
+		chars[7] = '-';
+		put(chars, 8, day, 2);
+		chars[10] = 'T';
+		put(chars, 11, millisOfDay / 3600000, 2);
+		chars[13] = ':';
+		put(chars, 14, millisOfDay / 60000 % 60, 2);
+		chars[16] = ':';
+		put(chars, 17, millisOfDay / 1000 % 60, 2);
+		chars[19] = '.';
+		put(chars, 20, millisOfDay % 1000, 3);
+		chars[23] = 'Z';
+
+		return new String(chars);
+	}
+
+	/**
+	 * @param iso
+	 *            A date returned by Parse, with or without a fraction of a
+	 *            second.
+	 * @return The date, or null if iso is not a date in UTC.
+	 */
+	static Date parse(String iso)
+	{
+		int length = iso == null ? 0 : iso.length();
+
+		if (length < LENGTH_NO_MILLIS || iso.charAt(length - 1) != 'Z'
+				|| iso.charAt(4) != '-' || iso.charAt(7) != '-' || iso.charAt(10) != 'T'
+				|| iso.charAt(13) != ':' || iso.charAt(16) != ':')
+		{
+			return null;
+		}
+
+		int year = digits(iso, 0, 4);
+		int month = digits(iso, 5, 2);
+		int day = digits(iso, 8, 2);
+		int hour = digits(iso, 11, 2);
+		int minute = digits(iso, 14, 2);
+		int second = digits(iso, 17, 2);
+		int millis = 0;
+
+		if (length > LENGTH_NO_MILLIS)
+		{
+			// a fraction of one to nine digits, of which milliseconds are kept
+			int fractionDigits = length - LENGTH_NO_MILLIS - 1;
+
+			if (iso.charAt(19) != '.' || fractionDigits < 1 || fractionDigits > 9)
+			{
+				return null;
+			}
+
+			int kept = Math.min(fractionDigits, 3);
+			millis = digits(iso, 20, kept);
+
+			if (millis < 0 || digits(iso, 20, fractionDigits) < 0)
+			{
+				return null;
+			}
+
+			for (int i = kept; i < 3; i++)
+			{
+				millis *= 10;
+			}
+		}
+
+		if (year < 0 || month < 1 || month > 12 || day < 1 || day > getDaysInMonth(year, month)
+				|| hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0
+				|| second > 59)
+		{
+			return null;
+		}
+
+		long days = getEpochDay(year, month, day);
+
+		return new Date(days * MILLIS_PER_DAY + hour * 3600000L + minute * 60000L + second
+				* 1000L + millis);
+	}
+
+	/**
+	 * @return The number of days from 1970-01-01 to a date, see
+	 *         http://howardhinnant.github.io/date_algorithms.html
+	 */
+	private static long getEpochDay(int year, int month, int day)
+	{
+		int y = month <= 2 ? year - 1 : year;
+		int era = Math.floorDiv(y, 400);
+		int yearOfEra = y - era * 400;
+		int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+		int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+
+		return era * 146097L + dayOfEra - EPOCH_DAYS;
+	}
+
+	private static int getDaysInMonth(int year, int month)
+	{
+		switch (month)
+		{
+			case 2:
+				return year % 4 == 0 && (year % 100 != 0 || year % 400 == 0) ? 29 : 28;
+			case 4:
+			case 6:
+			case 9:
+			case 11:
+				return 30;
+			default:
+				return 31;
+		}
+	}
+
+	/**
+	 * @return The number written by count decimal digits at a position, or -1
+	 *         if one of them is not a digit.
+	 */
+	private static int digits(String s, int from, int count)
+	{
+		int value = 0;
+
+		for (int i = from; i < from + count; i++)
+		{
+			int digit = s.charAt(i) - '0';
+
+			if (digit < 0 || digit > 9)
+			{
+				return -1;
+			}
+
+			value = value * 10 + digit;
+		}
+
+		return value;
+	}
+
+	private static void put(char[] chars, int from, int value, int count)
+	{
+		for (int i = from + count - 1; i >= from; i--)
+		{
+			chars[i] = (char) ('0' + value % 10);
+			value /= 10;
+		}
+	}
+}
@@ -0,0 +1,166 @@
+package almonds;
+
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Decodes the typed values of JSON responses from Parse: JSON objects with a
+ * "__type", each decoded by the handler registered for its type in a table
+ * built once.
+ *
+ * <ul>
+ * <li>Pointer: a ParsePointer.</li>
+ * <li>Object, an object embedded for an included key: a ParseObject.</li>
+ * <li>Date: a Date.</li>
+ * <li>Bytes: a byte[].</li>
+ * <li>File: a ParseFile.</li>
+ * <li>GeoPoint: a ParseGeoPoint.</li>
+ * <li>Relation: kept as its JSON, since relations can only be changed with
+ * operations this client does not send.</li>
+ * </ul>
+ *
+ * A JSON array is decoded element by element into a List, so that arrays of
+ * pointers, dates and the like hold the same values as single fields. Other
+ * values, including JSON objects of any other type and values a handler
+ * cannot decode, are returned as they are. ParseObject.encode() turns
+ * decoded values back into the same JSON.
+ *
+ * @author js
+ */
+class ParseDecoder
+{
+	static final String FIELD_TYPE = "__type";
+	static final String FIELD_CLASS_NAME = "className";
+	static final String FIELD_OBJECT_ID = "objectId";
+	static final String FIELD_ISO = "iso";
+	static final String FIELD_BASE64 = "base64";
+	static final String FIELD_NAME = "name";
+	static final String FIELD_URL = "url";
+	static final String FIELD_LATITUDE = "latitude";
+	static final String FIELD_LONGITUDE = "longitude";
+
+	static final String TYPE_POINTER = "Pointer";
+	static final String TYPE_OBJECT = "Object";
+	static final String TYPE_DATE = "Date";
+	static final String TYPE_BYTES = "Bytes";
+	static final String TYPE_FILE = "File";
+	static final String TYPE_GEO_POINT = "GeoPoint";
+	static final String TYPE_RELATION = "Relation";
+
+	/**
+	 * Decodes the JSON of one type.
+	 */
+	private interface TypeDecoder
+	{
+		/**
+		 * @return The decoded value, or json itself if it cannot be decoded.
+		 */
+		Object decode(JSONObject json) throws JSONException;
+	}
+
+	private static final Map<String, TypeDecoder> mDecoders = newDecoders();
+
+	/**
+	 * Decodes a value of a JSON response.
+	 *
+	 * @param value
+	 *            A value as read by org.json.
+	 * @return The decoded value.
+	 */
+	static Object decode(Object value)
+	{
+		if (value instanceof JSONArray)
+		{
+			JSONArray array = (JSONArray) value;
+			List<Object> list = new ArrayList<Object>(array.length());
+
+			for (int i = 0; i < array.length(); i++)
+			{
+				list.add(decode(array.opt(i)));
+			}
+
+			return list;
+		}
+
+		if (!(value instanceof JSONObject))
+		{
+			return value;
+		}
+
+		JSONObject json = (JSONObject) value;
+		Object type = json.opt(FIELD_TYPE);
+		TypeDecoder decoder = type instanceof String ? mDecoders.get(type) : null;
+
+		if (decoder == null)
+		{
+			return json;
+		}
+
+		try
+		{
+			return decoder.decode(json);
+		}
+		catch (JSONException e)
+		{
+			// a member of the type is missing
+			return json;
+		}
+	}
+
+	private static Map<String, TypeDecoder> newDecoders()
+	{
+		Map<String, TypeDecoder> decoders = new HashMap<String, TypeDecoder>();
+
+		decoders.put(TYPE_POINTER, json -> new ParsePointer(json.getString(FIELD_CLASS_NAME),
+				json.getString(FIELD_OBJECT_ID)));
+
+		decoders.put(TYPE_OBJECT, json -> new ParseObject(json.getString(FIELD_CLASS_NAME), json,
+				true));
+
+		decoders.put(TYPE_DATE, json ->
+		{
+			Date date = ParseDateFormat.parse(json.optString(FIELD_ISO, null));
+			return date != null ? date : json;
+		});
+
+		decoders.put(TYPE_BYTES, json ->
+		{
+			try
+			{
+				return Base64.getDecoder().decode(json.getString(FIELD_BASE64));
+			}
+			catch (IllegalArgumentException e)
+			{
+				return json;
+			}
+		});
+
+		decoders.put(TYPE_FILE, json -> new ParseFile(json.getString(FIELD_NAME),
+				json.optString(FIELD_URL, null)));
+
+		decoders.put(TYPE_GEO_POINT, json ->
+		{
+			try
+			{
+				return new ParseGeoPoint(json.getDouble(FIELD_LATITUDE),
+						json.getDouble(FIELD_LONGITUDE));
+			}
+			catch (IllegalArgumentException e)
+			{
+				return json;
+			}
+		});
+
+		decoders.put(TYPE_RELATION, json -> json);
+
+		return decoders;
+	}
+}
@@ -0,0 +1,487 @@
+package almonds;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * The queue behind ParseObject.saveEventually(), updateEventually() and
+ * deleteEventually(). Each write is appended to a ParseEventuallyLog in
+ * Parse.getEventuallyDirectory() before the call returns, and a daemon thread
+ * sends the log to Parse in the order it was written: consecutive writes with
+ * the same method go as one ParseBatch of up to ParseBatch.MAX_BATCH_SIZE
+ * objects.
+ *
+ * While Parse cannot be reached the thread waits and sends the same writes
+ * again, backing off from MIN_BACKOFF up to MAX_BACKOFF, so a write is only
+ * taken off the log once Parse has accepted it or rejected the object itself,
+ * for instance because it no longer exists. A write whose result is lost with
+ * the connection is sent again, so writes are delivered at least once.
+ *
+ * A failure of a batch request as a whole says nothing of its writes, which
+ * stay in the log. If Parse rejects the content of the request, as too large
+ * or not valid JSON, the writes are sent again in batches of half the size,
+ * down to single writes, so that only the write at fault is rejected.
+ *
+ * An object saved through the queue gets a local id, by which later updates
+ * and deletes in the queue refer to it until it is sent and Parse assigns its
+ * objectId. The mapping from local ids to objectIds is kept with the log, so
+ * that it holds across restarts. Pointers to objects that only have a local
+ * id are not resolved.
+ *
+ * @author js
+ */
+class ParseEventually
+{
+	static final long MIN_BACKOFF = 1000;
+	static final long MAX_BACKOFF = 60000;
+
+	private static final String FIELD_ID = "id";
+	private static final String FIELD_METHOD = "method";
+	private static final String FIELD_CLASS_NAME = "className";
+	private static final String FIELD_OBJECT_ID = "objectId";
+	private static final String FIELD_LOCAL_ID = "localId";
+	private static final String FIELD_BODY = "body";
+
+	// errors about the object itself, which sending it again cannot fix;
+	// writes failing with any other error are sent again
+	private static final Set<Integer> PERMANENT_ERRORS = new HashSet<Integer>(Arrays.asList(
+			ParseException.OBJECT_NOT_FOUND, ParseException.MISSING_OBJECT_ID,
+			ParseException.INVALID_CLASS_NAME, ParseException.INVALID_KEY_NAME,
+			ParseException.INVALID_POINTER, ParseException.INVALID_NESTED_KEY,
+			ParseException.INCORRECT_TYPE, ParseException.INVALID_ACL,
+			ParseException.OBJECT_TOO_LARGE, ParseException.OPERATION_FORBIDDEN));
+
+	// errors of a batch request as a whole that are due to its content, which
+	// smaller batches narrow down to the write at fault
+	private static final Set<Integer> CONTENT_ERRORS = new HashSet<Integer>(Arrays.asList(
+			ParseException.OBJECT_TOO_LARGE, ParseException.INVALID_JSON));
+
+	private static ParseEventually mInstance;
+
+	/**
+	 * A write made in this process, whose caller waits for it to be sent.
+	 */
+	private static class Pending
+	{
+		final ParseObject mObject;
+		final CompletableFuture<ParseObject> mFuture = new CompletableFuture<ParseObject>();
+
+		Pending(ParseObject object)
+		{
+			mObject = object;
+		}
+	}
+
+	private final File mDirectory;
+	private final ParseEventuallyLog mLog;
+	private final Map<String, Pending> mPending = new ConcurrentHashMap<String, Pending>();
+	private final Thread mThread;
+	private volatile boolean mClosed = false;
+
+	// the most writes sent in one batch, only lowered to isolate a write
+	// whose batch Parse rejects
+	private int mBatchSize = ParseBatch.MAX_BATCH_SIZE;
+
+	/**
+	 * Accessor to the queue in Parse.getEventuallyDirectory(), opening it on
+	 * first use. Opening the queue resumes sending the writes a previous run
+	 * left in the log.
+	 *
+	 * @throws ParseException
+	 *             If the log cannot be opened.
+	 */
+	static synchronized ParseEventually getInstance() throws ParseException
+	{
+		File directory = Parse.getEventuallyDirectory();
+
+		if (mInstance != null && !mInstance.mDirectory.equals(directory))
+		{
+			mInstance.close();
+			mInstance = null;
+		}
+
+		if (mInstance == null)
+		{
+			try
+			{
+				mInstance = new ParseEventually(directory);
+			}
+			catch (IOException e)
+			{
+				throw new ParseException(ParseException.OTHER_CAUSE,
+						"Could not open the eventually log in " + directory + ".", e);
+			}
+		}
+
+		return mInstance;
+	}
+
+	private ParseEventually(File directory) throws IOException
+	{
+		mDirectory = directory;
+		mLog = new ParseEventuallyLog(directory);
+
+		mThread = new ParseExecutors.NamedThreadFactory("almonds-eventually").newThread(this::run);
+		mThread.start();
+	}
+
+	/**
+	 * @return The number of writes not yet sent.
+	 */
+	int size()
+	{
+		return mLog.size();
+	}
+
+	/**
+	 * Appends a write to the log, returning once it is on disk.
+	 *
+	 * @param method
+	 *            One of the ParseBatch methods.
+	 * @param object
+	 *            The object written, which must have an objectId or a local
+	 *            id. Its objectId and timestamps are set once it is sent.
+	 * @param body
+	 *            The encoded fields to send, or null for METHOD_DELETE.
+	 * @return A future completed with the object once Parse accepts the
+	 *         write, or exceptionally if Parse rejects it.
+	 * @throws ParseException
+	 *             If the write could not be appended to the log.
+	 */
+	CompletableFuture<ParseObject> enqueue(String method, ParseObject object, JSONObject body)
+			throws ParseException
+	{
+		String id = UUID.randomUUID().toString();
+		JSONObject record = new JSONObject();
+
+		try
+		{
+			record.put(FIELD_ID, id);
+			record.put(FIELD_METHOD, method);
+			record.put(FIELD_CLASS_NAME, object.getClassName());
+
+			if (object.getObjectId() != null)
+			{
+				record.put(FIELD_OBJECT_ID, object.getObjectId());
+			}
+			else
+			{
+				record.put(FIELD_LOCAL_ID, object.getLocalId());
+			}
+
+			if (body != null)
+			{
+				record.put(FIELD_BODY, body);
+			}
+		}
+		catch (JSONException e)
+		{
+			throw new ParseException(ParseException.INVALID_JSON, "Could not encode the write.", e);
+		}
+
+		// registered first, since the write may be sent as soon as it is
+		// appended
+		Pending pending = new Pending(object);
+		mPending.put(id, pending);
+
+		try
+		{
+			mLog.append(record);
+		}
+		catch (IOException e)
+		{
+			mPending.remove(id);
+			throw new ParseException(ParseException.OTHER_CAUSE,
+					"Could not append the write to the eventually log.", e);
+		}
+
+		return pending.mFuture;
+	}
+
+	private void close()
+	{
+		mClosed = true;
+		mThread.interrupt();
+
+		try
+		{
+			mLog.close();
+		}
+		catch (IOException e)
+		{
+			// the lock goes with the process
+		}
+	}
+
+	private void run()
+	{
+		long backoff = MIN_BACKOFF;
+
+		while (!mClosed)
+		{
+			try
+			{
+				List<ParseEventuallyLog.Record> records = mLog.peek(ParseBatch.MAX_BATCH_SIZE);
+
+				if (records.isEmpty())
+				{
+					mLog.awaitRecords(MAX_BACKOFF);
+				}
+				else if (send(records))
+				{
+					backoff = MIN_BACKOFF;
+				}
+				else
+				{
+					Thread.sleep(backoff);
+					backoff = Math.min(backoff * 2, MAX_BACKOFF);
+				}
+			}
+			catch (InterruptedException e)
+			{
+				return;
+			}
+			catch (IOException e)
+			{
+				// the checkpoint could not be written; the writes are sent
+				// again
+				try
+				{
+					Thread.sleep(backoff);
+				}
+				catch (InterruptedException e1)
+				{
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Sends the leading writes of the records that share a method as one
+	 * batch, and takes those that are done off the log, so that only the
+	 * writes that failed are sent again.
+	 *
+	 * @return Whether the writes left can be sent again right away: every
+	 *         write sent is done, or the batch is to be split.
+	 */
+	private boolean send(List<ParseEventuallyLog.Record> records) throws IOException
+	{
+		String method = records.get(0).mJson.optString(FIELD_METHOD);
+		int count = 1;
+
+		while (count < records.size() && count < mBatchSize
+				&& method.equals(records.get(count).mJson.optString(FIELD_METHOD)))
+		{
+			count++;
+		}
+
+		ParseObject[] objects = new ParseObject[count];
+		ParseException[] errors = new ParseException[count];
+		List<ParseObject> batch = new ArrayList<ParseObject>();
+
+		for (int i = 0; i < count; i++)
+		{
+			try
+			{
+				objects[i] = toParseObject(records.get(i).mJson);
+				batch.add(objects[i]);
+			}
+			catch (ParseException e)
+			{
+				errors[i] = e;
+			}
+		}
+
+		ParseBatch parseBatch = new ParseBatch(method, batch);
+		List<ParseException> batchErrors = null;
+
+		try
+		{
+			parseBatch.execute();
+		}
+		catch (ParseBatchException e)
+		{
+			batchErrors = e.getErrors();
+		}
+		catch (ParseException e)
+		{
+			return false;
+		}
+
+		boolean[] requestErrors = new boolean[count];
+		ParseException requestError = null;
+
+		for (int i = 0, j = 0; i < count; i++)
+		{
+			if (objects[i] != null && batchErrors != null)
+			{
+				errors[i] = batchErrors.get(j);
+
+				if (parseBatch.isRequestError(j))
+				{
+					requestErrors[i] = true;
+					requestError = errors[i];
+				}
+			}
+
+			if (objects[i] != null)
+			{
+				j++;
+			}
+		}
+
+		// every write that is done is taken off the log, except one that
+		// follows a write of the same object that has to be sent again, so
+		// that the writes of an object still reach Parse in order; a write
+		// that failed with its request is only done once it was sent alone
+		// and Parse rejected its content
+		Map<String, String> objectIds = new HashMap<String, String>();
+		Set<String> retried = new HashSet<String>();
+		List<ParseEventuallyLog.Record> consumed = new ArrayList<ParseEventuallyLog.Record>();
+		boolean[] done = new boolean[count];
+
+		for (int i = 0; i < count; i++)
+		{
+			JSONObject record = records.get(i).mJson;
+			String key = record.optString(FIELD_CLASS_NAME) + "/"
+					+ record.optString(FIELD_OBJECT_ID, record.optString(FIELD_LOCAL_ID));
+
+			if (retried.contains(key) || (errors[i] != null && !(requestErrors[i]
+					? count == 1 && CONTENT_ERRORS.contains(errors[i].getCode())
+					: PERMANENT_ERRORS.contains(errors[i].getCode()))))
+			{
+				retried.add(key);
+				continue;
+			}
+
+			if (errors[i] == null && ParseBatch.METHOD_POST.equals(method)
+					&& record.has(FIELD_LOCAL_ID))
+			{
+				objectIds.put(record.optString(FIELD_LOCAL_ID), objects[i].getObjectId());
+			}
+
+			done[i] = true;
+			consumed.add(records.get(i));
+		}
+
+		if (!consumed.isEmpty())
+		{
+			mLog.consume(consumed, objectIds);
+		}
+
+		for (int i = 0; i < count; i++)
+		{
+			if (done[i])
+			{
+				complete(method, records.get(i).mJson, objects[i], errors[i]);
+			}
+		}
+
+		if (consumed.size() == count)
+		{
+			mBatchSize = ParseBatch.MAX_BATCH_SIZE;
+			return true;
+		}
+
+		if (requestError != null && count > 1
+				&& CONTENT_ERRORS.contains(requestError.getCode()))
+		{
+			mBatchSize = Math.max(1, count / 2);
+			return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Rebuilds the object a record writes, with its fields dirty so that the
+	 * batch sends them.
+	 */
+	private ParseObject toParseObject(JSONObject record) throws ParseException
+	{
+		ParseObject object = new ParseObject(record.optString(FIELD_CLASS_NAME));
+		String objectId = record.optString(FIELD_OBJECT_ID, null);
+
+		if (objectId == null && !ParseBatch.METHOD_POST.equals(record.optString(FIELD_METHOD)))
+		{
+			objectId = mLog.getObjectId(record.optString(FIELD_LOCAL_ID));
+
+			if (objectId == null)
+			{
+				throw new ParseException(ParseException.MISSING_OBJECT_ID,
+						"The object was never saved, so it cannot be written.");
+			}
+		}
+
+		if (objectId != null)
+		{
+			object.setObjectId(objectId);
+		}
+
+		JSONObject body = record.optJSONObject(FIELD_BODY);
+		String[] keys = body == null ? null : JSONObject.getNames(body);
+
+		if (keys != null)
+		{
+			for (String key : keys)
+			{
+				object.put(key, body.opt(key));
+			}
+		}
+
+		return object;
+	}
+
+	/**
+	 * Hands the result of a write to the caller that made it in this process,
+	 * if any.
+	 */
+	private void complete(String method, JSONObject record, ParseObject written,
+			ParseException error)
+	{
+		Pending pending = mPending.remove(record.optString(FIELD_ID));
+
+		if (error == null && !ParseBatch.METHOD_POST.equals(method))
+		{
+			Parse.getCache().removeObject(written.getClassName(), written.getObjectId());
+		}
+
+		if (pending == null)
+		{
+			return;
+		}
+
+		if (error == null)
+		{
+			pending.mObject.setServerFields(written);
+		}
+
+		// callers are handed the result on the executor, so that they cannot
+		// hold up the queue
+		Parse.getExecutor().execute(() ->
+		{
+			if (error != null)
+			{
+				pending.mFuture.completeExceptionally(error);
+			}
+			else
+			{
+				pending.mFuture.complete(pending.mObject);
+			}
+		});
+	}
+}
@@ -0,0 +1,596 @@
+package almonds;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * The append-only log behind ParseObject.saveEventually() and friends. Records
+ * are JSON objects appended to memory-mapped segment files of SEGMENT_SIZE
+ * bytes, each record being its length, its CRC32 and its UTF-8 bytes. A
+ * record is read back in the order it was appended until it is consumed with
+ * consume(), which persists the read position in a checkpoint file; segments
+ * that have been read entirely are deleted. Records may be consumed out of
+ * order: those past the read position are listed in the checkpoint and
+ * skipped when the log is read.
+ *
+ * Appends are made durable by group commit: a thread whose record is not yet
+ * on disk forces the segment, which also covers every record appended before
+ * the force, so concurrent appends share one fsync.
+ *
+ * A record whose length or CRC does not match, as left by a crash in the
+ * middle of an append, ends the log when it is reopened. Only one process at a
+ * time may open the log in a directory.
+ *
+ * @author js
+ */
+class ParseEventuallyLog
+{
+	static final int SEGMENT_SIZE = 8 * 1024 * 1024;
+
+	private static final int HEADER_SIZE = 8;
+	private static final String SEGMENT_SUFFIX = ".log";
+	private static final String CHECKPOINT_FILE = "checkpoint.json";
+	private static final String LOCK_FILE = "lock";
+
+	private static final String FIELD_SEGMENT = "segment";
+	private static final String FIELD_OFFSET = "offset";
+	private static final String FIELD_IDS = "ids";
+	private static final String FIELD_CONSUMED = "consumed";
+
+	/**
+	 * A record read from the log, and the position just after it.
+	 */
+	static class Record
+	{
+		final JSONObject mJson;
+		final long mSegment;
+		final int mEnd;
+
+		Record(JSONObject json, long segment, int end)
+		{
+			mJson = json;
+			mSegment = segment;
+			mEnd = end;
+		}
+	}
+
+	private final File mDirectory;
+	private final RandomAccessFile mLockFile;
+	private final FileLock mLock;
+
+	// the mapped segments that have not been read entirely, by number
+	private final TreeMap<Long, MappedByteBuffer> mSegments = new TreeMap<Long, MappedByteBuffer>();
+
+	private long mWriteSegment;
+	private int mWriteOffset;
+	private long mReadSegment;
+	private int mReadOffset;
+	private int mSize;
+
+	// the ends, as positions in the whole log, of the records consumed past
+	// the read position; persisted with it
+	private final Set<Long> mConsumed = new TreeSet<Long>();
+
+	// local ids of objects saved through the log mapped to their objectIds,
+	// persisted with the read position
+	private final Map<String, String> mObjectIds = new HashMap<String, String>();
+
+	// group commit: records appended, and records known to be on disk
+	private long mAppended = 0;
+	private long mSynced = 0;
+	private final Object mSyncLock = new Object();
+
+	/**
+	 * Opens the log in a directory, creating it if needed, and recovers the
+	 * records not yet consumed.
+	 */
+	ParseEventuallyLog(File directory) throws IOException
+	{
+		mDirectory = directory;
+
+		if (!directory.isDirectory() && !directory.mkdirs())
+		{
+			throw new IOException("Cannot create the directory " + directory);
+		}
+
+		mLockFile = new RandomAccessFile(new File(directory, LOCK_FILE), "rw");
+		mLock = mLockFile.getChannel().tryLock();
+
+		if (mLock == null)
+		{
+			mLockFile.close();
+			throw new IOException("The log in " + directory + " is used by another process.");
+		}
+
+		readCheckpoint();
+
+		for (long segment : listSegments())
+		{
+			if (segment < mReadSegment)
+			{
+				deleteSegment(segment);
+			}
+			else
+			{
+				mSegments.put(segment, map(segment));
+			}
+		}
+
+		if (mSegments.isEmpty())
+		{
+			mReadSegment = Math.max(mReadSegment, 0);
+			mReadOffset = 0;
+			mSegments.put(mReadSegment, map(mReadSegment));
+		}
+		else if (mSegments.firstKey() > mReadSegment)
+		{
+			mReadSegment = mSegments.firstKey();
+			mReadOffset = 0;
+		}
+
+		recover();
+	}
+
+	/**
+	 * Appends a record and returns once it is on disk.
+	 */
+	void append(JSONObject record) throws IOException
+	{
+		byte[] bytes = record.toString().getBytes(StandardCharsets.UTF_8);
+
+		if (bytes.length + HEADER_SIZE > SEGMENT_SIZE)
+		{
+			throw new IOException("Record of " + bytes.length + " bytes is too large for the log.");
+		}
+
+		long appended;
+
+		synchronized (this)
+		{
+			MappedByteBuffer segment = mSegments.get(mWriteSegment);
+
+			if (mWriteOffset + HEADER_SIZE + bytes.length > SEGMENT_SIZE)
+			{
+				// the rest of the full segment stays zero, which readers take
+				// as its end
+				segment.force();
+				mWriteSegment++;
+				mWriteOffset = 0;
+				segment = map(mWriteSegment);
+				mSegments.put(mWriteSegment, segment);
+			}
+
+			CRC32 crc = new CRC32();
+			crc.update(bytes);
+
+			ByteBuffer buffer = segment.duplicate();
+			buffer.position(mWriteOffset + 4);
+			buffer.putInt((int) crc.getValue());
+			buffer.put(bytes);
+			// the length goes last, so that a reader never sees a record
+			// that is only partly written
+			buffer.putInt(mWriteOffset, bytes.length);
+
+			mWriteOffset += HEADER_SIZE + bytes.length;
+			mSize++;
+			appended = ++mAppended;
+
+			notifyAll();
+		}
+
+		sync(appended);
+	}
+
+	/**
+	 * Reads up to max records from the read position without consuming them.
+	 */
+	synchronized List<Record> peek(int max)
+	{
+		List<Record> records = new ArrayList<Record>();
+		long segment = mReadSegment;
+		int offset = mReadOffset;
+
+		while (records.size() < max)
+		{
+			MappedByteBuffer buffer = mSegments.get(segment);
+			JSONObject json = buffer == null ? null : read(buffer, offset);
+
+			if (json == null)
+			{
+				if (segment < mWriteSegment)
+				{
+					segment++;
+					offset = 0;
+					continue;
+				}
+
+				break;
+			}
+
+			offset += HEADER_SIZE + buffer.getInt(offset);
+
+			if (!mConsumed.contains(getPosition(segment, offset)))
+			{
+				records.add(new Record(json, segment, offset));
+			}
+		}
+
+		return records;
+	}
+
+	/**
+	 * Waits until there is a record to read or the timeout has passed.
+	 */
+	synchronized void awaitRecords(long millis) throws InterruptedException
+	{
+		if (mSize == 0)
+		{
+			wait(millis);
+		}
+	}
+
+	/**
+	 * Consumes records read with peek(), in any order, and records the
+	 * objectIds that their local ids resolved to. The read position moves past
+	 * every consumed record at its head; the others are skipped from then on.
+	 *
+	 * @param records
+	 *            The records consumed.
+	 * @param objectIds
+	 *            Newly resolved local ids.
+	 */
+	synchronized void consume(List<Record> records, Map<String, String> objectIds)
+			throws IOException
+	{
+		mObjectIds.putAll(objectIds);
+
+		for (Record record : records)
+		{
+			if (mConsumed.add(getPosition(record.mSegment, record.mEnd)))
+			{
+				mSize--;
+			}
+		}
+
+		while (true)
+		{
+			MappedByteBuffer buffer = mSegments.get(mReadSegment);
+			JSONObject json = buffer == null ? null : read(buffer, mReadOffset);
+
+			if (json == null)
+			{
+				if (mReadSegment < mWriteSegment)
+				{
+					mReadSegment++;
+					mReadOffset = 0;
+					continue;
+				}
+
+				break;
+			}
+
+			int end = mReadOffset + HEADER_SIZE + buffer.getInt(mReadOffset);
+
+			if (!mConsumed.remove(getPosition(mReadSegment, end)))
+			{
+				break;
+			}
+
+			mReadOffset = end;
+		}
+
+		// once everything is consumed no record can refer to a local id
+		if (mSize == 0)
+		{
+			mObjectIds.clear();
+		}
+
+		writeCheckpoint();
+
+		for (Iterator<Long> i = mSegments.headMap(mReadSegment).keySet().iterator(); i.hasNext();)
+		{
+			long segment = i.next();
+			i.remove();
+			deleteSegment(segment);
+		}
+	}
+
+	/**
+	 * @return The objectId a local id resolved to, or null.
+	 */
+	synchronized String getObjectId(String localId)
+	{
+		return mObjectIds.get(localId);
+	}
+
+	/**
+	 * @return The number of records not yet consumed.
+	 */
+	synchronized int size()
+	{
+		return mSize;
+	}
+
+	/**
+	 * Lets another process open the log. Records appended so far are already
+	 * on disk.
+	 */
+	void close() throws IOException
+	{
+		mLock.release();
+		mLockFile.close();
+	}
+
+	private void sync(long appended) throws IOException
+	{
+		synchronized (mSyncLock)
+		{
+			if (mSynced >= appended)
+			{
+				return;
+			}
+
+			MappedByteBuffer segment;
+			long target;
+
+			synchronized (this)
+			{
+				segment = mSegments.get(mWriteSegment);
+				target = mAppended;
+			}
+
+			segment.force();
+			mSynced = target;
+		}
+	}
+
+	/**
+	 * Counts the records left from the read position and finds the end of the
+	 * last segment, clearing anything after it that a crash left behind.
+	 */
+	private void recover()
+	{
+		mWriteSegment = mSegments.lastKey();
+
+		long segment = mReadSegment;
+		int offset = mReadOffset;
+
+		while (true)
+		{
+			MappedByteBuffer buffer = mSegments.get(segment);
+			JSONObject json = read(buffer, offset);
+
+			if (json == null)
+			{
+				if (segment < mWriteSegment)
+				{
+					segment++;
+					offset = 0;
+					continue;
+				}
+
+				break;
+			}
+
+			offset += HEADER_SIZE + buffer.getInt(offset);
+
+			if (!mConsumed.contains(getPosition(segment, offset)))
+			{
+				mSize++;
+			}
+		}
+
+		mWriteOffset = segment == mWriteSegment ? offset : 0;
+
+		MappedByteBuffer buffer = mSegments.get(mWriteSegment);
+
+		for (int i = mWriteOffset; i < SEGMENT_SIZE && i < mWriteOffset + HEADER_SIZE; i++)
+		{
+			buffer.put(i, (byte) 0);
+		}
+	}
+
+	/**
+	 * Reads the record at an offset of a segment.
+	 *
+	 * @return The record, or null at the end of the segment or at a damaged
+	 *         record.
+	 */
+	private static JSONObject read(MappedByteBuffer segment, int offset)
+	{
+		if (offset + HEADER_SIZE > SEGMENT_SIZE)
+		{
+			return null;
+		}
+
+		int length = segment.getInt(offset);
+
+		if (length <= 0 || offset + HEADER_SIZE + length > SEGMENT_SIZE)
+		{
+			return null;
+		}
+
+		byte[] bytes = new byte[length];
+		ByteBuffer buffer = segment.duplicate();
+		buffer.position(offset + HEADER_SIZE);
+		buffer.get(bytes);
+
+		CRC32 crc = new CRC32();
+		crc.update(bytes);
+
+		if ((int) crc.getValue() != segment.getInt(offset + 4))
+		{
+			return null;
+		}
+
+		try
+		{
+			return new JSONObject(new String(bytes, StandardCharsets.UTF_8));
+		}
+		catch (JSONException e)
+		{
+			return null;
+		}
+	}
+
+	private MappedByteBuffer map(long segment) throws IOException
+	{
+		RandomAccessFile file = new RandomAccessFile(getSegmentFile(segment), "rw");
+
+		try
+		{
+			// the mapping stays valid after the file is closed
+			return file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+		}
+		finally
+		{
+			file.close();
+		}
+	}
+
+	/**
+	 * @return The position in the whole log of an offset in a segment.
+	 */
+	private static long getPosition(long segment, int offset)
+	{
+		return segment * SEGMENT_SIZE + offset;
+	}
+
+	private File getSegmentFile(long segment)
+	{
+		return new File(mDirectory, String.format("%016d", segment) + SEGMENT_SUFFIX);
+	}
+
+	private void deleteSegment(long segment)
+	{
+		// a mapped file cannot be deleted on some platforms; it is then
+		// deleted when the log is next opened
+		getSegmentFile(segment).delete();
+	}
+
+	private List<Long> listSegments()
+	{
+		List<Long> segments = new ArrayList<Long>();
+		String[] names = mDirectory.list();
+
+		if (names != null)
+		{
+			Arrays.sort(names);
+
+			for (String name : names)
+			{
+				if (name.endsWith(SEGMENT_SUFFIX))
+				{
+					try
+					{
+						segments.add(Long.parseLong(name.substring(0,
+								name.length() - SEGMENT_SUFFIX.length())));
+					}
+					catch (NumberFormatException e)
+					{
+						// not a segment
+					}
+				}
+			}
+		}
+
+		return segments;
+	}
+
+	private void readCheckpoint() throws IOException
+	{
+		File file = new File(mDirectory, CHECKPOINT_FILE);
+
+		if (!file.exists())
+		{
+			return;
+		}
+
+		try
+		{
+			JSONObject checkpoint = new JSONObject(new String(Files.readAllBytes(file.toPath()),
+					StandardCharsets.UTF_8));
+			mReadSegment = checkpoint.getLong(FIELD_SEGMENT);
+			mReadOffset = checkpoint.getInt(FIELD_OFFSET);
+
+			JSONObject ids = checkpoint.optJSONObject(FIELD_IDS);
+			String[] names = ids == null ? null : JSONObject.getNames(ids);
+
+			if (names != null)
+			{
+				for (String name : names)
+				{
+					mObjectIds.put(name, ids.getString(name));
+				}
+			}
+
+			JSONArray consumed = checkpoint.optJSONArray(FIELD_CONSUMED);
+
+			for (int i = 0; consumed != null && i < consumed.length(); i++)
+			{
+				mConsumed.add(consumed.getLong(i));
+			}
+		}
+		catch (JSONException e)
+		{
+			throw new IOException("Damaged checkpoint " + file, e);
+		}
+	}
+
+	private void writeCheckpoint() throws IOException
+	{
+		JSONObject checkpoint = new JSONObject();
+
+		try
+		{
+			checkpoint.put(FIELD_SEGMENT, mReadSegment);
+			checkpoint.put(FIELD_OFFSET, mReadOffset);
+			checkpoint.put(FIELD_IDS, new JSONObject(mObjectIds));
+			checkpoint.put(FIELD_CONSUMED, new JSONArray(mConsumed));
+		}
+		catch (JSONException e)
+		{
+			throw new IOException(e);
+		}
+
+		File file = new File(mDirectory, CHECKPOINT_FILE);
+		File temp = new File(mDirectory, CHECKPOINT_FILE + ".tmp");
+		RandomAccessFile out = new RandomAccessFile(temp, "rw");
+
+		try
+		{
+			out.setLength(0);
+			out.write(checkpoint.toString().getBytes(StandardCharsets.UTF_8));
+			out.getFD().sync();
+		}
+		finally
+		{
+			out.close();
+		}
+
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+}
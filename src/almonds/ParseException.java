@@ -9,6 +9,7 @@ public class ParseException extends Exception
 	private int mCode;
 
 	public static final int ACCOUNT_ALREADY_LINKED = 208;
+	public static final int AGGREGATE_ERROR = 600;
 	public static final int CACHE_MISS = 120;
 	public static final int COMMAND_UNAVAILABLE = 108;
 	public static final int CONNECTION_FAILED = 100;
@@ -39,6 +40,7 @@ public class ParseException extends Exception
 	public static final int OTHER_CAUSE = -1;
 	public static final int PASSWORD_MISSING = 201;
 	public static final int PUSH_MISCONFIGURED = 115;
+	public static final int REQUEST_LIMIT_EXCEEDED = 155;
 	public static final int SESSION_MISSING = 206;
 	public static final int TIMEOUT = 124;
 	public static final int UNSUPPORTED_SERVICE = 252;
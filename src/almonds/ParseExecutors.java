@@ -0,0 +1,165 @@
+package almonds;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Factory for the executors that run background operations and their
+ * callbacks when none are supplied to Parse.initialize().
+ *
+ * @author js
+ */
+class ParseExecutors
+{
+	static final int DEFAULT_POOL_SIZE = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+	static final int DEFAULT_QUEUE_CAPACITY = 1024;
+
+	/**
+	 * Runs work the background executor has no room for on the submitting
+	 * thread, except on the I/O threads of the non-blocking client, which
+	 * must never run decoding or callbacks: there the work is rejected, and
+	 * the request it belongs to fails.
+	 */
+	private static final RejectedExecutionHandler CALLER_RUNS_OFF_IO = (r, executor) -> {
+		if (isIoThread())
+		{
+			throw new RejectedExecutionException("The background executor is full.");
+		}
+
+		if (!executor.isShutdown())
+		{
+			r.run();
+		}
+	};
+
+	/**
+	 * Creates the default background executor: a fixed number of named daemon
+	 * threads behind a bounded queue. When the queue is full the submitting
+	 * thread runs the operation itself, which slows down callers that produce
+	 * work faster than Parse can absorb it instead of failing their requests.
+	 * Responses arriving on an I/O thread while the queue is full fail
+	 * instead.
+	 */
+	static ExecutorService newBackgroundExecutor()
+	{
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(DEFAULT_POOL_SIZE, DEFAULT_POOL_SIZE,
+				60L, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(DEFAULT_QUEUE_CAPACITY),
+				new NamedThreadFactory("almonds-background"), CALLER_RUNS_OFF_IO);
+		executor.allowCoreThreadTimeOut(true);
+
+		return executor;
+	}
+
+	/**
+	 * Accessor to the default background executor, created on first use by
+	 * newBackgroundExecutor(). Creating it takes the class initialization
+	 * lock once; getting it afterwards takes no lock.
+	 */
+	static ExecutorService getBackgroundExecutor()
+	{
+		return BackgroundExecutorHolder.EXECUTOR;
+	}
+
+	// created on first use
+	private static class BackgroundExecutorHolder
+	{
+		static final ExecutorService EXECUTOR = newBackgroundExecutor();
+	}
+
+	/**
+	 * Accessor to the timer used to delay work without holding a thread, such
+	 * as retries of failed requests. Its single daemon thread only hands the
+	 * work on, so the work itself must be short or be passed to another
+	 * executor.
+	 */
+	static ScheduledExecutorService getScheduler()
+	{
+		return SchedulerHolder.SCHEDULER;
+	}
+
+	// created on first use
+	private static class SchedulerHolder
+	{
+		static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(
+				new NamedThreadFactory("almonds-scheduler"));
+	}
+
+	/**
+	 * The default callback executor, which runs callbacks on the thread that
+	 * completed the operation.
+	 */
+	static final Executor IMMEDIATE = new Executor()
+	{
+		public void execute(Runnable command)
+		{
+			command.run();
+		}
+	};
+
+	/**
+	 * @return Whether the calling thread is an I/O thread of the non-blocking
+	 *         client, as created by newIoThreadFactory().
+	 */
+	static boolean isIoThread()
+	{
+		return Thread.currentThread() instanceof IoThread;
+	}
+
+	/**
+	 * Creates the I/O threads of the non-blocking client, named "almonds-io".
+	 */
+	static ThreadFactory newIoThreadFactory()
+	{
+		return new NamedThreadFactory("almonds-io")
+		{
+			Thread newThread(Runnable r, String name)
+			{
+				return new IoThread(r, name);
+			}
+		};
+	}
+
+	private static class IoThread extends Thread
+	{
+		IoThread(Runnable r, String name)
+		{
+			super(r, name);
+		}
+	}
+
+	/**
+	 * Creates daemon threads named after a prefix and a sequence number, so
+	 * that they can be told apart in thread dumps.
+	 */
+	static class NamedThreadFactory implements ThreadFactory
+	{
+		private final String mPrefix;
+		private final AtomicInteger mCount = new AtomicInteger();
+
+		NamedThreadFactory(String prefix)
+		{
+			mPrefix = prefix;
+		}
+
+		public Thread newThread(Runnable r)
+		{
+			Thread t = newThread(r, mPrefix + "-" + mCount.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+
+		Thread newThread(Runnable r, String name)
+		{
+			return new Thread(r, name);
+		}
+	}
+}
@@ -0,0 +1,193 @@
+package almonds;
+
+import java.util.Arrays;
+
+/**
+ * The compact storage of the fields of a ParseObject: a single array holding
+ * the ParseShape that names the keys, a long[] for the values that are
+ * Integers, Longs or Doubles, or null if there are none, and then the value
+ * of each slot of the shape. A slot whose value is held in the long[] holds a
+ * marker of its type instead, from which the value is boxed again when it is
+ * read.
+ *
+ * Arrays of fields are never changed once built: with() returns a new array,
+ * so that a ParseObject can replace its fields as a whole and they can be
+ * read without locking.
+ *
+ * Compared to a Hashtable per object, this leaves out the entries, the copy
+ * of each key and the boxes of numbers: a decoded row of a few typical fields
+ * retains about half the heap it did, as measured by ParseObjectFootprint in
+ * the benchmarks.
+ *
+ * @author js
+ */
+final class ParseFields
+{
+	private static final int SHAPE = 0;
+	private static final int BITS = 1;
+	private static final int VALUES = 2;
+
+	// the markers of the types held in the long[]
+	private static final Object INTEGER = new Object();
+	private static final Object LONG = new Object();
+	private static final Object DOUBLE = new Object();
+
+	private ParseFields()
+	{
+	}
+
+	/**
+	 * @return The fields of an object without keys.
+	 */
+	static Object[] empty(ParseShape root)
+	{
+		return new Object[] {root, null};
+	}
+
+	/**
+	 * Builds the fields of an object in one go.
+	 *
+	 * @param shape
+	 *            The shape of the object.
+	 * @param values
+	 *            The values of the slots of the shape, of which there may be
+	 *            more than size().
+	 */
+	static Object[] of(ParseShape shape, Object[] values)
+	{
+		int size = shape.size();
+		Object[] fields = new Object[VALUES + size];
+		long[] bits = null;
+
+		fields[SHAPE] = shape;
+
+		for (int i = 0; i < size; i++)
+		{
+			Object value = values[i];
+
+			if (isPrimitive(value))
+			{
+				if (bits == null)
+				{
+					bits = new long[size];
+				}
+
+				set(fields, bits, i, value);
+			}
+			else
+			{
+				fields[VALUES + i] = value;
+			}
+		}
+
+		fields[BITS] = bits;
+		return fields;
+	}
+
+	static ParseShape getShape(Object[] fields)
+	{
+		return (ParseShape) fields[SHAPE];
+	}
+
+	/**
+	 * @return The value of a key, or null if there is none.
+	 */
+	static Object get(Object[] fields, String key)
+	{
+		int slot = getShape(fields).getSlot(key);
+
+		return slot < 0 ? null : get(fields, slot);
+	}
+
+	/**
+	 * @return The value of a slot.
+	 */
+	static Object get(Object[] fields, int slot)
+	{
+		Object value = fields[VALUES + slot];
+
+		if (value == INTEGER)
+		{
+			return Integer.valueOf((int) ((long[]) fields[BITS])[slot]);
+		}
+
+		if (value == LONG)
+		{
+			return Long.valueOf(((long[]) fields[BITS])[slot]);
+		}
+
+		if (value == DOUBLE)
+		{
+			return Double.valueOf(Double.longBitsToDouble(((long[]) fields[BITS])[slot]));
+		}
+
+		return value;
+	}
+
+	/**
+	 * @return Fields with a key set to a value, replacing its value if the
+	 *         key is there already.
+	 * @throws NullPointerException
+	 *             If value is null.
+	 */
+	static Object[] with(Object[] fields, String key, Object value)
+	{
+		if (value == null)
+		{
+			throw new NullPointerException("The value of " + key + " is null.");
+		}
+
+		ParseShape shape = getShape(fields);
+		int slot = shape.getSlot(key);
+
+		if (slot < 0)
+		{
+			slot = shape.size();
+			shape = shape.with(key);
+		}
+
+		Object[] copy = Arrays.copyOf(fields, VALUES + shape.size());
+		long[] bits = (long[]) fields[BITS];
+
+		copy[SHAPE] = shape;
+
+		if (isPrimitive(value))
+		{
+			bits = bits == null ? new long[shape.size()] : Arrays.copyOf(bits, shape.size());
+			set(copy, bits, slot, value);
+		}
+		else
+		{
+			copy[VALUES + slot] = value;
+		}
+
+		copy[BITS] = bits;
+		return copy;
+	}
+
+	private static boolean isPrimitive(Object value)
+	{
+		Class<?> type = value.getClass();
+
+		return type == Integer.class || type == Long.class || type == Double.class;
+	}
+
+	private static void set(Object[] fields, long[] bits, int slot, Object value)
+	{
+		if (value instanceof Integer)
+		{
+			fields[VALUES + slot] = INTEGER;
+			bits[slot] = (Integer) value;
+		}
+		else if (value instanceof Long)
+		{
+			fields[VALUES + slot] = LONG;
+			bits[slot] = (Long) value;
+		}
+		else
+		{
+			fields[VALUES + slot] = DOUBLE;
+			bits[slot] = Double.doubleToRawLongBits((Double) value);
+		}
+	}
+}
@@ -0,0 +1,57 @@
+package almonds;
+
+/**
+ * A reference to a file stored by Parse, as held by File fields. This client
+ * does not upload files: a ParseFile names a file already on Parse, which
+ * can be read from its URL. ParseFiles are immutable and compare by name.
+ *
+ * @author js
+ */
+public class ParseFile
+{
+	private final String mName;
+	private final String mUrl;
+
+	/**
+	 * @param name
+	 *            The name Parse gave the file when it was uploaded.
+	 * @param url
+	 *            The URL the file can be read from, or null if it is not
+	 *            known.
+	 */
+	public ParseFile(String name, String url)
+	{
+		if (name == null)
+		{
+			throw new IllegalArgumentException("The name of a file may not be null.");
+		}
+
+		mName = name;
+		mUrl = url;
+	}
+
+	public String getName()
+	{
+		return mName;
+	}
+
+	public String getUrl()
+	{
+		return mUrl;
+	}
+
+	public boolean equals(Object o)
+	{
+		return o instanceof ParseFile && mName.equals(((ParseFile) o).mName);
+	}
+
+	public int hashCode()
+	{
+		return mName.hashCode();
+	}
+
+	public String toString()
+	{
+		return "ParseFile[" + mName + "]";
+	}
+}
@@ -0,0 +1,64 @@
+package almonds;
+
+/**
+ * A point on the globe, as stored by Parse in GeoPoint fields. ParseGeoPoints
+ * are immutable and compare by their coordinates.
+ *
+ * @author js
+ */
+public class ParseGeoPoint
+{
+	private final double mLatitude;
+	private final double mLongitude;
+
+	/**
+	 * @param latitude
+	 *            Degrees north, between -90 and 90.
+	 * @param longitude
+	 *            Degrees east, between -180 and 180.
+	 */
+	public ParseGeoPoint(double latitude, double longitude)
+	{
+		if (!(latitude >= -90 && latitude <= 90) || !(longitude >= -180 && longitude <= 180))
+		{
+			throw new IllegalArgumentException("Invalid coordinates: " + latitude + ", "
+					+ longitude);
+		}
+
+		mLatitude = latitude;
+		mLongitude = longitude;
+	}
+
+	public double getLatitude()
+	{
+		return mLatitude;
+	}
+
+	public double getLongitude()
+	{
+		return mLongitude;
+	}
+
+	public boolean equals(Object o)
+	{
+		if (!(o instanceof ParseGeoPoint))
+		{
+			return false;
+		}
+
+		ParseGeoPoint other = (ParseGeoPoint) o;
+
+		return Double.compare(mLatitude, other.mLatitude) == 0
+				&& Double.compare(mLongitude, other.mLongitude) == 0;
+	}
+
+	public int hashCode()
+	{
+		return 31 * Double.hashCode(mLatitude) + Double.hashCode(mLongitude);
+	}
+
+	public String toString()
+	{
+		return "ParseGeoPoint[" + mLatitude + ", " + mLongitude + "]";
+	}
+}
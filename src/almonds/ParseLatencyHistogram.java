@@ -0,0 +1,183 @@
+package almonds;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of latencies from which percentiles can be read, cheap enough
+ * to record every request: recording a latency increments one counter, with
+ * no lock and no allocation.
+ *
+ * Latencies are counted in microseconds, exactly below 64 and above that in
+ * buckets of about 3% of their value, up to about a day. A percentile is
+ * therefore reported within 3% of the true value.
+ *
+ * @author js
+ */
+public class ParseLatencyHistogram
+{
+	// 2^SUB_BITS buckets per power of two
+	private static final int SUB_BITS = 5;
+	private static final int SUB_COUNT = 1 << SUB_BITS;
+	private static final int LINEAR_COUNT = 2 * SUB_COUNT;
+	private static final int MAX_EXPONENT = 37;
+	private static final int BUCKET_COUNT = LINEAR_COUNT
+			+ (MAX_EXPONENT - SUB_BITS) * SUB_COUNT;
+
+	private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+	private final LongAdder mCount = new LongAdder();
+	private final LongAdder mSum = new LongAdder();
+	private final AtomicLong mMax = new AtomicLong();
+
+	ParseLatencyHistogram()
+	{
+	}
+
+	/**
+	 * Counts a latency.
+	 *
+	 * @param nanos
+	 *            The latency in nanoseconds.
+	 */
+	void record(long nanos)
+	{
+		long micros = Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos));
+
+		mBuckets.incrementAndGet(getBucket(micros));
+		mCount.increment();
+		mSum.add(micros);
+
+		long max = mMax.get();
+
+		while (micros > max && !mMax.compareAndSet(max, micros))
+		{
+			max = mMax.get();
+		}
+	}
+
+	/**
+	 * @return The number of latencies counted.
+	 */
+	public long getCount()
+	{
+		return mCount.sum();
+	}
+
+	/**
+	 * @return The mean latency in milliseconds, or 0 if none was counted.
+	 */
+	public double getMean()
+	{
+		long count = mCount.sum();
+
+		return count == 0 ? 0 : mSum.sum() / 1000.0 / count;
+	}
+
+	/**
+	 * @return The largest latency in milliseconds.
+	 */
+	public double getMax()
+	{
+		return mMax.get() / 1000.0;
+	}
+
+	/**
+	 * @param percentile
+	 *            The percentile, between 0 and 100, such as 99.9.
+	 * @return The latency in milliseconds below which that percentage of the
+	 *         latencies fall, or 0 if none was counted.
+	 */
+	public double getPercentile(double percentile)
+	{
+		long[] counts = new long[BUCKET_COUNT];
+		long total = 0;
+
+		// the buckets are read once, so the result is consistent even while
+		// latencies are being recorded
+		for (int i = 0; i < BUCKET_COUNT; i++)
+		{
+			counts[i] = mBuckets.get(i);
+			total += counts[i];
+		}
+
+		if (total == 0)
+		{
+			return 0;
+		}
+
+		long rank = (long) Math.ceil(Math.min(100, Math.max(0, percentile)) / 100 * total);
+		long seen = 0;
+
+		for (int i = 0; i < BUCKET_COUNT; i++)
+		{
+			seen += counts[i];
+
+			if (seen >= Math.max(1, rank))
+			{
+				return Math.min(getUpperBound(i), mMax.get()) / 1000.0;
+			}
+		}
+
+		return getMax();
+	}
+
+	/**
+	 * Sets the histogram back to empty. Latencies recorded at the same time
+	 * may be partly lost.
+	 */
+	public void reset()
+	{
+		for (int i = 0; i < BUCKET_COUNT; i++)
+		{
+			mBuckets.set(i, 0);
+		}
+
+		mCount.reset();
+		mSum.reset();
+		mMax.set(0);
+	}
+
+	public String toString()
+	{
+		return String.format("count=%d mean=%.3fms p50=%.3fms p95=%.3fms p99=%.3fms max=%.3fms",
+				getCount(), getMean(), getPercentile(50), getPercentile(95), getPercentile(99),
+				getMax());
+	}
+
+	private static int getBucket(long micros)
+	{
+		if (micros < LINEAR_COUNT)
+		{
+			return (int) micros;
+		}
+
+		int exponent = 63 - Long.numberOfLeadingZeros(micros);
+
+		if (exponent >= MAX_EXPONENT)
+		{
+			return BUCKET_COUNT - 1;
+		}
+
+		int sub = (int) (micros >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+
+		return LINEAR_COUNT + (exponent - SUB_BITS - 1) * SUB_COUNT + sub;
+	}
+
+	/**
+	 * @return The largest latency in microseconds counted in a bucket.
+	 */
+	private static long getUpperBound(int bucket)
+	{
+		if (bucket < LINEAR_COUNT)
+		{
+			return bucket;
+		}
+
+		int exponent = (bucket - LINEAR_COUNT) / SUB_COUNT + SUB_BITS + 1;
+		long sub = (bucket - LINEAR_COUNT) % SUB_COUNT;
+
+		return ((SUB_COUNT + sub + 1) << (exponent - SUB_BITS)) - 1;
+	}
+}
@@ -0,0 +1,753 @@
+package almonds;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * The store behind ParseObject.pin() and ParseQuery.fromLocalDatastore(). The
+ * objects are kept in one file in Parse.getLocalDatastoreDirectory(), to which
+ * every pin and unpin is appended as a record: its length, its CRC32 and its
+ * UTF-8 JSON. An index from class name to objectId to the position of the
+ * latest record of the object is kept in memory, so that a query only reads
+ * the objects of its class and a get only one record.
+ *
+ * The index is also written to INDEX_FILE, with the length of the data file
+ * it covers, whenever INDEX_INTERVAL_BYTES more have been appended, when the
+ * file is compacted and when the store is closed. Opening the store reads that
+ * index and replays only the records appended after it, so that it does not
+ * read the whole data file; without a usable index file, every record is
+ * read. The index file is only a shortcut: the data file alone is durable.
+ *
+ * Each call to pin() or unpin() is forced to disk before it returns. Once
+ * records that were replaced or unpinned take more room than the live ones,
+ * the file is rewritten with only the latter. A damaged record at the end of
+ * the file, as left by a crash during a write, is dropped when it is opened.
+ *
+ * @author js
+ */
+class ParseLocalDatastore
+{
+	static final String DATA_FILE = "objects.dat";
+	static final String INDEX_FILE = "objects.idx";
+
+	// the index file is written again once this many bytes are appended
+	static final long INDEX_INTERVAL_BYTES = 1024 * 1024;
+
+	private static final int INDEX_VERSION = 1;
+
+	// the file is only compacted beyond this many bytes of dead records
+	static final long MIN_COMPACTION_BYTES = 1024 * 1024;
+
+	private static final int HEADER_SIZE = 8;
+
+	private static final String FIELD_CLASS_NAME = "className";
+	private static final String FIELD_OBJECT_ID = "objectId";
+	private static final String FIELD_OBJECT = "object";
+
+	private static ParseLocalDatastore mInstance;
+
+	private final File mDirectory;
+	private RandomAccessFile mFile;
+	private FileChannel mChannel;
+	private FileLock mLock;
+
+	// class name to objectId to the position of the latest record
+	private final Map<String, NavigableMap<String, Long>> mIndex =
+			new HashMap<String, NavigableMap<String, Long>>();
+
+	private long mLiveBytes = 0;
+	private long mDeadBytes = 0;
+
+	// the length of the data file the index file covers
+	private long mIndexedBytes = 0;
+
+	/**
+	 * Accessor to the store in Parse.getLocalDatastoreDirectory(), opening it
+	 * on first use.
+	 *
+	 * @throws ParseException
+	 *             If the store cannot be opened.
+	 */
+	static synchronized ParseLocalDatastore getInstance() throws ParseException
+	{
+		File directory = Parse.getLocalDatastoreDirectory();
+
+		if (mInstance != null && !mInstance.mDirectory.equals(directory))
+		{
+			mInstance.close();
+			mInstance = null;
+		}
+
+		if (mInstance == null)
+		{
+			try
+			{
+				mInstance = new ParseLocalDatastore(directory);
+			}
+			catch (IOException e)
+			{
+				throw new ParseException(ParseException.OTHER_CAUSE,
+						"Could not open the local datastore in " + directory + ".", e);
+			}
+		}
+
+		return mInstance;
+	}
+
+	private ParseLocalDatastore(File directory) throws IOException
+	{
+		mDirectory = directory;
+
+		if (!directory.isDirectory() && !directory.mkdirs())
+		{
+			throw new IOException("Cannot create the directory " + directory);
+		}
+
+		open();
+	}
+
+	/**
+	 * Stores objects, replacing the stored copies of the same objects.
+	 *
+	 * @throws ParseException
+	 *             If an object has no objectId or the store cannot be written.
+	 */
+	synchronized void pin(List<ParseObject> objects) throws ParseException
+	{
+		List<JSONObject> records = new ArrayList<JSONObject>();
+
+		for (ParseObject object : objects)
+		{
+			if (object.getObjectId() == null)
+			{
+				throw new ParseException(ParseException.MISSING_OBJECT_ID,
+						"Only an object that has an objectId can be pinned.");
+			}
+
+			try
+			{
+				records.add(newRecord(object).put(FIELD_OBJECT, object.toJSONObject()));
+			}
+			catch (JSONException e)
+			{
+				throw new ParseException(ParseException.INVALID_JSON,
+						"Could not encode the object.", e);
+			}
+		}
+
+		write(records);
+	}
+
+	/**
+	 * Removes objects from the store. Objects that are not stored are
+	 * ignored.
+	 *
+	 * @throws ParseException
+	 *             If the store cannot be written.
+	 */
+	synchronized void unpin(List<ParseObject> objects) throws ParseException
+	{
+		List<JSONObject> records = new ArrayList<JSONObject>();
+
+		for (ParseObject object : objects)
+		{
+			if (object.getObjectId() != null
+					&& getPosition(object.getClassName(), object.getObjectId()) != null)
+			{
+				records.add(newRecord(object));
+			}
+		}
+
+		write(records);
+	}
+
+	/**
+	 * @return The stored object encoded as Parse returns it, or null if it is
+	 *         not stored.
+	 */
+	synchronized JSONObject get(String className, String objectId) throws ParseException
+	{
+		Long position = getPosition(className, objectId);
+
+		try
+		{
+			return position == null ? null : read(position).optJSONObject(FIELD_OBJECT);
+		}
+		catch (IOException e)
+		{
+			throw new ParseException(ParseException.OTHER_CAUSE,
+					"Could not read the local datastore.", e);
+		}
+	}
+
+	/**
+	 * @return Every stored object of a class encoded as Parse returns it,
+	 *         ordered by objectId.
+	 */
+	synchronized List<JSONObject> getAll(String className) throws ParseException
+	{
+		List<JSONObject> objects = new ArrayList<JSONObject>();
+		NavigableMap<String, Long> positions = mIndex.get(className);
+
+		if (positions == null)
+		{
+			return objects;
+		}
+
+		try
+		{
+			for (long position : positions.values())
+			{
+				objects.add(read(position).optJSONObject(FIELD_OBJECT));
+			}
+		}
+		catch (IOException e)
+		{
+			throw new ParseException(ParseException.OTHER_CAUSE,
+					"Could not read the local datastore.", e);
+		}
+
+		return objects;
+	}
+
+	private static JSONObject newRecord(ParseObject object) throws ParseException
+	{
+		try
+		{
+			return new JSONObject().put(FIELD_CLASS_NAME, object.getClassName()).put(
+					FIELD_OBJECT_ID, object.getObjectId());
+		}
+		catch (JSONException e)
+		{
+			throw new ParseException(ParseException.INVALID_JSON, "Could not encode the object.",
+					e);
+		}
+	}
+
+	private Long getPosition(String className, String objectId)
+	{
+		NavigableMap<String, Long> positions = mIndex.get(className);
+
+		return positions == null ? null : positions.get(objectId);
+	}
+
+	/**
+	 * Appends records, forces them to disk and applies them to the index.
+	 */
+	private void write(List<JSONObject> records) throws ParseException
+	{
+		if (records.isEmpty())
+		{
+			return;
+		}
+
+		try
+		{
+			long position = mChannel.size();
+			long[] positions = new long[records.size()];
+			int[] sizes = new int[records.size()];
+
+			for (int i = 0; i < records.size(); i++)
+			{
+				positions[i] = position;
+				sizes[i] = append(mChannel, position, records.get(i));
+				position += sizes[i];
+			}
+
+			mChannel.force(false);
+
+			for (int i = 0; i < records.size(); i++)
+			{
+				apply(records.get(i), positions[i], sizes[i]);
+			}
+
+			if (mDeadBytes > MIN_COMPACTION_BYTES && mDeadBytes > mLiveBytes)
+			{
+				compact();
+			}
+			else if (position - mIndexedBytes > INDEX_INTERVAL_BYTES)
+			{
+				writeIndex();
+			}
+		}
+		catch (IOException e)
+		{
+			throw new ParseException(ParseException.OTHER_CAUSE,
+					"Could not write to the local datastore.", e);
+		}
+	}
+
+	/**
+	 * Applies a record at a position to the index.
+	 */
+	private void apply(JSONObject record, long position, int size) throws IOException
+	{
+		String className = record.optString(FIELD_CLASS_NAME);
+		String objectId = record.optString(FIELD_OBJECT_ID);
+		NavigableMap<String, Long> positions = mIndex.get(className);
+
+		if (positions == null)
+		{
+			positions = new TreeMap<String, Long>();
+			mIndex.put(className, positions);
+		}
+
+		Long previous = positions.remove(objectId);
+
+		if (previous != null)
+		{
+			int previousSize = getSize(previous);
+			mLiveBytes -= previousSize;
+			mDeadBytes += previousSize;
+		}
+
+		if (record.has(FIELD_OBJECT))
+		{
+			positions.put(objectId, position);
+			mLiveBytes += size;
+		}
+		else
+		{
+			// an unpin record is only needed until the file is compacted
+			mDeadBytes += size;
+		}
+
+		if (positions.isEmpty())
+		{
+			mIndex.remove(className);
+		}
+	}
+
+	/**
+	 * Opens the data file and builds the index from the index file and the
+	 * records appended after it, dropping a damaged end.
+	 */
+	private void open() throws IOException
+	{
+		mFile = new RandomAccessFile(new File(mDirectory, DATA_FILE), "rw");
+		mChannel = mFile.getChannel();
+		mLock = mChannel.tryLock();
+
+		if (mLock == null)
+		{
+			mFile.close();
+			throw new IOException("The local datastore in " + mDirectory
+					+ " is used by another process.");
+		}
+
+		long end = mChannel.size();
+		long position = readIndex(end);
+
+		while (position < end)
+		{
+			JSONObject record = readOrNull(position);
+
+			if (record == null)
+			{
+				mChannel.truncate(position);
+				break;
+			}
+
+			int size = getSize(position);
+			apply(record, position, size);
+			position += size;
+		}
+	}
+
+	private void close()
+	{
+		writeIndex();
+		release();
+	}
+
+	private void release()
+	{
+		try
+		{
+			mLock.release();
+			mFile.close();
+		}
+		catch (IOException e)
+		{
+			// the lock goes with the process
+		}
+	}
+
+	/**
+	 * Rewrites the data file with only the latest record of each stored
+	 * object. The new file is locked before it replaces the old one, so that
+	 * no other process can take the store in between, and the store keeps
+	 * using the old file if the new one cannot be written or moved.
+	 */
+	private void compact() throws IOException
+	{
+		File file = new File(mDirectory, DATA_FILE);
+		File temp = new File(mDirectory, DATA_FILE + ".tmp");
+		RandomAccessFile out = new RandomAccessFile(temp, "rw");
+		FileLock lock = null;
+		boolean moved = false;
+
+		Map<String, NavigableMap<String, Long>> index =
+				new HashMap<String, NavigableMap<String, Long>>();
+		long position = 0;
+
+		try
+		{
+			FileChannel channel = out.getChannel();
+			lock = channel.tryLock();
+
+			if (lock == null)
+			{
+				throw new IOException("The local datastore in " + mDirectory
+						+ " is being compacted by another process.");
+			}
+
+			channel.truncate(0);
+
+			for (Map.Entry<String, NavigableMap<String, Long>> entry : mIndex.entrySet())
+			{
+				NavigableMap<String, Long> positions = new TreeMap<String, Long>();
+
+				for (Map.Entry<String, Long> object : entry.getValue().entrySet())
+				{
+					positions.put(object.getKey(), position);
+					position += append(channel, position, read(object.getValue()));
+				}
+
+				index.put(entry.getKey(), positions);
+			}
+
+			channel.force(true);
+
+			// the index file of the old data file must not outlive it
+			new File(mDirectory, INDEX_FILE).delete();
+			mIndexedBytes = 0;
+
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			moved = true;
+		}
+		finally
+		{
+			if (!moved)
+			{
+				if (lock != null)
+				{
+					lock.release();
+				}
+
+				out.close();
+				temp.delete();
+			}
+		}
+
+		syncDirectory();
+
+		// the new file is locked already: the old one can go
+		release();
+		mFile = out;
+		mChannel = out.getChannel();
+		mLock = lock;
+
+		mIndex.clear();
+		mIndex.putAll(index);
+		mLiveBytes = position;
+		mDeadBytes = 0;
+
+		writeIndex();
+	}
+
+	/**
+	 * Loads the index file, if it is intact and covers no more than the data
+	 * file.
+	 *
+	 * @param end
+	 *            The length of the data file.
+	 * @return The position from which the records of the data file must be
+	 *         applied: the length the index file covers, or 0 if there is no
+	 *         usable index file.
+	 */
+	private long readIndex(long end)
+	{
+		mIndex.clear();
+		mLiveBytes = 0;
+		mDeadBytes = 0;
+		mIndexedBytes = 0;
+
+		File file = new File(mDirectory, INDEX_FILE);
+
+		if (!file.exists())
+		{
+			return 0;
+		}
+
+		try
+		{
+			CRC32 crc = new CRC32();
+			DataInputStream in = new DataInputStream(new CheckedInputStream(
+					new BufferedInputStream(new FileInputStream(file)), crc));
+
+			try
+			{
+				if (in.readInt() != INDEX_VERSION)
+				{
+					return 0;
+				}
+
+				long indexed = in.readLong();
+				long live = in.readLong();
+				long dead = in.readLong();
+				int classes = in.readInt();
+
+				for (int i = 0; i < classes; i++)
+				{
+					String className = in.readUTF();
+					int count = in.readInt();
+					NavigableMap<String, Long> positions = new TreeMap<String, Long>();
+
+					for (int j = 0; j < count; j++)
+					{
+						positions.put(in.readUTF(), in.readLong());
+					}
+
+					mIndex.put(className, positions);
+				}
+
+				long expected = crc.getValue();
+
+				if (in.readLong() != expected || indexed > end)
+				{
+					mIndex.clear();
+					return 0;
+				}
+
+				mLiveBytes = live;
+				mDeadBytes = dead;
+				mIndexedBytes = indexed;
+				return indexed;
+			}
+			finally
+			{
+				in.close();
+			}
+		}
+		catch (IOException e)
+		{
+			// a damaged index file: the data file is read whole
+			mIndex.clear();
+			return 0;
+		}
+	}
+
+	/**
+	 * Writes the index, covering the data file as it is, to the index file.
+	 * The index file is left as it was if it cannot be written.
+	 */
+	private void writeIndex()
+	{
+		File file = new File(mDirectory, INDEX_FILE);
+		File temp = new File(mDirectory, INDEX_FILE + ".tmp");
+
+		try
+		{
+			long indexed = mChannel.size();
+			FileOutputStream stream = new FileOutputStream(temp);
+
+			try
+			{
+				CRC32 crc = new CRC32();
+				DataOutputStream out = new DataOutputStream(new CheckedOutputStream(
+						new BufferedOutputStream(stream), crc));
+
+				out.writeInt(INDEX_VERSION);
+				out.writeLong(indexed);
+				out.writeLong(mLiveBytes);
+				out.writeLong(mDeadBytes);
+				out.writeInt(mIndex.size());
+
+				for (Map.Entry<String, NavigableMap<String, Long>> entry : mIndex.entrySet())
+				{
+					out.writeUTF(entry.getKey());
+					out.writeInt(entry.getValue().size());
+
+					for (Map.Entry<String, Long> object : entry.getValue().entrySet())
+					{
+						out.writeUTF(object.getKey());
+						out.writeLong(object.getValue());
+					}
+				}
+
+				out.writeLong(crc.getValue());
+				out.flush();
+				stream.getFD().sync();
+			}
+			finally
+			{
+				stream.close();
+			}
+
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			mIndexedBytes = indexed;
+		}
+		catch (IOException e)
+		{
+			// the records after the previous index file are replayed instead
+			temp.delete();
+		}
+	}
+
+	/**
+	 * Forces the entries of the directory of the store to disk, so that the
+	 * data file a move put in place survives a crash.
+	 */
+	private void syncDirectory()
+	{
+		try
+		{
+			FileChannel directory = FileChannel.open(mDirectory.toPath(),
+					StandardOpenOption.READ);
+
+			try
+			{
+				directory.force(true);
+			}
+			finally
+			{
+				directory.close();
+			}
+		}
+		catch (IOException e)
+		{
+			// not every platform can open a directory; the move itself is atomic
+		}
+	}
+
+	/**
+	 * Writes a record at a position of a channel.
+	 *
+	 * @return The size of the record.
+	 */
+	private static int append(FileChannel channel, long position, JSONObject record)
+			throws IOException
+	{
+		byte[] bytes = record.toString().getBytes(StandardCharsets.UTF_8);
+		CRC32 crc = new CRC32();
+		crc.update(bytes);
+
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + bytes.length);
+		buffer.putInt(bytes.length);
+		buffer.putInt((int) crc.getValue());
+		buffer.put(bytes);
+		buffer.flip();
+
+		while (buffer.hasRemaining())
+		{
+			position += channel.write(buffer, position);
+		}
+
+		return HEADER_SIZE + bytes.length;
+	}
+
+	private int getSize(long position) throws IOException
+	{
+		ByteBuffer header = ByteBuffer.allocate(4);
+		readFully(header, position);
+
+		return HEADER_SIZE + header.getInt(0);
+	}
+
+	private JSONObject read(long position) throws IOException
+	{
+		JSONObject record = readOrNull(position);
+
+		if (record == null)
+		{
+			throw new IOException("Damaged record at " + position + " of the local datastore.");
+		}
+
+		return record;
+	}
+
+	/**
+	 * Reads the record at a position.
+	 *
+	 * @return The record, or null if it is damaged or incomplete.
+	 */
+	private JSONObject readOrNull(long position) throws IOException
+	{
+		if (position + HEADER_SIZE > mChannel.size())
+		{
+			return null;
+		}
+
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		readFully(header, position);
+
+		int length = header.getInt(0);
+
+		if (length <= 0 || position + HEADER_SIZE + length > mChannel.size())
+		{
+			return null;
+		}
+
+		ByteBuffer body = ByteBuffer.allocate(length);
+		readFully(body, position + HEADER_SIZE);
+
+		CRC32 crc = new CRC32();
+		crc.update(body.array());
+
+		if ((int) crc.getValue() != header.getInt(4))
+		{
+			return null;
+		}
+
+		try
+		{
+			return new JSONObject(new String(body.array(), StandardCharsets.UTF_8));
+		}
+		catch (JSONException e)
+		{
+			return null;
+		}
+	}
+
+	private void readFully(ByteBuffer buffer, long position) throws IOException
+	{
+		while (buffer.hasRemaining())
+		{
+			int n = mChannel.read(buffer, position + buffer.position());
+
+			if (n < 0)
+			{
+				throw new IOException("Unexpected end of the local datastore.");
+			}
+		}
+	}
+}
@@ -0,0 +1,266 @@
+package almonds;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+
+/**
+ * What the client is doing: the ParseOperationMetrics of each operation, and
+ * the utilization of the connection pool and of the background executor.
+ * Accessed with Parse.getMetrics().
+ *
+ * The metrics can be read directly, exposed through JMX with registerMBeans(),
+ * or pushed periodically to a ParseMetricsReporter. Recording them costs a few
+ * uncontended atomic increments per call.
+ *
+ * @author js
+ */
+public class ParseMetrics implements ParseMetricsMXBean
+{
+	/**
+	 * The domain of the names under which registerMBeans() registers the
+	 * metrics.
+	 */
+	public static final String JMX_DOMAIN = "almonds";
+
+	private final Map<ParseOperation, ParseOperationMetrics> mOperations =
+			new EnumMap<ParseOperation, ParseOperationMetrics>(ParseOperation.class);
+
+	private final Map<ParseMetricsReporter, ScheduledFuture<?>> mReporters =
+			new ConcurrentHashMap<ParseMetricsReporter, ScheduledFuture<?>>();
+
+	private final List<ObjectName> mRegistered = new ArrayList<ObjectName>();
+
+	ParseMetrics()
+	{
+		for (ParseOperation operation : ParseOperation.values())
+		{
+			mOperations.put(operation, new ParseOperationMetrics(operation));
+		}
+	}
+
+	/**
+	 * @param operation
+	 * @return The live metrics of the operation.
+	 */
+	public ParseOperationMetrics getOperationMetrics(ParseOperation operation)
+	{
+		return mOperations.get(operation);
+	}
+
+	/**
+	 * @return The live metrics of every operation.
+	 */
+	public Collection<ParseOperationMetrics> getOperationMetrics()
+	{
+		return Collections.unmodifiableCollection(mOperations.values());
+	}
+
+	public int getConnectionsLeased()
+	{
+		PoolStats stats = getPoolStats();
+		return stats == null ? -1 : stats.getLeased();
+	}
+
+	public int getConnectionsAvailable()
+	{
+		PoolStats stats = getPoolStats();
+		return stats == null ? -1 : stats.getAvailable();
+	}
+
+	public int getConnectionsPending()
+	{
+		PoolStats stats = getPoolStats();
+		return stats == null ? -1 : stats.getPending();
+	}
+
+	public int getConnectionsMax()
+	{
+		PoolStats stats = getPoolStats();
+		return stats == null ? -1 : stats.getMax();
+	}
+
+	public int getExecutorActiveThreads()
+	{
+		ThreadPoolExecutor executor = getThreadPoolExecutor();
+		return executor == null ? -1 : executor.getActiveCount();
+	}
+
+	public int getExecutorPoolSize()
+	{
+		ThreadPoolExecutor executor = getThreadPoolExecutor();
+		return executor == null ? -1 : executor.getPoolSize();
+	}
+
+	public int getExecutorQueueSize()
+	{
+		ThreadPoolExecutor executor = getThreadPoolExecutor();
+		return executor == null ? -1 : executor.getQueue().size();
+	}
+
+	public long getExecutorCompletedTasks()
+	{
+		ThreadPoolExecutor executor = getThreadPoolExecutor();
+		return executor == null ? -1 : executor.getCompletedTaskCount();
+	}
+
+	/**
+	 * Sets the metrics of every operation back to zero.
+	 */
+	public void reset()
+	{
+		for (ParseOperationMetrics metrics : mOperations.values())
+		{
+			metrics.reset();
+		}
+	}
+
+	/**
+	 * Calls a reporter with these metrics once per period, on
+	 * Parse.getExecutor(), until it is removed.
+	 * 
+	 * @param reporter
+	 * @param period
+	 * @param unit
+	 */
+	public void addReporter(final ParseMetricsReporter reporter, long period, TimeUnit unit)
+	{
+		ScheduledFuture<?> future = ParseExecutors.getScheduler().scheduleAtFixedRate(
+				() -> Parse.getExecutor().execute(() -> reporter.report(this)), period, period,
+				unit);
+		ScheduledFuture<?> previous = mReporters.put(reporter, future);
+
+		if (previous != null)
+		{
+			previous.cancel(false);
+		}
+	}
+
+	/**
+	 * Stops calling a reporter. A report already under way completes.
+	 * 
+	 * @param reporter
+	 */
+	public void removeReporter(ParseMetricsReporter reporter)
+	{
+		ScheduledFuture<?> future = mReporters.remove(reporter);
+
+		if (future != null)
+		{
+			future.cancel(false);
+		}
+	}
+
+	/**
+	 * Registers these metrics with the platform MBean server: this object as
+	 * almonds:type=ParseMetrics, and the metrics of each operation as
+	 * almonds:type=ParseOperationMetrics,operation=FIND and so on.
+	 * 
+	 * @throws JMException
+	 *             If the MBeans cannot be registered, for instance because
+	 *             they already are.
+	 */
+	public synchronized void registerMBeans() throws JMException
+	{
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName(JMX_DOMAIN + ":type=ParseMetrics");
+
+		server.registerMBean(this, name);
+		mRegistered.add(name);
+
+		for (ParseOperationMetrics metrics : mOperations.values())
+		{
+			name = new ObjectName(JMX_DOMAIN + ":type=ParseOperationMetrics,operation="
+					+ metrics.getOperation());
+
+			server.registerMBean(metrics, name);
+			mRegistered.add(name);
+		}
+	}
+
+	/**
+	 * Removes the MBeans registered by registerMBeans().
+	 * 
+	 * @throws JMException
+	 */
+	public synchronized void unregisterMBeans() throws JMException
+	{
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+		for (ObjectName name : mRegistered)
+		{
+			if (server.isRegistered(name))
+			{
+				server.unregisterMBean(name);
+			}
+		}
+
+		mRegistered.clear();
+	}
+
+	public String toString()
+	{
+		StringBuilder builder = new StringBuilder();
+
+		for (ParseOperationMetrics metrics : mOperations.values())
+		{
+			if (metrics.getCalls() > 0)
+			{
+				builder.append(metrics).append('\n');
+			}
+		}
+
+		builder.append("connections leased=").append(getConnectionsLeased())
+				.append(" available=").append(getConnectionsAvailable())
+				.append(" pending=").append(getConnectionsPending())
+				.append(" max=").append(getConnectionsMax())
+				.append(", executor active=").append(getExecutorActiveThreads())
+				.append(" pool=").append(getExecutorPoolSize())
+				.append(" queued=").append(getExecutorQueueSize());
+
+		return builder.toString();
+	}
+
+	/**
+	 * Counts a call of an operation, see ParseOperationMetrics.
+	 */
+	void record(ParseOperation operation, String className, long nanos, ParseException error)
+	{
+		mOperations.get(operation).record(className, nanos, error);
+	}
+
+	void addRowsDecoded(ParseOperation operation, long rows)
+	{
+		mOperations.get(operation).addRowsDecoded(rows);
+	}
+
+	private static PoolStats getPoolStats()
+	{
+		PoolingHttpClientConnectionManager manager = Util.getConnectionManager();
+
+		return manager == null ? null : manager.getTotalStats();
+	}
+
+	private static ThreadPoolExecutor getThreadPoolExecutor()
+	{
+		ExecutorService executor = Parse.getExecutor();
+
+		return executor instanceof ThreadPoolExecutor ? (ThreadPoolExecutor) executor : null;
+	}
+}
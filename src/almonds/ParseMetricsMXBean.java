@@ -0,0 +1,30 @@
+package almonds;
+
+/**
+ * The JMX view of the connection pool and background executor of the client,
+ * registered by ParseMetrics.registerMBeans(). The connections are those of
+ * the pool of the blocking client. A value is -1 when it is not known, such
+ * as before the first request or with an executor that does not report it.
+ *
+ * @author js
+ */
+public interface ParseMetricsMXBean
+{
+	int getConnectionsLeased();
+
+	int getConnectionsAvailable();
+
+	int getConnectionsPending();
+
+	int getConnectionsMax();
+
+	int getExecutorActiveThreads();
+
+	int getExecutorPoolSize();
+
+	int getExecutorQueueSize();
+
+	long getExecutorCompletedTasks();
+
+	void reset();
+}
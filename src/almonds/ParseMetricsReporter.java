@@ -0,0 +1,19 @@
+package almonds;
+
+/**
+ * Receives the metrics of the client periodically, to send them to a
+ * monitoring system. Add one with ParseMetrics.addReporter().
+ *
+ * @author js
+ */
+public interface ParseMetricsReporter
+{
+	/**
+	 * Called on Parse.getExecutor() once per period. The metrics are live, so
+	 * they keep changing while they are being read.
+	 * 
+	 * @param metrics
+	 *            The metrics of the client.
+	 */
+	void report(ParseMetrics metrics);
+}
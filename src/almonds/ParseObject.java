@@ -1,19 +1,27 @@
 package almonds;
 
-import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
-import java.util.Hashtable;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
-import org.apache.http.HttpEntity;
-import org.apache.http.HttpResponse;
-import org.apache.http.client.ClientProtocolException;
-import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpDelete;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpPut;
+import org.apache.http.entity.ContentType;
 import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.util.EntityUtils;
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -36,6 +44,14 @@ public class ParseObject
 {
 	private static final String FIELD_CREATED_AT = "createdAt";
 	private static final String FIELD_UPDATED_AT = "updatedAt";
+	private static final String FIELD_OBJECT_ID = "objectId";
+	private static final String FIELD_TYPE = "__type";
+	private static final String FIELD_CLASS_NAME = "className";
+
+
+	// the most objectIds fetchAllPointers() puts in one $in query, which keeps
+	// the encoded query URL well within the limits of common servers
+	private static final int MAX_POINTERS_PER_QUERY = 100;
 
 	/**
 	 * Creates a new ParseObject based upon a class name. If the class name is a
@@ -51,9 +67,287 @@ public class ParseObject
 		return new ParseObject(className);
 	}
 
+	/**
+	 * Saves each of the objects to the server, using as few batch requests as
+	 * possible. As with save(), new objects are created and get their
+	 * objectId and createdAt set, while objects that already have an objectId
+	 * are updated with their changed keys and get their updatedAt set.
+	 * 
+	 * @param objects
+	 *            The objects to save.
+	 * @throws ParseException
+	 *             A ParseBatchException listing the objects that could not be
+	 *             saved. The other objects were saved.
+	 */
+	public static void saveAll(List<ParseObject> objects) throws ParseException
+	{
+		new ParseBatch(ParseBatch.METHOD_SAVE, objects).execute();
+	}
+
+	/**
+	 * Updates each of the existing objects on the server, using as few batch
+	 * requests as possible. As with update(), only changed keys are sent and
+	 * objects without changes are skipped. Each object gets its updatedAt set
+	 * on success.
+	 * 
+	 * @param objects
+	 *            The objects to update. Each must have an objectId.
+	 * @throws ParseException
+	 *             A ParseBatchException listing the objects that could not be
+	 *             updated. The other objects were updated.
+	 */
+	public static void updateAll(List<ParseObject> objects) throws ParseException
+	{
+		new ParseBatch(ParseBatch.METHOD_PUT, objects).execute();
+	}
+
+	/**
+	 * Deletes each of the objects on the server, using as few batch requests
+	 * as possible. This does not delete or destroy the objects locally.
+	 * 
+	 * @param objects
+	 *            The objects to delete. Each must have an objectId.
+	 * @throws ParseException
+	 *             A ParseBatchException listing the objects that could not be
+	 *             deleted. The other objects were deleted.
+	 */
+	public static void deleteAll(List<ParseObject> objects) throws ParseException
+	{
+		new ParseBatch(ParseBatch.METHOD_DELETE, objects).execute();
+	}
+
+	/**
+	 * Stores each of the objects in the local datastore, as pin() does, with a
+	 * single write to disk.
+	 * 
+	 * @param objects
+	 *            The objects to store. Each must have an objectId.
+	 * @throws ParseException
+	 *             If an object has no objectId or the local datastore cannot
+	 *             be written. No object is stored then.
+	 */
+	public static void pinAll(List<ParseObject> objects) throws ParseException
+	{
+		ParseLocalDatastore.getInstance().pin(objects);
+	}
+
+	/**
+	 * Removes each of the objects from the local datastore, as unpin() does.
+	 * 
+	 * @param objects
+	 *            The objects to remove.
+	 * @throws ParseException
+	 *             If the local datastore cannot be written.
+	 */
+	public static void unpinAll(List<ParseObject> objects) throws ParseException
+	{
+		ParseLocalDatastore.getInstance().unpin(objects);
+	}
+
+	/**
+	 * Fetches the objects pointed to by a key of each of the objects, so they
+	 * can be read with getParseObject(key). The distinct pointers are fetched
+	 * with as few queries as possible, at most MAX_POINTERS_PER_QUERY each,
+	 * rather than with one request per object. Values that are not pointers,
+	 * or whose object no longer exists, are left as they are.
+	 * 
+	 * Prefer ParseQuery.include() when the objects are being queried anyway;
+	 * this is for objects that were obtained without it.
+	 * 
+	 * @param objects
+	 *            The objects whose pointers to fetch.
+	 * @param key
+	 *            The key holding the pointers.
+	 * @return The distinct objects fetched.
+	 * @throws ParseException
+	 *             If any of the queries fails. No object is changed then.
+	 */
+	public static List<ParseObject> fetchAllPointers(List<ParseObject> objects, String key)
+			throws ParseException
+	{
+		// distinct objectIds to fetch, by class name
+		Map<String, Set<String>> pointers = new LinkedHashMap<String, Set<String>>();
+
+		for (ParseObject object : objects)
+		{
+			Object value = ParseFields.get(object.mFields, key);
+
+			if (value instanceof ParsePointer)
+			{
+				ParsePointer pointer = (ParsePointer) value;
+				Set<String> ids = pointers.get(pointer.getClassName());
+
+				if (ids == null)
+				{
+					ids = new LinkedHashSet<String>();
+					pointers.put(pointer.getClassName(), ids);
+				}
+
+				ids.add(pointer.getObjectId());
+			}
+		}
+
+		List<CompletableFuture<List<ParseObject>>> futures =
+				new ArrayList<CompletableFuture<List<ParseObject>>>();
+
+		for (Map.Entry<String, Set<String>> entry : pointers.entrySet())
+		{
+			List<String> ids = new ArrayList<String>(entry.getValue());
+
+			for (int from = 0; from < ids.size(); from += MAX_POINTERS_PER_QUERY)
+			{
+				List<String> chunk = ids.subList(from,
+						Math.min(from + MAX_POINTERS_PER_QUERY, ids.size()));
+
+				ParseQuery query = new ParseQuery(entry.getKey());
+				query.whereContainedIn(FIELD_OBJECT_ID, chunk);
+				query.setLimit(chunk.size());
+				query.setPriority(ParseRateLimiter.Priority.BACKGROUND);
+
+				futures.add(query.findAsync());
+			}
+		}
+
+		// fetched objects, by the pointers to them
+		Map<ParsePointer, ParseObject> fetched = new LinkedHashMap<ParsePointer, ParseObject>();
+
+		try
+		{
+			for (CompletableFuture<List<ParseObject>> future : futures)
+			{
+				for (ParseObject object : future.join())
+				{
+					fetched.put(object.getPointer(), object);
+				}
+			}
+		}
+		catch (CompletionException e)
+		{
+			throw ParseCommand.toParseException(e);
+		}
+
+		for (ParseObject object : objects)
+		{
+			Object value = ParseFields.get(object.mFields, key);
+
+			if (value instanceof ParsePointer)
+			{
+				ParseObject target = fetched.get(value);
+
+				// the pointer itself is unchanged, so the key does not become
+				// dirty
+				if (target != null)
+				{
+					object.setField(key, target);
+				}
+			}
+		}
+
+		return new ArrayList<ParseObject>(fetched.values());
+	}
+
+	/**
+	 * Encodes a value for a request to Parse: other ParseObjects are sent as
+	 * pointers, and Dates, byte arrays, ParseFiles and ParseGeoPoints as the
+	 * typed values ParseDecoder decodes, including inside collections and
+	 * maps.
+	 */
+	static Object encode(Object value) throws JSONException
+	{
+		if (value instanceof ParseObject)
+		{
+			return ((ParseObject) value).getPointer();
+		}
+
+		if (value instanceof Date)
+		{
+			JSONObject date = new JSONObject();
+			date.put(ParseDecoder.FIELD_TYPE, ParseDecoder.TYPE_DATE);
+			date.put(ParseDecoder.FIELD_ISO, ParseDateFormat.format((Date) value));
+
+			return date;
+		}
+
+		if (value instanceof byte[])
+		{
+			JSONObject bytes = new JSONObject();
+			bytes.put(ParseDecoder.FIELD_TYPE, ParseDecoder.TYPE_BYTES);
+			bytes.put(ParseDecoder.FIELD_BASE64,
+					Base64.getEncoder().encodeToString((byte[]) value));
+
+			return bytes;
+		}
+
+		if (value instanceof ParseFile)
+		{
+			ParseFile file = (ParseFile) value;
+			JSONObject json = new JSONObject();
+			json.put(ParseDecoder.FIELD_TYPE, ParseDecoder.TYPE_FILE);
+			json.put(ParseDecoder.FIELD_NAME, file.getName());
+
+			if (file.getUrl() != null)
+			{
+				json.put(ParseDecoder.FIELD_URL, file.getUrl());
+			}
+
+			return json;
+		}
+
+		if (value instanceof ParseGeoPoint)
+		{
+			ParseGeoPoint point = (ParseGeoPoint) value;
+			JSONObject json = new JSONObject();
+			json.put(ParseDecoder.FIELD_TYPE, ParseDecoder.TYPE_GEO_POINT);
+			json.put(ParseDecoder.FIELD_LATITUDE, point.getLatitude());
+			json.put(ParseDecoder.FIELD_LONGITUDE, point.getLongitude());
+
+			return json;
+		}
+
+		if (value instanceof Collection)
+		{
+			JSONArray array = new JSONArray();
+
+			for (Object element : (Collection<?>) value)
+			{
+				array.put(encode(element));
+			}
+
+			return array;
+		}
+
+		if (value instanceof Map)
+		{
+			JSONObject map = new JSONObject();
+
+			for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet())
+			{
+				map.put(String.valueOf(entry.getKey()), encode(entry.getValue()));
+			}
+
+			return map;
+		}
+
+		return value;
+	}
+
 	private String mClassName;
 
-	private Hashtable<String, Object> mData;
+	// the keys and values of this object, see ParseFields; replaced as a
+	// whole under the lock of this object, and read without it
+	private volatile Object[] mFields;
+
+	// keys put() since the object was last fetched or saved, or null if there
+	// are none; guarded by the lock of this object
+	private Set<String> mDirtyKeys;
+
+	// the keys a partial object was fetched with, or null if every key was
+	// fetched
+	private Set<String> mSelectedKeys;
+
+	// the id by which the eventually queue refers to this object until Parse
+	// assigns its objectId
+	private String mLocalId;
 
 	/**
 	 * Constructs a new ParseObject with no data in it. A ParseObject
@@ -69,16 +363,13 @@ public class ParseObject
 	public ParseObject(String theClassName)
 	{
 		mClassName = theClassName;
-		mData = new Hashtable<String, Object>();
-
+		mFields = ParseFields.empty(ParseShape.getRoot(theClassName));
 	}
 
 	/**
-	 * Used to support a query that returns an object from Parse encoded with
-	 * JSON. This constructor will create itself from the JSON. This is probably
-	 * a poor method, especially if the JSON is mal-formed. A better approach
-	 * would be move the handling to ParseQuery, where it alone would
-	 * understands query responses from Parse.
+	 * Creates an object from its JSON as returned by Parse, with no dirty
+	 * keys. Typed values are decoded by ParseDecoder, and the createdAt and
+	 * updatedAt strings become Dates.
 	 * 
 	 * @param theClassName
 	 *            The className for this ParseObject
@@ -87,112 +378,195 @@ public class ParseObject
 	 *            ParseObject
 	 */
 	ParseObject(String theClassName, JSONObject json)
+	{
+		this(theClassName, json, false);
+	}
+
+	/**
+	 * @param embedded
+	 *            Whether json is an object embedded for an included key, whose
+	 *            __type and className members are not fields.
+	 */
+	ParseObject(String theClassName, JSONObject json, boolean embedded)
 	{
 		mClassName = theClassName;
-		mData = new Hashtable<String, Object>();
 
-		for (String name : JSONObject.getNames(json))
+		ParseShape shape = ParseShape.getRoot(theClassName);
+		String[] names = JSONObject.getNames(json);
+
+		if (names == null)
+		{
+			mFields = ParseFields.empty(shape);
+			return;
+		}
+
+		String[] keys = new String[names.length];
+		Object[] values = new Object[names.length];
+		int count = 0;
+
+		for (String name : names)
 		{
-			try
+			if (embedded && (name.equals(FIELD_TYPE) || name.equals(FIELD_CLASS_NAME)))
 			{
-				/*
-				 * Check for data types here. If the 'value' is JSONObject then
-				 * there's additional data type information.
-				 */
-				if (json.get(name).getClass().getName().equals("org.json.JSONObject"))
-				{
-					JSONObject oType = (JSONObject) json.get(name);
-
-					if (oType.get("__type").equals("Pointer"))
-					{
-						System.out.println("Found Pointer");
-						put(name,
-								new ParsePointer(oType.getString("className"), oType
-										.getString("objectId")));
-					}
-					else if (oType.get("__type").equals("Date"))
-					{
-						throw new UnsupportedOperationException();
-					}
-				}
-				else
-				{
-					Object value = json.get(name); // the value associated with
-													// key 'name'
-
-					/*
-					 * Check for special fields, createdAt and updatedAt, which
-					 * will be formatted and stored as Dates.
-					 */
-					if (name.equals(FIELD_CREATED_AT) || name.equals(FIELD_UPDATED_AT))
-					{
-						value = javax.xml.bind.DatatypeConverter.parseDateTime((String) value)
-								.getTime();
-					}
-
-					put(name, value);
-				}
+				continue;
+			}
+
+			Object value = json.opt(name);
+
+			if (value instanceof JSONObject || value instanceof JSONArray)
+			{
+				value = ParseDecoder.decode(value);
 			}
-			catch (JSONException e)
+			else if (value instanceof String
+					&& (name.equals(FIELD_CREATED_AT) || name.equals(FIELD_UPDATED_AT)))
 			{
+				Date date = ParseDateFormat.parse((String) value);
 
+				if (date != null)
+				{
+					value = date;
+				}
 			}
+
+			keys[count] = name;
+			values[count] = value;
+			count++;
 		}
 
+		// the keys of the rows of a query come in the same order, so the rows
+		// share their shapes
+		mFields = ParseFields.of(shape.with(keys, count), values);
 	}
 
 	/**
-	 * Whether this object has a particular key. Same as 'has'.
-	 * 
-	 * @param key
-	 *            The key to check for
-	 * @return Returns whether this object contains the key
+	 * Creates a copy of this object with its own data, so that changes to one
+	 * do not affect the other. Values that can be changed in place, such as
+	 * included ParseObjects, lists, maps, byte arrays, Dates and JSON, are
+	 * copied as deep as they go.
 	 */
-	public boolean containsKey(String key)
+	ParseObject copy()
+	{
+		ParseObject copy = new ParseObject(mClassName);
+		Set<String> dirtyKeys = getDirtyKeySnapshot();
+
+		copy.mFields = copyFields(mFields);
+		copy.mDirtyKeys = dirtyKeys.isEmpty() ? null : dirtyKeys;
+		copy.mSelectedKeys = mSelectedKeys;
+		copy.mLocalId = mLocalId;
+
+		return copy;
+	}
+
+	/**
+	 * @return The fields themselves if they hold no value that can be changed
+	 *         in place, since fields are never changed once built, or else
+	 *         fields with a copy of each such value.
+	 */
+	private static Object[] copyFields(Object[] fields)
 	{
-		return mData.containsKey(key);
+		ParseShape shape = ParseFields.getShape(fields);
+		Object[] values = null;
+
+		for (int i = 0; i < shape.size(); i++)
+		{
+			Object value = ParseFields.get(fields, i);
+			Object copy = copyValue(value);
+
+			if (copy != value && values == null)
+			{
+				values = new Object[shape.size()];
+
+				for (int j = 0; j < i; j++)
+				{
+					values[j] = ParseFields.get(fields, j);
+				}
+			}
+
+			if (values != null)
+			{
+				values[i] = copy;
+			}
+		}
+
+		return values == null ? fields : ParseFields.of(shape, values);
 	}
 
 	/**
-	 * A private helper class to facilitate running a ParseObject delete
-	 * operation in the background.
-	 * 
-	 * @author js
-	 * 
+	 * @return A deep copy of a value that can be changed in place, or the
+	 *         value itself.
 	 */
-	class DeleteInBackgroundThread extends Thread
+	private static Object copyValue(Object value)
 	{
-		DeleteCallback mDeleteCallback;
+		if (value instanceof ParseObject)
+		{
+			return ((ParseObject) value).copy();
+		}
+
+		if (value instanceof Date)
+		{
+			return new Date(((Date) value).getTime());
+		}
+
+		if (value instanceof byte[])
+		{
+			return ((byte[]) value).clone();
+		}
 
-		/**
-		 * 
-		 * @param callback
-		 *            A function object of type DeleteCallback, whose method
-		 *            done will be called upon completion
-		 */
-		DeleteInBackgroundThread(DeleteCallback callback)
+		if (value instanceof Collection)
 		{
-			mDeleteCallback = callback;
+			Collection<Object> copy = value instanceof Set ? new LinkedHashSet<Object>()
+					: new ArrayList<Object>(((Collection<?>) value).size());
+
+			for (Object element : (Collection<?>) value)
+			{
+				copy.add(copyValue(element));
+			}
+
+			return copy;
 		}
 
-		public void run()
+		if (value instanceof Map)
 		{
-			ParseException exception = null;
+			Map<Object, Object> copy = new LinkedHashMap<Object, Object>();
 
-			try
+			for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet())
 			{
-				delete();
+				copy.put(entry.getKey(), copyValue(entry.getValue()));
 			}
-			catch (ParseException e)
+
+			return copy;
+		}
+
+		try
+		{
+			if (value instanceof JSONObject)
 			{
-				exception = e;
+				return new JSONObject(value.toString());
 			}
 
-			if (mDeleteCallback != null)
+			if (value instanceof JSONArray)
 			{
-				mDeleteCallback.done(exception);
+				return new JSONArray(value.toString());
 			}
 		}
+		catch (JSONException e)
+		{
+			// cannot happen for JSON that was written by org.json
+		}
+
+		return value;
+	}
+
+	/**
+	 * Whether this object has a particular key. Same as 'has'.
+	 * 
+	 * @param key
+	 *            The key to check for
+	 * @return Returns whether this object contains the key
+	 */
+	public boolean containsKey(String key)
+	{
+		return ParseFields.getShape(mFields).getSlot(key) >= 0;
 	}
 
 	/**
@@ -213,10 +587,15 @@ public class ParseObject
 	 * @param callback
 	 *            callback.done(e) is called when the save completes.
 	 */
-	public void deleteInBackground(DeleteCallback callback)
+	public void deleteInBackground(final DeleteCallback callback)
 	{
-		DeleteInBackgroundThread thread = new DeleteInBackgroundThread(callback);
-		thread.run();
+		CompletableFuture<Void> future = deleteAsync();
+
+		if (callback != null)
+		{
+			future.whenCompleteAsync((result, t) -> callback.done(t == null ? null
+					: ParseCommand.toParseException(t)), Parse.getCallbackExecutor());
+		}
 	}
 
 	/**
@@ -230,36 +609,40 @@ public class ParseObject
 	 */
 	public void delete() throws ParseException
 	{
-		try
-		{
-			HttpClient httpclient = Util.newHttpClient();
-			HttpDelete httpdelete = new HttpDelete(Parse.getParseAPIUrlClasses() + mClassName + "/"
-					+ getObjectId());
-			httpdelete.addHeader("X-Parse-Application-Id", Parse.getApplicationId());
-			httpdelete.addHeader("X-Parse-REST-API-Key", Parse.getRestAPIKey());
+		ParseCommand.execute(ParseOperation.DELETE, newDeleteRequest(),
+				this::handleDeleteResponse);
+	}
 
-			HttpResponse httpresponse = httpclient.execute(httpdelete);
-			HttpEntity entity = httpresponse.getEntity();
+	/**
+	 * Deletes this object on the server without blocking the calling thread.
+	 * This does not delete or destroy the object locally.
+	 * 
+	 * @return A future completed once the object is deleted, or exceptionally
+	 *         with a ParseException if the object does not exist or the
+	 *         internet fails.
+	 */
+	public CompletableFuture<Void> deleteAsync()
+	{
+		return ParseCommand.executeAsync(ParseOperation.DELETE, newDeleteRequest(),
+				this::handleDeleteResponse);
+	}
 
-			ParseResponse response = new ParseResponse(httpresponse);
+	private HttpDelete newDeleteRequest()
+	{
+		return new HttpDelete(Parse.getParseAPIUrlClasses() + mClassName + "/" + getObjectId());
+	}
 
-			if (!response.isFailed())
-			{
-				// delete was successful
-			}
-			else
-			{
-				throw response.getException();
-			}
-		}
-		catch (ClientProtocolException e)
-		{
-			throw ParseResponse.getConnectionFailedException(e.getMessage());
-		}
-		catch (IOException e)
+	private Void handleDeleteResponse(ParseResponse response) throws ParseException
+	{
+		if (response.isFailed())
 		{
-			throw ParseResponse.getConnectionFailedException(e.getMessage());
+			throw response.getException();
 		}
+
+		// delete was successful
+
+		Parse.getCache().removeObject(mClassName, getObjectId());
+		return null;
 	}
 
 	/**
@@ -281,7 +664,7 @@ public class ParseObject
 	 */
 	public String getObjectId()
 	{
-		return (String) mData.get("objectId");
+		return (String) ParseFields.get(mFields, FIELD_OBJECT_ID);
 	}
 
 	/**
@@ -294,17 +677,39 @@ public class ParseObject
 	 */
 	public void setObjectId(String objectId)
 	{
-		mData.put("objectId", objectId);
+		setField(FIELD_OBJECT_ID, objectId);
 	}
 
 	public void setCreatedAt(String createdAt)
 	{
-		mData.put("createdAt", createdAt);
+		setField(FIELD_CREATED_AT, createdAt);
 	}
 	
 	public void setUpdatedAt(String updatedAt)
 	{
-		mData.put(FIELD_UPDATED_AT, updatedAt);
+		setField(FIELD_UPDATED_AT, updatedAt);
+	}
+
+	String getLocalId()
+	{
+		return mLocalId;
+	}
+
+	/**
+	 * Takes the fields Parse assigned to a copy of this object written by the
+	 * eventually queue.
+	 */
+	void setServerFields(ParseObject written)
+	{
+		for (String key : new String[] {FIELD_OBJECT_ID, FIELD_CREATED_AT, FIELD_UPDATED_AT})
+		{
+			Object value = ParseFields.get(written.mFields, key);
+
+			if (value != null)
+			{
+				setField(key, value);
+			}
+		}
 	}
 
 	/**
@@ -319,21 +724,46 @@ public class ParseObject
 	{
 		Object value = get(key);
 
+		// an object fetched through include() or fetchAllPointers() still
+		// stands for the pointer
+
+		if (value instanceof ParseObject)
+			return ((ParseObject) value).getPointer();
+
 		// test for no such key or not a ParsePointer
 
-		if (value == null || value.getClass() != ParsePointer.class)
+		if (!(value instanceof ParsePointer))
 			return null;
 
 		return (ParsePointer) value;
 	}
 
 	/**
-	 * Creates and returns a new ParsePointer object that points to the object
-	 * it's called on. Use when other objects need to point to *this* object.
+	 * Access a nested ParseObject value, as fetched through
+	 * ParseQuery.include() or fetchAllPointers().
 	 * 
-	 * @return A ParsePointer object set to point to this object.
+	 * @param key
+	 *            The key to access the value for.
+	 * @return Returns null if there is no such key or if the object it points
+	 *         to has not been fetched.
 	 */
-	public ParsePointer getPointer()
+	public ParseObject getParseObject(String key)
+	{
+		Object value = get(key);
+
+		if (value == null || !(value instanceof ParseObject))
+			return null;
+
+		return (ParseObject) value;
+	}
+
+	/**
+	 * Creates and returns a new ParsePointer object that points to the object
+	 * it's called on. Use when other objects need to point to *this* object.
+	 * 
+	 * @return A ParsePointer object set to point to this object.
+	 */
+	public ParsePointer getPointer()
 	{
 		return new ParsePointer(mClassName, getObjectId());
 	}
@@ -386,7 +816,87 @@ public class ParseObject
 	 */
 	private Object get(String key)
 	{
-		return mData.get(key);
+		if (!isDataAvailable(key))
+		{
+			throw new IllegalStateException("ParseObject has no data for the key '" + key
+					+ "', which was not selected by the query that fetched it.");
+		}
+
+		return ParseFields.get(mFields, key);
+	}
+
+	/**
+	 * Whether this object was fetched with only some of its keys, see
+	 * ParseQuery.selectKeys().
+	 * 
+	 * @return True if some keys of this object may not have been fetched.
+	 */
+	public boolean isPartial()
+	{
+		return mSelectedKeys != null;
+	}
+
+	/**
+	 * Whether the value of a key is known. This is false only for keys that
+	 * were left out of a ParseQuery.selectKeys() and not put() since; reading
+	 * such a key throws an IllegalStateException.
+	 * 
+	 * @param key
+	 *            The key to check.
+	 * @return False if the key was not fetched.
+	 */
+	public boolean isDataAvailable(String key)
+	{
+		Set<String> selectedKeys = mSelectedKeys;
+
+		return selectedKeys == null || selectedKeys.contains(key) || containsKey(key)
+				|| FIELD_OBJECT_ID.equals(key) || FIELD_CREATED_AT.equals(key)
+				|| FIELD_UPDATED_AT.equals(key);
+	}
+
+	/**
+	 * Marks this object as fetched with only the given keys. Dot-separated
+	 * paths mark the included objects they lead to as partial too.
+	 */
+	void setSelectedKeys(Collection<String> keys)
+	{
+		Set<String> selectedKeys = new HashSet<String>();
+		Map<String, Set<String>> nestedKeys = new HashMap<String, Set<String>>();
+
+		for (String key : keys)
+		{
+			int dot = key.indexOf('.');
+
+			if (dot < 0)
+			{
+				selectedKeys.add(key);
+				continue;
+			}
+
+			String head = key.substring(0, dot);
+			Set<String> nested = nestedKeys.get(head);
+
+			if (nested == null)
+			{
+				nested = new HashSet<String>();
+				nestedKeys.put(head, nested);
+			}
+
+			selectedKeys.add(head);
+			nested.add(key.substring(dot + 1));
+		}
+
+		for (Map.Entry<String, Set<String>> entry : nestedKeys.entrySet())
+		{
+			Object value = ParseFields.get(mFields, entry.getKey());
+
+			if (value instanceof ParseObject)
+			{
+				((ParseObject) value).setSelectedKeys(entry.getValue());
+			}
+		}
+
+		mSelectedKeys = Collections.unmodifiableSet(selectedKeys);
 	}
 
 	/**
@@ -408,6 +918,88 @@ public class ParseObject
 		return (Date) value;
 	}
 
+	/**
+	 * Access an array value. Arrays read from Parse are held as Lists whose
+	 * elements are decoded as single values are: pointers as ParsePointers,
+	 * dates as Dates and so on. An array that was put as a JSONArray is
+	 * decoded the same way.
+	 * 
+	 * @param key
+	 *            The key to access the value for.
+	 * @return An unmodifiable list, or null if there is no such key or if it
+	 *         is not an array.
+	 */
+	@SuppressWarnings("unchecked")
+	public List<Object> getList(String key)
+	{
+		Object value = get(key);
+
+		if (value instanceof JSONArray)
+			value = ParseDecoder.decode(value);
+
+		if (value instanceof List)
+			return Collections.unmodifiableList((List<Object>) value);
+
+		if (value instanceof Collection)
+			return Collections.unmodifiableList(new ArrayList<Object>((Collection<?>) value));
+
+		return null;
+	}
+
+	/**
+	 * Access a byte array value.
+	 * 
+	 * @param key
+	 *            The key to access the value for.
+	 * @return Returns null if there is no such key or if it is not a byte
+	 *         array.
+	 */
+	public byte[] getBytes(String key)
+	{
+		Object value = get(key);
+
+		if (!(value instanceof byte[]))
+			return null;
+
+		return (byte[]) value;
+	}
+
+	/**
+	 * Access a ParseFile value.
+	 * 
+	 * @param key
+	 *            The key to access the value for.
+	 * @return Returns null if there is no such key or if it is not a
+	 *         ParseFile.
+	 */
+	public ParseFile getParseFile(String key)
+	{
+		Object value = get(key);
+
+		if (!(value instanceof ParseFile))
+			return null;
+
+		return (ParseFile) value;
+	}
+
+	/**
+	 * Access a ParseGeoPoint value.
+	 * 
+	 * @param key
+	 *            The key to access the value for.
+	 * @return Returns null if there is no such key or if it is not a
+	 *         ParseGeoPoint.
+	 */
+	public ParseGeoPoint getParseGeoPoint(String key)
+	{
+		Object value = get(key);
+
+		if (!(value instanceof ParseGeoPoint))
+			return null;
+
+		return (ParseGeoPoint) value;
+	}
+
 	/**
 	 * Access a long value.
 	 * 
@@ -435,176 +1027,256 @@ public class ParseObject
 	 *            Keys must be alphanumerical plus underscore, and start with a
 	 *            letter.
 	 * @param value
-	 *            Values may be numerical, String, JSONObject, JSONArray,
+	 *            Values may be numerical, String, JSONObject, JSONArray, Lists,
 	 *            JSONObject.NULL, or other ParseObjects. value may not be null.
+	 *            Arrays are read back with getList().
 	 */
 	public void put(String key, Object value)
 	{
-		mData.put(key, value);
+		synchronized (this)
+		{
+			mFields = ParseFields.with(mFields, key, value);
+
+			if (mDirtyKeys == null)
+			{
+				mDirtyKeys = new LinkedHashSet<String>();
+			}
+
+			mDirtyKeys.add(key);
+		}
+	}
+
+	/**
+	 * Sets a key without making it dirty.
+	 */
+	private synchronized void setField(String key, Object value)
+	{
+		mFields = ParseFields.with(mFields, key, value);
+	}
+
+	/**
+	 * Whether any key has been put() since this object was last fetched from
+	 * or saved to the server.
+	 * 
+	 * @return True if this object has changes that are not on the server.
+	 */
+	public synchronized boolean isDirty()
+	{
+		return mDirtyKeys != null && !mDirtyKeys.isEmpty();
+	}
+
+	/**
+	 * Whether a particular key has been put() since this object was last
+	 * fetched from or saved to the server.
+	 * 
+	 * @param key
+	 *            The key to check.
+	 * @return True if the value of the key is not on the server.
+	 */
+	public synchronized boolean isDirty(String key)
+	{
+		return mDirtyKeys != null && mDirtyKeys.contains(key);
+	}
+
+	/**
+	 * Accessor to the keys that have been put() since this object was last
+	 * fetched from or saved to the server. These are the keys update() sends.
+	 * 
+	 * @return A copy of the changed keys.
+	 */
+	public Set<String> getDirtyKeys()
+	{
+		return getDirtyKeySnapshot();
+	}
+
+	synchronized Set<String> getDirtyKeySnapshot()
+	{
+		return mDirtyKeys == null ? new LinkedHashSet<String>()
+				: new LinkedHashSet<String>(mDirtyKeys);
+	}
+
+	/**
+	 * Marks keys as matching the server, after they were sent successfully.
+	 * Keys put() again while the request was in flight stay dirty only if they
+	 * were not part of the request.
+	 */
+	synchronized void clearDirtyKeys(Collection<String> keys)
+	{
+		if (mDirtyKeys != null && mDirtyKeys.removeAll(keys) && mDirtyKeys.isEmpty())
+		{
+			mDirtyKeys = null;
+		}
+	}
+
+	synchronized void clearDirtyKeys()
+	{
+		mDirtyKeys = null;
 	}
 
 	/**
 	 * Saves this object to the server. Typically, you should use
 	 * saveInBackground(com.parse.SaveCallback) instead of this, unless you are
-	 * managing your own threading.
+	 * managing your own threading. An object that already has an objectId is
+	 * updated, as with update().
 	 * 
 	 * @throws ParseException
 	 *             Throws an exception if the server is inaccessible.
 	 */
 	public void save() throws ParseException
 	{
-		try
+		if (getObjectId() != null)
 		{
-			HttpClient httpclient = Util.newHttpClient();
-			HttpPost httppost = new HttpPost(Parse.getParseAPIUrlClasses() + mClassName);
-			httppost.addHeader("X-Parse-Application-Id", Parse.getApplicationId());
-			httppost.addHeader("X-Parse-REST-API-Key", Parse.getRestAPIKey());
-			httppost.addHeader("Content-Type", "application/json");
+			update();
+			return;
+		}
 
-			httppost.setEntity(new StringEntity(toJSONObject().toString()));
-			HttpResponse httpresponse = httpclient.execute(httppost);
+		final Set<String> keys = getDirtyKeySnapshot();
+		ParseCommand.execute(ParseOperation.SAVE, newSaveRequest(),
+				response -> handleSaveResponse(response, keys));
+	}
 
-			ParseResponse response = new ParseResponse(httpresponse);
+	/**
+	 * Saves this object to the server without blocking the calling thread. An
+	 * object that already has an objectId is updated, as with updateAsync().
+	 * 
+	 * @return A future completed with this object once it is saved, or
+	 *         exceptionally with a ParseException if the server is
+	 *         inaccessible.
+	 */
+	public CompletableFuture<ParseObject> saveAsync()
+	{
+		if (getObjectId() != null)
+		{
+			return updateAsync();
+		}
 
-			if (!response.isFailed())
-			{
-				JSONObject jsonResponse = response.getJsonObject();
+		final Set<String> keys = getDirtyKeySnapshot();
+		return ParseCommand.executeAsync(ParseOperation.SAVE, newSaveRequest(),
+				response -> handleSaveResponse(response, keys));
+	}
 
-				if (jsonResponse == null)
-				{
-					throw response.getException();
-				}
+	private HttpPost newSaveRequest()
+	{
+		HttpPost httppost = new HttpPost(Parse.getParseAPIUrlClasses() + mClassName);
+		httppost.setEntity(new StringEntity(toJSONObject().toString(), ContentType.APPLICATION_JSON));
 
-				try
-				{
-					setObjectId(jsonResponse.getString("objectId"));
-					setCreatedAt(jsonResponse.getString("createdAt"));
-				}
-				catch (JSONException e)
-				{
-					throw new ParseException(
-							ParseException.INVALID_JSON,
-							"Although Parse reports object successfully saved, the response was invalid.",
-							e);
-				}
+		return httppost;
+	}
 
-			}
-			else
-			{
-				throw response.getException();
-			}
+	private ParseObject handleSaveResponse(ParseResponse response, Set<String> keys)
+			throws ParseException
+	{
+		if (response.isFailed())
+		{
+			throw response.getException();
 		}
-		catch (ClientProtocolException e)
+
+		JSONObject jsonResponse = response.getJsonObject();
+
+		if (jsonResponse == null)
 		{
-			throw ParseResponse.getConnectionFailedException(e);
+			throw response.getException();
 		}
-		catch (IOException e)
+
+		try
+		{
+			setObjectId(jsonResponse.getString("objectId"));
+			setCreatedAt(jsonResponse.getString("createdAt"));
+		}
+		catch (JSONException e)
 		{
-			throw ParseResponse.getConnectionFailedException(e);
+			throw new ParseException(
+					ParseException.INVALID_JSON,
+					"Although Parse reports object successfully saved, the response was invalid.",
+					e);
 		}
+
+		clearDirtyKeys(keys);
+		return this;
 	}
 	
 	/**
 	 * Update this object to the server. Typically, you should use
 	 * saveInBackground(com.parse.SaveCallback) instead of this, unless you are
-	 * managing your own threading.
+	 * managing your own threading. Only the keys changed since the object was
+	 * last fetched or saved are sent; if there are none, nothing is sent.
 	 * 
 	 * @throws ParseException
 	 *             Throws an exception if the server is inaccessible.
 	 */
 	public void update() throws ParseException
 	{
-		try
-		{
-			HttpClient httpclient = Util.newHttpClient();
-			HttpPut http = new HttpPut(Parse.getParseAPIUrlClasses() + mClassName + "/" + getObjectId());
-			http.addHeader("X-Parse-Application-Id", Parse.getApplicationId());
-			http.addHeader("X-Parse-REST-API-Key", Parse.getRestAPIKey());
-			http.addHeader("Content-Type", "application/json");
-
-			http.setEntity(new StringEntity(toJSONObject().toString()));
-			HttpResponse httpresponse = httpclient.execute(http);
-
-			ParseResponse response = new ParseResponse(httpresponse);
+		final Set<String> keys = getDirtyKeySnapshot();
 
-			if (!response.isFailed())
-			{
-				JSONObject jsonResponse = response.getJsonObject();
-
-				if (jsonResponse == null)
-				{
-					throw response.getException();
-				}
-
-				try
-				{
-					setUpdatedAt(jsonResponse.getString(FIELD_UPDATED_AT));
-				}
-				catch (JSONException e)
-				{
-					throw new ParseException(
-							ParseException.INVALID_JSON,
-							"Although Parse reports object successfully updated, the response was invalid.",
-							e);
-				}
-
-			}
-			else
-			{
-				throw response.getException();
-			}
-		}
-		catch (ClientProtocolException e)
+		if (keys.isEmpty())
 		{
-			throw ParseResponse.getConnectionFailedException(e);
-		}
-		catch (IOException e)
-		{
-			throw ParseResponse.getConnectionFailedException(e);
+			return;
 		}
+
+		ParseCommand.execute(ParseOperation.UPDATE, newUpdateRequest(keys),
+				response -> handleUpdateResponse(response, keys));
 	}
-	
 
 	/**
-	 * A private helper class to facilitate running a ParseObject save operation
-	 * in the background.
-	 * 
-	 * @author js
+	 * Updates this object on the server without blocking the calling thread.
+	 * Only the changed keys are sent, as with update().
 	 * 
+	 * @return A future completed with this object once it is updated, or
+	 *         exceptionally with a ParseException if the server is
+	 *         inaccessible.
 	 */
-	class SaveInBackgroundThread extends Thread
+	public CompletableFuture<ParseObject> updateAsync()
 	{
-		SaveCallback mSaveCallback;
+		final Set<String> keys = getDirtyKeySnapshot();
 
-		/**
-		 * 
-		 * @param callback
-		 *            A function object of type Savecallback, whose method done
-		 *            will be called upon completion
-		 */
-		SaveInBackgroundThread(SaveCallback callback)
+		if (keys.isEmpty())
 		{
-			mSaveCallback = callback;
+			return CompletableFuture.completedFuture(this);
 		}
 
-		public void run()
+		return ParseCommand.executeAsync(ParseOperation.UPDATE, newUpdateRequest(keys),
+				response -> handleUpdateResponse(response, keys));
+	}
+
+	private HttpPut newUpdateRequest(Set<String> keys)
+	{
+		HttpPut http = new HttpPut(Parse.getParseAPIUrlClasses() + mClassName + "/" + getObjectId());
+		http.setEntity(new StringEntity(toJSONObject(keys).toString(),
+				ContentType.APPLICATION_JSON));
+
+		return http;
+	}
+
+	private ParseObject handleUpdateResponse(ParseResponse response, Set<String> keys)
+			throws ParseException
+	{
+		if (response.isFailed())
 		{
-			ParseException exception = null;
+			throw response.getException();
+		}
 
-			try
-			{
-				save();
-			}
-			catch (ParseException e)
-			{
-				exception = e;
-			}
+		JSONObject jsonResponse = response.getJsonObject();
 
-			if (mSaveCallback != null)
-			{
-				mSaveCallback.done(exception);
-			}
+		if (jsonResponse == null)
+		{
+			throw response.getException();
+		}
+
+		try
+		{
+			setUpdatedAt(jsonResponse.getString(FIELD_UPDATED_AT));
 		}
+		catch (JSONException e)
+		{
+			throw new ParseException(
+					ParseException.INVALID_JSON,
+					"Although Parse reports object successfully updated, the response was invalid.",
+					e);
+		}
+
+		clearDirtyKeys(keys);
+		Parse.getCache().removeObject(mClassName, getObjectId());
+		return this;
 	}
 
 	/**
@@ -615,10 +1287,15 @@ public class ParseObject
 	 * @param callback
 	 *            callback.done(e) is called when the save completes.
 	 */
-	public void saveInBackground(SaveCallback callback)
+	public void saveInBackground(final SaveCallback callback)
 	{
-		SaveInBackgroundThread t = new SaveInBackgroundThread(callback);
-		t.start();
+		CompletableFuture<ParseObject> future = saveAsync();
+
+		if (callback != null)
+		{
+			future.whenCompleteAsync((result, t) -> callback.done(t == null ? null
+					: ParseCommand.toParseException(t)), Parse.getCallbackExecutor());
+		}
 	}
 
 	/**
@@ -630,14 +1307,165 @@ public class ParseObject
 		saveInBackground(null);
 	}
 
-	private JSONObject toJSONObject()
+	/**
+	 * Stores this object in the local datastore, replacing the stored copy of
+	 * it if there is one, so that ParseQuery.fromLocalDatastore() finds it
+	 * without the network. The object is stored as it is, including changes
+	 * not yet saved; objects it points to are only found locally if they are
+	 * pinned as well. The object is on disk when this returns.
+	 * 
+	 * @throws ParseException
+	 *             If the object has no objectId or the local datastore cannot
+	 *             be written.
+	 */
+	public void pin() throws ParseException
+	{
+		pinAll(Collections.singletonList(this));
+	}
+
+	/**
+	 * Removes this object from the local datastore. Nothing happens if it is
+	 * not stored there.
+	 * 
+	 * @throws ParseException
+	 *             If the local datastore cannot be written.
+	 */
+	public void unpin() throws ParseException
+	{
+		unpinAll(Collections.singletonList(this));
+	}
+
+	/**
+	 * Saves this object to the server once it can be reached. The save is
+	 * appended to a log in Parse.getEventuallyDirectory() before this returns,
+	 * and is sent in the order of the log by a background thread, surviving
+	 * failed requests and restarts of the process. An object that has an
+	 * objectId, or was already saved eventually, is updated, as with
+	 * updateEventually().
+	 * 
+	 * @return A future completed with this object once Parse accepts the save,
+	 *         or exceptionally with a ParseException if the save could not be
+	 *         logged or Parse rejects the object. The future is not completed
+	 *         if the process ends first; the save is then sent by a later run.
+	 */
+	public CompletableFuture<ParseObject> saveEventually()
+	{
+		if (getObjectId() != null || mLocalId != null)
+		{
+			return updateEventually();
+		}
+
+		Set<String> keys = getDirtyKeySnapshot();
+		mLocalId = UUID.randomUUID().toString();
+
+		return enqueueEventually(ParseBatch.METHOD_POST, toJSONObject(), keys);
+	}
+
+	/**
+	 * Updates this object on the server once it can be reached, as
+	 * saveEventually() does. Only the keys changed since the object was last
+	 * fetched or saved are sent; if there are none, nothing is logged.
+	 * 
+	 * @return A future completed with this object once Parse accepts the
+	 *         update, or exceptionally with a ParseException.
+	 */
+	public CompletableFuture<ParseObject> updateEventually()
+	{
+		if (getObjectId() == null && mLocalId == null)
+		{
+			return ParseCommand.failedFuture(new ParseException(ParseException.MISSING_OBJECT_ID,
+					"Only an object that was saved can be updated."));
+		}
+
+		Set<String> keys = getDirtyKeySnapshot();
+
+		if (keys.isEmpty())
+		{
+			return CompletableFuture.completedFuture(this);
+		}
+
+		return enqueueEventually(ParseBatch.METHOD_PUT, toJSONObject(keys), keys);
+	}
+
+	/**
+	 * Deletes this object on the server once it can be reached, as
+	 * saveEventually() does. This does not delete or destroy the object
+	 * locally.
+	 * 
+	 * @return A future completed once Parse deletes the object, or
+	 *         exceptionally with a ParseException.
+	 */
+	public CompletableFuture<Void> deleteEventually()
+	{
+		if (getObjectId() == null && mLocalId == null)
+		{
+			return ParseCommand.failedFuture(new ParseException(ParseException.MISSING_OBJECT_ID,
+					"Only an object that was saved can be deleted."));
+		}
+
+		return enqueueEventually(ParseBatch.METHOD_DELETE, null, Collections.<String> emptySet())
+				.thenApply(object -> null);
+	}
+
+	private CompletableFuture<ParseObject> enqueueEventually(String method, JSONObject body,
+			Set<String> keys)
+	{
+		CompletableFuture<ParseObject> future;
+
+		try
+		{
+			future = ParseEventually.getInstance().enqueue(method, this, body);
+		}
+		catch (ParseException e)
+		{
+			return ParseCommand.failedFuture(e);
+		}
+
+		// the log now holds the changes
+		clearDirtyKeys(keys);
+		return future;
+	}
+
+	JSONObject toJSONObject()
+	{
+		JSONObject jo = new JSONObject();
+
+		Object[] fields = mFields;
+		ParseShape shape = ParseFields.getShape(fields);
+
+		try
+		{
+			for (int i = 0; i < shape.size(); i++)
+				jo.put(shape.getKey(i), encode(ParseFields.get(fields, i)));
+		}
+		catch (JSONException e)
+		{
+
+		}
+
+		return jo;
+	}
+
+	/**
+	 * Encodes only the given keys, skipping the fields maintained by the
+	 * server. Used to send changes.
+	 */
+	JSONObject toJSONObject(Collection<String> keys)
 	{
 		JSONObject jo = new JSONObject();
 
 		try
 		{
-			for (String key : mData.keySet())
-				jo.put(key, get(key));
+			for (String key : keys)
+			{
+				Object value = get(key);
+
+				if (value != null && !FIELD_OBJECT_ID.equals(key) && !FIELD_CREATED_AT.equals(key)
+						&& !FIELD_UPDATED_AT.equals(key))
+				{
+					jo.put(key, encode(value));
+				}
+			}
 		}
 		catch (JSONException e)
 		{
@@ -0,0 +1,45 @@
+package almonds;
+
+/**
+ * The kinds of request made to Parse, by which statistics such as
+ * Parse.getTransferStats() are kept.
+ *
+ * @author js
+ */
+public enum ParseOperation
+{
+	/**
+	 * ParseQuery.get(): fetching one object by its objectId.
+	 */
+	GET,
+
+	/**
+	 * ParseQuery.find() and the pages of ParseQuery.iterate().
+	 */
+	FIND,
+
+	/**
+	 * ParseQuery.count().
+	 */
+	COUNT,
+
+	/**
+	 * ParseObject.save() of a new object.
+	 */
+	SAVE,
+
+	/**
+	 * ParseObject.update() of an existing object.
+	 */
+	UPDATE,
+
+	/**
+	 * ParseObject.delete().
+	 */
+	DELETE,
+
+	/**
+	 * One chunk of ParseObject.saveAll(), updateAll() or deleteAll().
+	 */
+	BATCH
+}
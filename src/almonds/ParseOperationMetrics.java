@@ -0,0 +1,237 @@
+package almonds;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The metrics of one ParseOperation: the latency of each call, overall and
+ * per class, its errors by ParseException code, the rows decoded from its
+ * responses and, through getTransferStats(), its bytes. A call is counted
+ * once however many times it was retried, and its latency runs from the call
+ * to its result, including time spent waiting on rate limiters and retries.
+ *
+ * @author js
+ */
+public class ParseOperationMetrics implements ParseOperationMetricsMXBean
+{
+	private final ParseOperation mOperation;
+
+	private final ParseLatencyHistogram mLatency = new ParseLatencyHistogram();
+	private final Map<String, ParseLatencyHistogram> mClassLatency =
+			new ConcurrentHashMap<String, ParseLatencyHistogram>();
+
+	private final LongAdder mErrors = new LongAdder();
+	private final Map<Integer, LongAdder> mErrorCounts = new ConcurrentHashMap<Integer, LongAdder>();
+	private final LongAdder mRowsDecoded = new LongAdder();
+
+	ParseOperationMetrics(ParseOperation operation)
+	{
+		mOperation = operation;
+	}
+
+	public ParseOperation getOperation()
+	{
+		return mOperation;
+	}
+
+	/**
+	 * @return The latencies of every call.
+	 */
+	public ParseLatencyHistogram getLatency()
+	{
+		return mLatency;
+	}
+
+	/**
+	 * @param className
+	 * @return The latencies of the calls on a class, or null if there was
+	 *         none. Batches are not on a single class, so they are only
+	 *         counted in getLatency().
+	 */
+	public ParseLatencyHistogram getLatency(String className)
+	{
+		return mClassLatency.get(className);
+	}
+
+	/**
+	 * @return The names of the classes calls were made on.
+	 */
+	public Set<String> getClassNames()
+	{
+		return Collections.unmodifiableSet(mClassLatency.keySet());
+	}
+
+	/**
+	 * @return The bytes sent and received by the requests of the operation.
+	 */
+	public ParseTransferStats getTransferStats()
+	{
+		return Parse.getTransferStats(mOperation);
+	}
+
+	public long getCalls()
+	{
+		return mLatency.getCount();
+	}
+
+	public long getErrors()
+	{
+		return mErrors.sum();
+	}
+
+	/**
+	 * @return The number of calls that failed with each ParseException code.
+	 */
+	public Map<Integer, Long> getErrorCounts()
+	{
+		Map<Integer, Long> counts = new TreeMap<Integer, Long>();
+
+		for (Map.Entry<Integer, LongAdder> entry : mErrorCounts.entrySet())
+		{
+			counts.put(entry.getKey(), entry.getValue().sum());
+		}
+
+		return counts;
+	}
+
+	/**
+	 * @return The number of objects decoded from responses.
+	 */
+	public long getRowsDecoded()
+	{
+		return mRowsDecoded.sum();
+	}
+
+	public long getRequestBytes()
+	{
+		return getTransferStats().getRequestBytes();
+	}
+
+	public long getRequestBytesSent()
+	{
+		return getTransferStats().getRequestBytesSent();
+	}
+
+	public long getResponseBytes()
+	{
+		return getTransferStats().getResponseBytes();
+	}
+
+	public long getResponseBytesReceived()
+	{
+		return getTransferStats().getResponseBytesReceived();
+	}
+
+	public double getLatencyMean()
+	{
+		return mLatency.getMean();
+	}
+
+	public double getLatencyMax()
+	{
+		return mLatency.getMax();
+	}
+
+	public double getLatency50thPercentile()
+	{
+		return mLatency.getPercentile(50);
+	}
+
+	public double getLatency95thPercentile()
+	{
+		return mLatency.getPercentile(95);
+	}
+
+	public double getLatency99thPercentile()
+	{
+		return mLatency.getPercentile(99);
+	}
+
+	public double getLatency999thPercentile()
+	{
+		return mLatency.getPercentile(99.9);
+	}
+
+	public Map<String, Double> getClassLatency99thPercentiles()
+	{
+		Map<String, Double> percentiles = new TreeMap<String, Double>();
+
+		for (Map.Entry<String, ParseLatencyHistogram> entry : mClassLatency.entrySet())
+		{
+			percentiles.put(entry.getKey(), entry.getValue().getPercentile(99));
+		}
+
+		return percentiles;
+	}
+
+	/**
+	 * Sets every metric of the operation back to zero, including its
+	 * ParseTransferStats.
+	 */
+	public void reset()
+	{
+		mLatency.reset();
+		mClassLatency.clear();
+		mErrors.reset();
+		mErrorCounts.clear();
+		mRowsDecoded.reset();
+		getTransferStats().reset();
+	}
+
+	public String toString()
+	{
+		return mOperation + ": " + getCalls() + " calls, " + getErrors() + " errors "
+				+ getErrorCounts() + ", " + getRowsDecoded() + " rows, latency " + mLatency;
+	}
+
+	/**
+	 * Counts a call.
+	 *
+	 * @param className
+	 *            The class the call was on, or null.
+	 * @param nanos
+	 *            The latency of the call.
+	 * @param error
+	 *            The error the call failed with, or null.
+	 */
+	void record(String className, long nanos, ParseException error)
+	{
+		mLatency.record(nanos);
+
+		if (className != null)
+		{
+			ParseLatencyHistogram latency = mClassLatency.get(className);
+
+			if (latency == null)
+			{
+				latency = mClassLatency.computeIfAbsent(className,
+						name -> new ParseLatencyHistogram());
+			}
+
+			latency.record(nanos);
+		}
+
+		if (error != null)
+		{
+			mErrors.increment();
+
+			LongAdder count = mErrorCounts.get(error.getCode());
+
+			if (count == null)
+			{
+				count = mErrorCounts.computeIfAbsent(error.getCode(), code -> new LongAdder());
+			}
+
+			count.increment();
+		}
+	}
+
+	void addRowsDecoded(long rows)
+	{
+		mRowsDecoded.add(rows);
+	}
+}
@@ -0,0 +1,46 @@
+package almonds;
+
+import java.util.Map;
+
+/**
+ * The JMX view of the ParseOperationMetrics of one ParseOperation, registered
+ * by ParseMetrics.registerMBeans(). Latencies are in milliseconds.
+ *
+ * @author js
+ */
+public interface ParseOperationMetricsMXBean
+{
+	ParseOperation getOperation();
+
+	long getCalls();
+
+	long getErrors();
+
+	Map<Integer, Long> getErrorCounts();
+
+	long getRowsDecoded();
+
+	long getRequestBytes();
+
+	long getRequestBytesSent();
+
+	long getResponseBytes();
+
+	long getResponseBytesReceived();
+
+	double getLatencyMean();
+
+	double getLatencyMax();
+
+	double getLatency50thPercentile();
+
+	double getLatency95thPercentile();
+
+	double getLatency99thPercentile();
+
+	double getLatency999thPercentile();
+
+	Map<String, Double> getClassLatency99thPercentiles();
+
+	void reset();
+}
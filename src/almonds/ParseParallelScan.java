@@ -0,0 +1,200 @@
+package almonds;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Scans a query as several disjoint objectId ranges at once and merges the
+ * results into a single iteration.
+ * 
+ * Parse objectIds are drawn from [0-9A-Za-z], so the alphabet is split into
+ * contiguous ranges by first character, one per partition. The first range
+ * is open below and the last open above, so every objectId falls into
+ * exactly one partition. The ranges are intersected with the constraints the
+ * query places on objectId, and those left empty are dropped. Each partition
+ * is a keyset iteration of its own (see ParseQueryIterator) with one request
+ * in flight, so up to `parallelism` requests run at the same time.
+ * 
+ * In ordered mode the partitions are consumed one after the other, which
+ * yields the objects in objectId order; later partitions only fetch one page
+ * ahead while they wait. In unordered mode objects are returned from
+ * whichever partition has a page ready.
+ * 
+ * @author js
+ */
+class ParseParallelScan implements Iterator<ParseObject>
+{
+	static final String OBJECT_ID_ALPHABET =
+			"0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz";
+
+	static final int MAX_PARALLELISM = OBJECT_ID_ALPHABET.length();
+
+	private List<ParseQueryIterator> mPartitions = new ArrayList<ParseQueryIterator>();
+	private boolean mOrdered;
+	private int mRemaining; // objects still wanted, or -1 for no limit
+	private int mCurrent = 0;
+
+	/**
+	 * @param query
+	 *            The query to scan. Its limit, if any, caps the total number
+	 *            of objects returned.
+	 * @param parallelism
+	 *            The number of partitions, between 1 and MAX_PARALLELISM.
+	 * @param pageSize
+	 *            The number of objects each partition fetches per request.
+	 * @param ordered
+	 *            Whether objects are returned in objectId order.
+	 */
+	ParseParallelScan(ParseQuery query, int parallelism, int pageSize, boolean ordered)
+	{
+		mOrdered = ordered;
+		mRemaining = query.getLimit();
+
+		ParseQuery unlimited = query.copy();
+		unlimited.setLimit(-1);
+
+		for (int i = 0; i < parallelism; i++)
+		{
+			String lower = i == 0 ? null : boundary(i, parallelism);
+			String upper = i == parallelism - 1 ? null : boundary(i + 1, parallelism);
+
+			ParseQuery range = unlimited.newObjectIdRange(lower, upper);
+
+			// a range the query excludes is not scanned
+			if (range != null)
+			{
+				mPartitions.add(new ParseQueryIterator(range, pageSize));
+			}
+		}
+	}
+
+	/**
+	 * @return The first character of partition i out of n.
+	 */
+	private static String boundary(int i, int n)
+	{
+		return String.valueOf(OBJECT_ID_ALPHABET.charAt(i * MAX_PARALLELISM / n));
+	}
+
+	public boolean hasNext()
+	{
+		if (mRemaining == 0)
+		{
+			return false;
+		}
+
+		return mOrdered ? hasNextOrdered() : hasNextUnordered();
+	}
+
+	public ParseObject next()
+	{
+		if (!hasNext())
+		{
+			throw new NoSuchElementException();
+		}
+
+		if (mRemaining > 0)
+		{
+			mRemaining--;
+		}
+
+		return mPartitions.get(mCurrent).next();
+	}
+
+	public void remove()
+	{
+		throw new UnsupportedOperationException();
+	}
+
+	private boolean hasNextOrdered()
+	{
+		while (mCurrent < mPartitions.size())
+		{
+			if (mPartitions.get(mCurrent).hasNext())
+			{
+				return true;
+			}
+
+			mCurrent++;
+		}
+
+		return false;
+	}
+
+	private boolean hasNextUnordered()
+	{
+		while (!mPartitions.isEmpty())
+		{
+			// visit partitions round-robin, starting with the one used last,
+			// and take the first that can answer without waiting
+
+			for (int n = 0; n < mPartitions.size(); n++)
+			{
+				int i = (mCurrent + n) % mPartitions.size();
+				ParseQueryIterator partition = mPartitions.get(i);
+
+				if (partition.isReady())
+				{
+					if (partition.hasNext())
+					{
+						mCurrent = i;
+						return true;
+					}
+
+					mPartitions.remove(i);
+					mCurrent = 0;
+					break;
+				}
+			}
+
+			if (!mPartitions.isEmpty() && !anyReady())
+			{
+				awaitAny();
+			}
+		}
+
+		return false;
+	}
+
+	private boolean anyReady()
+	{
+		for (ParseQueryIterator partition : mPartitions)
+		{
+			if (partition.isReady())
+			{
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	private void awaitAny()
+	{
+		CompletableFuture<?>[] futures = new CompletableFuture<?>[mPartitions.size()];
+
+		for (int i = 0; i < futures.length; i++)
+		{
+			futures[i] = mPartitions.get(i).whenReady();
+		}
+
+		try
+		{
+			CompletableFuture.anyOf(futures).get();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new ParseRuntimeException(new ParseException(ParseException.OTHER_CAUSE,
+					"Interrupted while fetching the next page.", e));
+		}
+		catch (ExecutionException e)
+		{
+			// the failed partition is ready now and rethrows from hasNext()
+		}
+	}
+}
@@ -1,21 +1,128 @@
 package almonds;
 
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.json.JSONString;
 
-public class ParsePointer extends JSONObject
+/**
+ * A reference to an object of Parse by its class and objectId, as stored by
+ * Parse in Pointer fields. ParsePointers are immutable and compare by class
+ * and objectId, so that they can serve as keys, for instance to resolve the
+ * pointers of many objects at once.
+ *
+ * A ParsePointer is written as the JSON Parse expects only when the request
+ * that holds it is: as a JSONString, it can be put in a JSONObject or
+ * JSONArray as it is.
+ *
+ * @author js
+ */
+public final class ParsePointer implements JSONString
 {
+	// the class names of pointers, held once however many pointers there are
+	private static final ConcurrentMap<String, String> mClassNames =
+			new ConcurrentHashMap<String, String>();
+
+	private final String mClassName;
+	private final String mObjectId;
+
+	/**
+	 * @param className
+	 *            The class of the object pointed to.
+	 * @param objectId
+	 *            The objectId of the object pointed to, or null for an object
+	 *            that has not been saved yet.
+	 */
 	public ParsePointer(String className, String objectId)
 	{
+		if (className == null)
+		{
+			throw new NullPointerException("The className of a pointer is null.");
+		}
+
+		String shared = mClassNames.putIfAbsent(className, className);
+
+		mClassName = shared != null ? shared : className;
+		mObjectId = objectId;
+	}
+
+	public String getClassName()
+	{
+		return mClassName;
+	}
+
+	public String getObjectId()
+	{
+		return mObjectId;
+	}
+
+	/**
+	 * @return The pointer as Parse encodes it, for code that handles it as
+	 *         JSON.
+	 */
+	public JSONObject toJSONObject()
+	{
+		JSONObject json = new JSONObject();
+
 		try
 		{
-			this.put("__type", "Pointer");
-			this.put("className", className);
-			this.put("objectId", objectId);
+			json.put(ParseDecoder.FIELD_TYPE, ParseDecoder.TYPE_POINTER);
+			json.put(ParseDecoder.FIELD_CLASS_NAME, mClassName);
+
+			if (mObjectId != null)
+			{
+				json.put(ParseDecoder.FIELD_OBJECT_ID, mObjectId);
+			}
 		}
 		catch (JSONException e)
 		{
+			// cannot happen for strings
+		}
 
+		return json;
+	}
+
+	public String toJSONString()
+	{
+		StringBuilder sb = new StringBuilder(64);
+
+		sb.append("{\"").append(ParseDecoder.FIELD_TYPE).append("\":\"")
+				.append(ParseDecoder.TYPE_POINTER).append("\",\"")
+				.append(ParseDecoder.FIELD_CLASS_NAME).append("\":")
+				.append(JSONObject.quote(mClassName));
+
+		if (mObjectId != null)
+		{
+			sb.append(",\"").append(ParseDecoder.FIELD_OBJECT_ID).append("\":")
+					.append(JSONObject.quote(mObjectId));
 		}
+
+		return sb.append('}').toString();
+	}
+
+	public boolean equals(Object o)
+	{
+		if (!(o instanceof ParsePointer))
+		{
+			return false;
+		}
+
+		ParsePointer other = (ParsePointer) o;
+
+		return mClassName.equals(other.mClassName)
+				&& (mObjectId == null ? other.mObjectId == null : mObjectId
+						.equals(other.mObjectId));
+	}
+
+	public int hashCode()
+	{
+		return 31 * mClassName.hashCode() + (mObjectId == null ? 0 : mObjectId.hashCode());
+	}
+
+	public String toString()
+	{
+		return toJSONString();
 	}
 }
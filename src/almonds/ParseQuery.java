@@ -3,18 +3,21 @@ package almonds;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
-import java.util.AbstractMap.SimpleEntry;
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
 
-import org.apache.http.HttpEntity;
-import org.apache.http.HttpResponse;
-import org.apache.http.client.ClientProtocolException;
-import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.util.EntityUtils;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -30,273 +33,1512 @@ public class ParseQuery
 {
 	private String mClassName; // the name of the Parse class to perform the
 								// query on
-	private SimpleEntry mWhereEqualTo = null; // tracks "WHERE" constraints
+	// tracks "WHERE" constraints: a key maps to the value it must equal, or to
+	// a map of operators such as "$gt" to their values
+	private Map<String, Object> mWhere = new LinkedHashMap<String, Object>();
+	// queries of the same class combined with "$or"
+	private List<ParseQuery> mOr = new ArrayList<ParseQuery>();
+	// the compiled "where" parameter, or null if the constraints changed since
+	// it was last compiled
+	private String mWhereJSON;
 	private List<String> mOrder = new ArrayList<String>(); // tracks keys to
 															// sort by
 
 	private int mLimit = -1;
 	private int mSkip = 0;
 
+	// keys whose pointed-to objects are returned embedded in the results
+	private Set<String> mInclude = new LinkedHashSet<String>();
+	// the only keys fetched, or null to fetch every key
+	private Set<String> mSelectedKeys;
+
+	/**
+	 * The largest limit Parse accepts for a single query.
+	 */
+	public static final int MAX_PAGE_SIZE = 1000;
+
+	/**
+	 * The page size used by iterate().
+	 */
+	public static final int DEFAULT_PAGE_SIZE = MAX_PAGE_SIZE;
+
+	private static final String FIELD_OBJECT_ID = "objectId";
+
+	private static final ParseSingleFlight mInFlight = new ParseSingleFlight();
+
+	/**
+	 * The ways a query can use the cache set with Parse.setCache().
+	 */
+	public enum CachePolicy
+	{
+		/**
+		 * The query neither loads from nor saves to the cache. This is the
+		 * default.
+		 */
+		IGNORE_CACHE,
+
+		/**
+		 * The query only loads from the cache, and fails with CACHE_MISS if
+		 * there is nothing cached.
+		 */
+		CACHE_ONLY,
+
+		/**
+		 * The query always loads from the network and saves the result to the
+		 * cache.
+		 */
+		NETWORK_ONLY,
+
+		/**
+		 * The query loads from the cache, and from the network only if there is
+		 * nothing cached.
+		 */
+		CACHE_ELSE_NETWORK,
+
+		/**
+		 * The query loads from the network, and from the cache only if the
+		 * connection fails.
+		 */
+		NETWORK_ELSE_CACHE,
+
+		/**
+		 * The callback of a background query is called first with the cached
+		 * result and then with the result from the network. Synchronous
+		 * queries cannot use this policy.
+		 */
+		CACHE_THEN_NETWORK
+	}
+
+	private CachePolicy mCachePolicy = CachePolicy.IGNORE_CACHE;
+
+	// the lane in which requests of this query wait on a rate limiter
+	private ParseRateLimiter.Priority mPriority = ParseRateLimiter.Priority.INTERACTIVE;
+
+	// whether the query reads the local datastore instead of Parse
+	private boolean mFromLocalDatastore = false;
+
 	// query = key: [constraints]
 	// constraint = optional code : [value]
 
-	// where = key, constraint code ("gte", "lte")
-	// constraint code = {
+	// where = key, constraint code ("gte", "lte")
+	// constraint code = {
+
+	/**
+	 * Constructs a query. A default query with no further parameters will
+	 * retrieve all ParseObjects of the provided class.
+	 * 
+	 * @param className
+	 *            The name of the class to retrieve ParseObjects for.
+	 */
+	public ParseQuery(String className)
+	{
+		mClassName = className;
+	}
+
+	/**
+	 * Constructs a query that is the or of the given queries: it retrieves
+	 * the ParseObjects that satisfy any of them. Further constraints placed on
+	 * the returned query apply in addition to the or.
+	 * 
+	 * @param queries
+	 *            The queries to or together, all on the same class. Later
+	 *            changes to them do not affect the returned query.
+	 * @return The combined query.
+	 */
+	public static ParseQuery or(List<ParseQuery> queries)
+	{
+		if (queries == null || queries.isEmpty())
+		{
+			throw new IllegalArgumentException("Can't take an or of an empty list of queries.");
+		}
+
+		String className = queries.get(0).getClassName();
+		ParseQuery query = new ParseQuery(className);
+
+		for (ParseQuery q : queries)
+		{
+			if (!className.equals(q.getClassName()))
+			{
+				throw new IllegalArgumentException(
+						"All of the queries in an or query must be on the same class.");
+			}
+
+			if (!q.mOrder.isEmpty() || q.mLimit >= 0 || q.mSkip > 0 || !q.mInclude.isEmpty()
+					|| q.mSelectedKeys != null)
+			{
+				throw new IllegalArgumentException(
+						"Queries in an or query may only have where constraints.");
+			}
+
+			query.mOr.add(q.copy());
+		}
+
+		return query;
+	}
+
+	/**
+	 * Constructs a ParseObject whose id is already known by fetching data from
+	 * the server in a background thread. Uses the network and/or the cache,
+	 * depending on the cache policy; with CACHE_THEN_NETWORK the callback is
+	 * called with the cached object first, if there is one. This is
+	 * preferable to using the ParseObject(className, objectId) constructor,
+	 * unless your code is already running in a background thread.
+	 * 
+	 * @param objectId
+	 *            Object id of the ParseObject to fetch.
+	 * @param callback
+	 *            callback.done(object, e) will be called when the fetch
+	 *            completes.
+	 */
+	public void getInBackground(String objectId, final GetCallback callback)
+	{
+		if (mCachePolicy == CachePolicy.CACHE_THEN_NETWORK && !mFromLocalDatastore)
+		{
+			final List<ParseObject> cached = Parse.getCache().get(getGetCacheKey(objectId));
+
+			if (cached != null && !cached.isEmpty())
+			{
+				Parse.getCallbackExecutor().execute(() -> callback.done(cached.get(0), null));
+			}
+		}
+
+		getAsync(objectId).whenCompleteAsync((object, t) -> callback.done(object, t == null ? null
+				: ParseCommand.toParseException(t)), Parse.getCallbackExecutor());
+	}
+
+	/**
+	 * Constructs a ParseObject whose id is already known by fetching data from
+	 * the server. Uses the network and/or the cache, depending on the cache
+	 * policy.
+	 * 
+	 * @param theObjectId
+	 *            Object id of the ParseObject to fetch.
+	 * @return
+	 * @throws ParseException
+	 *             Throws an exception when there is no such object or when the
+	 *             network connection fails.
+	 */
+	public ParseObject get(final String theObjectId) throws ParseException
+	{
+		if (mFromLocalDatastore)
+		{
+			return getLocal(theObjectId);
+		}
+
+		return fetch(getGetCacheKey(theObjectId), () -> asList(ParseCommand.execute(
+				ParseOperation.GET, mPriority, newGetRequest(theObjectId),
+				this::handleGetResponse))).get(0);
+	}
+
+	/**
+	 * Constructs a ParseObject whose id is already known by fetching data from
+	 * the server without blocking the calling thread. Uses the network and/or
+	 * the cache, depending on the cache policy; CACHE_THEN_NETWORK behaves as
+	 * NETWORK_ONLY.
+	 * 
+	 * @param theObjectId
+	 *            Object id of the ParseObject to fetch.
+	 * @return A future completed with the object, or exceptionally with a
+	 *         ParseException when there is no such object or when the network
+	 *         connection fails.
+	 */
+	public CompletableFuture<ParseObject> getAsync(final String theObjectId)
+	{
+		if (mFromLocalDatastore)
+		{
+			return runLocal(() -> getLocal(theObjectId));
+		}
+
+		return fetchAsync(getGetCacheKey(theObjectId), () -> ParseCommand.executeAsync(
+				ParseOperation.GET, mPriority, newGetRequest(theObjectId),
+				this::handleGetResponse).thenApply(ParseQuery::asList))
+				.thenApply(objects -> objects.get(0));
+	}
+
+	private HttpGet newGetRequest(String theObjectId)
+	{
+		return new HttpGet(Parse.getParseAPIUrlClasses() + mClassName + "/" + theObjectId
+				+ getURLObjectParameters());
+	}
+
+	private ParseObject handleGetResponse(ParseResponse response) throws ParseException
+	{
+		if (response.isFailed())
+		{
+			throw response.getException();
+		}
+
+		ParseObject object = applySelectedKeys(new ParseObject(mClassName,
+				response.getJsonObject()));
+		Parse.getMetrics().addRowsDecoded(ParseOperation.GET, 1);
+
+		return object;
+	}
+
+	/**
+	 * Marks an object fetched by this query as partial if only some keys were
+	 * selected.
+	 */
+	private ParseObject applySelectedKeys(ParseObject object)
+	{
+		if (mSelectedKeys != null)
+		{
+			object.setSelectedKeys(mSelectedKeys);
+		}
+
+		return object;
+	}
+
+	private static List<ParseObject> asList(ParseObject object)
+	{
+		List<ParseObject> objects = new ArrayList<ParseObject>(1);
+		objects.add(object);
+
+		return objects;
+	}
+
+	/**
+	 * Retrieves a list of ParseObjects that satisfy this query from the server
+	 * in a background thread. This is preferable to using find(), unless your
+	 * code is already running in a background thread. With the
+	 * CACHE_THEN_NETWORK policy the callback is called twice: first with the
+	 * cached result, if there is one, then with the result from the network.
+	 * 
+	 * @param callback
+	 *            callback - callback.done(object, e) is called when the find
+	 *            completes.
+	 */
+	public void findInBackground(final FindCallback callback)
+	{
+		if (mCachePolicy == CachePolicy.CACHE_THEN_NETWORK && !mFromLocalDatastore)
+		{
+			final List<ParseObject> cached = Parse.getCache().get(getCacheKey());
+
+			if (cached != null)
+			{
+				Parse.getCallbackExecutor().execute(() -> callback.done(cached, null));
+			}
+		}
+
+		findAsync().whenCompleteAsync((objects, t) -> callback.done(objects, t == null ? null
+				: ParseCommand.toParseException(t)), Parse.getCallbackExecutor());
+	}
+
+	/**
+	 * Retrieves a list of ParseObjects that satisfy this query. Uses the
+	 * network and/or the cache, depending on the cache policy.
+	 * 
+	 * @return A list of all ParseObjects obeying the conditions set in this
+	 *         query.
+	 */
+	public List<ParseObject> find() throws ParseException
+	{
+		if (mFromLocalDatastore)
+		{
+			return findLocal();
+		}
+
+		return fetch(getCacheKey(), () -> ParseCommand.execute(ParseOperation.FIND, mPriority,
+				newFindRequest(), this::handleFindResponse));
+	}
+
+	/**
+	 * Retrieves a list of ParseObjects that satisfy this query without
+	 * blocking the calling thread. Uses the network and/or the cache,
+	 * depending on the cache policy; CACHE_THEN_NETWORK behaves as
+	 * NETWORK_ONLY.
+	 * 
+	 * @return A future completed with all ParseObjects obeying the conditions
+	 *         set in this query, or exceptionally with a ParseException.
+	 */
+	public CompletableFuture<List<ParseObject>> findAsync()
+	{
+		if (mFromLocalDatastore)
+		{
+			return runLocal(this::findLocal);
+		}
+
+		return fetchAsync(getCacheKey(), () -> ParseCommand.executeAsync(ParseOperation.FIND,
+				mPriority, newFindRequest(), this::handleFindResponse));
+	}
+
+	/**
+	 * Counts the ParseObjects that satisfy this query in a background thread.
+	 * This is preferable to using count(), unless your code is already running
+	 * in a background thread.
+	 * 
+	 * @param callback
+	 *            callback.done(count, e) is called when the count completes.
+	 */
+	public void countInBackground(final CountCallback callback)
+	{
+		countAsync().whenCompleteAsync((count, t) -> callback.done(t == null ? count : -1,
+				t == null ? null : ParseCommand.toParseException(t)), Parse.getCallbackExecutor());
+	}
+
+	/**
+	 * Counts the ParseObjects that satisfy this query. Only the number is
+	 * transferred, not the objects; the order, limit, skip, include and
+	 * selected keys of the query are ignored, and so is the cache.
+	 * 
+	 * @return The number of ParseObjects obeying the conditions set in this
+	 *         query.
+	 * @throws ParseException
+	 *             If the network connection fails or the count is rejected.
+	 */
+	public int count() throws ParseException
+	{
+		if (mFromLocalDatastore)
+		{
+			return findLocalMatches().size();
+		}
+
+		return ParseCommand.execute(ParseOperation.COUNT, mPriority, newCountRequest(),
+				this::handleCountResponse);
+	}
+
+	/**
+	 * Counts the ParseObjects that satisfy this query without blocking the
+	 * calling thread, see count().
+	 * 
+	 * @return A future completed with the number of ParseObjects obeying the
+	 *         conditions set in this query, or exceptionally with a
+	 *         ParseException.
+	 */
+	public CompletableFuture<Integer> countAsync()
+	{
+		if (mFromLocalDatastore)
+		{
+			return runLocal(() -> findLocalMatches().size());
+		}
+
+		return ParseCommand.executeAsync(ParseOperation.COUNT, mPriority, newCountRequest(),
+				this::handleCountResponse);
+	}
+
+	private HttpGet newCountRequest()
+	{
+		// only the where constraints are kept; limit=0 asks for no objects
+		ParseQuery query = copy();
+		query.mOrder.clear();
+		query.mInclude.clear();
+		query.mSelectedKeys = null;
+		query.mSkip = 0;
+		query.mLimit = 0;
+
+		return new HttpGet(Parse.getParseAPIUrlClasses() + mClassName
+				+ query.getURLConstraints() + "&count=1");
+	}
+
+	private Integer handleCountResponse(ParseResponse response) throws ParseException
+	{
+		if (response.isFailed())
+		{
+			throw response.getException();
+		}
+
+		JSONObject jsonObject = response.getJsonObject();
+
+		if (jsonObject == null || !jsonObject.has("count"))
+		{
+			throw new ParseException(ParseException.INVALID_JSON,
+					"Invalid count response from Parse servers.");
+		}
+
+		return jsonObject.optInt("count");
+	}
+
+	/**
+	 * A blocking request for the objects of a query.
+	 */
+	private interface NetworkCall
+	{
+		List<ParseObject> call() throws ParseException;
+	}
+
+	/**
+	 * Runs a blocking request according to the cache policy.
+	 */
+	private List<ParseObject> fetch(String cacheKey, final NetworkCall network)
+			throws ParseException
+	{
+		if (mCachePolicy == CachePolicy.CACHE_THEN_NETWORK)
+		{
+			throw new IllegalStateException(
+					"CACHE_THEN_NETWORK can only be used with findInBackground or getInBackground.");
+		}
+
+		CompletableFuture<List<ParseObject>> future = fetchAsync(cacheKey, () -> {
+			try
+			{
+				return CompletableFuture.completedFuture(network.call());
+			}
+			catch (ParseException e)
+			{
+				return ParseCommand.failedFuture(e);
+			}
+		});
+
+		try
+		{
+			return future.join();
+		}
+		catch (CompletionException e)
+		{
+			throw ParseCommand.toParseException(e);
+		}
+	}
+
+	/**
+	 * Runs a request according to the cache policy: the network is only asked
+	 * when the policy calls for it, and its results are stored in the cache
+	 * unless the policy is IGNORE_CACHE. Concurrent identical requests share
+	 * a single request to Parse, see Parse.setCoalesceReads().
+	 */
+	private CompletableFuture<List<ParseObject>> fetchAsync(final String cacheKey,
+			final Supplier<CompletableFuture<List<ParseObject>>> request)
+	{
+		final ParseCache cache = Parse.getCache();
+		Supplier<CompletableFuture<List<ParseObject>>> network = request;
+
+		if (Parse.isCoalesceReads())
+		{
+			network = () -> mInFlight.execute(cacheKey, request);
+		}
+
+		switch (mCachePolicy)
+		{
+			case IGNORE_CACHE:
+				return network.get();
+
+			case CACHE_ONLY:
+			{
+				List<ParseObject> cached = cache.get(cacheKey);
+
+				if (cached == null)
+				{
+					return ParseCommand.failedFuture(new ParseException(ParseException.CACHE_MISS,
+							"No results were found in the cache."));
+				}
+
+				return CompletableFuture.completedFuture(cached);
+			}
+
+			case CACHE_ELSE_NETWORK:
+			{
+				List<ParseObject> cached = cache.get(cacheKey);
+
+				if (cached != null)
+				{
+					return CompletableFuture.completedFuture(cached);
+				}
+
+				break;
+			}
+
+			case NETWORK_ELSE_CACHE:
+			{
+				final CompletableFuture<List<ParseObject>> future =
+						new CompletableFuture<List<ParseObject>>();
+
+				network.get().whenComplete((objects, t) -> {
+					if (t == null)
+					{
+						cache.put(cacheKey, objects);
+						future.complete(objects);
+						return;
+					}
+
+					ParseException e = ParseCommand.toParseException(t);
+					List<ParseObject> cached = e.getCode() == ParseException.CONNECTION_FAILED
+							? cache.get(cacheKey) : null;
+
+					if (cached != null)
+					{
+						future.complete(cached);
+					}
+					else
+					{
+						future.completeExceptionally(e);
+					}
+				});
+
+				return future;
+			}
+
+			default:
+				break;
+		}
+
+		return network.get().thenApply(objects -> {
+			cache.put(cacheKey, objects);
+			return objects;
+		});
+	}
+
+	private HttpGet newFindRequest()
+	{
+		return new HttpGet(Parse.getParseAPIUrlClasses() + mClassName + getURLConstraints());
+	}
+
+	private List<ParseObject> handleFindResponse(ParseResponse parseResponse)
+			throws ParseException
+	{
+		if (parseResponse.isFailed())
+		{
+			throw parseResponse.getException();
+		}
+
+		try
+		{
+			ArrayList<ParseObject> objects = new ArrayList<ParseObject>();
+			ParseResultReader reader = new ParseResultReader(mClassName,
+					parseResponse.getReader());
+
+			for (ParseObject object = reader.next(); object != null; object = reader.next())
+			{
+				objects.add(applySelectedKeys(object));
+			}
+
+			Parse.getMetrics().addRowsDecoded(ParseOperation.FIND, objects.size());
+			return objects;
+		}
+		catch (IOException e)
+		{
+			throw ParseResponse.getConnectionFailedException(e);
+		}
+	}
+
+	/**
+	 * A read of the local datastore.
+	 */
+	private interface LocalCall<T>
+	{
+		T call() throws ParseException;
+	}
+
+	/**
+	 * Runs a read of the local datastore on the background executor.
+	 */
+	private static <T> CompletableFuture<T> runLocal(final LocalCall<T> call)
+	{
+		final CompletableFuture<T> future = new CompletableFuture<T>();
+
+		Parse.getExecutor().execute(() -> {
+			try
+			{
+				future.complete(call.call());
+			}
+			catch (ParseException e)
+			{
+				future.completeExceptionally(e);
+			}
+		});
+
+		return future;
+	}
+
+	private ParseObject getLocal(String objectId) throws ParseException
+	{
+		ParseLocalDatastore store = ParseLocalDatastore.getInstance();
+		JSONObject json = store.get(mClassName, objectId);
+
+		if (json == null)
+		{
+			throw new ParseException(ParseException.OBJECT_NOT_FOUND,
+					"No object found in the local datastore.");
+		}
+
+		return toLocalObject(json, store);
+	}
+
+	private List<ParseObject> findLocal() throws ParseException
+	{
+		ParseLocalDatastore store = ParseLocalDatastore.getInstance();
+		List<JSONObject> matches = findLocalMatches();
+		Collections.sort(matches, ParseQueryMatcher.getComparator(mOrder));
+
+		int from = Math.min(mSkip, matches.size());
+		int to = mLimit < 0 ? matches.size() : Math.min(matches.size(), from + mLimit);
+		List<ParseObject> objects = new ArrayList<ParseObject>(to - from);
+
+		for (JSONObject json : matches.subList(from, to))
+		{
+			objects.add(toLocalObject(json, store));
+		}
+
+		return objects;
+	}
+
+	/**
+	 * @return The objects of the local datastore that satisfy the where
+	 *         constraints, encoded as Parse returns them.
+	 */
+	private List<JSONObject> findLocalMatches() throws ParseException
+	{
+		ParseQueryMatcher matcher;
+
+		try
+		{
+			matcher = new ParseQueryMatcher(compileWhere());
+		}
+		catch (JSONException e)
+		{
+			throw new ParseException(ParseException.INVALID_QUERY, "Could not compile the query.",
+					e);
+		}
+
+		List<JSONObject> matches = new ArrayList<JSONObject>();
+
+		for (JSONObject json : ParseLocalDatastore.getInstance().getAll(mClassName))
+		{
+			if (matcher.matches(json))
+			{
+				matches.add(json);
+			}
+		}
+
+		return matches;
+	}
+
+	/**
+	 * Turns an object of the local datastore into what Parse would return for
+	 * this query: the included keys embed the pinned objects they point to,
+	 * and only the selected keys are kept.
+	 */
+	private ParseObject toLocalObject(JSONObject json, ParseLocalDatastore store)
+			throws ParseException
+	{
+		for (String include : mInclude)
+		{
+			includeLocal(json, include.split("\\."), 0, store);
+		}
+
+		if (mSelectedKeys != null)
+		{
+			Set<String> kept = new LinkedHashSet<String>();
+
+			for (String key : mSelectedKeys)
+			{
+				kept.add(key.split("\\.")[0]);
+			}
+
+			String[] names = JSONObject.getNames(json);
+
+			for (int i = 0; names != null && i < names.length; i++)
+			{
+				if (!kept.contains(names[i]) && !FIELD_OBJECT_ID.equals(names[i])
+						&& !"createdAt".equals(names[i]) && !"updatedAt".equals(names[i]))
+				{
+					json.remove(names[i]);
+				}
+			}
+		}
+
+		return applySelectedKeys(new ParseObject(mClassName, json));
+	}
+
+	/**
+	 * Replaces the pointers at a dotted path of an object, or in an array
+	 * there, with the pinned objects they point to.
+	 */
+	private static void includeLocal(JSONObject json, String[] path, int index,
+			ParseLocalDatastore store) throws ParseException
+	{
+		Object value = json.opt(path[index]);
+
+		try
+		{
+			if (value instanceof JSONArray)
+			{
+				JSONArray array = (JSONArray) value;
+
+				for (int i = 0; i < array.length(); i++)
+				{
+					JSONObject included = getLocalPointee(array.opt(i), store);
+
+					if (included != null)
+					{
+						array.put(i, included);
+
+						if (index + 1 < path.length)
+						{
+							includeLocal(included, path, index + 1, store);
+						}
+					}
+				}
+			}
+			else
+			{
+				JSONObject included = getLocalPointee(value, store);
+
+				if (included != null)
+				{
+					json.put(path[index], included);
+
+					if (index + 1 < path.length)
+					{
+						includeLocal(included, path, index + 1, store);
+					}
+				}
+			}
+		}
+		catch (JSONException e)
+		{
+			throw new ParseException(ParseException.INVALID_JSON,
+					"Could not include " + path[index] + ".", e);
+		}
+	}
+
+	/**
+	 * @return The pinned object a pointer points to, embedded as Parse embeds
+	 *         included objects, or null if value is not a pointer to a pinned
+	 *         object.
+	 */
+	private static JSONObject getLocalPointee(Object value, ParseLocalDatastore store)
+			throws ParseException, JSONException
+	{
+		if (!(value instanceof JSONObject)
+				|| !"Pointer".equals(((JSONObject) value).optString("__type")))
+		{
+			return null;
+		}
+
+		JSONObject pointer = (JSONObject) value;
+		String className = pointer.optString("className");
+		JSONObject object = store.get(className, pointer.optString(FIELD_OBJECT_ID));
+
+		if (object != null)
+		{
+			object.put("__type", "Object");
+			object.put("className", className);
+		}
+
+		return object;
+	}
+
+	/**
+	 * Iterates over every ParseObject that satisfies this query, fetching
+	 * pages of DEFAULT_PAGE_SIZE objects from the server as they are needed.
+	 * 
+	 * @return A lazy iterator over the matching objects, ordered by objectId.
+	 * @see #iterate(int)
+	 */
+	public Iterator<ParseObject> iterate()
+	{
+		return iterate(DEFAULT_PAGE_SIZE);
+	}
+
+	/**
+	 * Iterates over every ParseObject that satisfies this query, fetching
+	 * pages from the server as they are needed. Pages follow each other by
+	 * objectId rather than by skip, so every page costs the server about the
+	 * same however far into the class it is, and the next page is fetched in
+	 * the background while the current one is consumed.
+	 * 
+	 * The iteration is ordered by objectId, so the query must not have an
+	 * order or a skip. A limit caps the total number of objects returned.
+	 * Failures to fetch a page are thrown from hasNext() or next() as a
+	 * ParseRuntimeException.
+	 * 
+	 * @param pageSize
+	 *            The number of objects to fetch per request, at most
+	 *            MAX_PAGE_SIZE.
+	 * @return A lazy iterator over the matching objects, ordered by objectId.
+	 */
+	public Iterator<ParseObject> iterate(int pageSize)
+	{
+		if (pageSize <= 0 || pageSize > MAX_PAGE_SIZE)
+		{
+			throw new IllegalArgumentException("Page size must be between 1 and " + MAX_PAGE_SIZE
+					+ ".");
+		}
+
+		if (hasOrderConstraints() || hasSkipConstraints())
+		{
+			throw new IllegalStateException(
+					"Iteration is ordered by objectId; remove the order and skip from the query.");
+		}
+
+		return new ParseQueryIterator(copy(), pageSize);
+	}
+
+	/**
+	 * Iterates over every ParseObject that satisfies this query by scanning
+	 * parallelism disjoint objectId ranges at the same time, in no particular
+	 * order.
+	 * 
+	 * @param parallelism
+	 *            The number of ranges fetched concurrently.
+	 * @return A lazy iterator over the matching objects.
+	 * @see #iterateParallel(int, boolean)
+	 */
+	public Iterator<ParseObject> iterateParallel(int parallelism)
+	{
+		return iterateParallel(parallelism, false);
+	}
+
+	/**
+	 * Iterates over every ParseObject that satisfies this query by scanning
+	 * parallelism disjoint objectId ranges at the same time, each one paged
+	 * the same way as iterate(). This is meant for reading whole classes: it
+	 * keeps up to parallelism requests in flight instead of one.
+	 * 
+	 * The same restrictions as iterate() apply: the query must not have an
+	 * order or a skip, a limit caps the total number of objects returned, and
+	 * failures are thrown as a ParseRuntimeException.
+	 * 
+	 * @param parallelism
+	 *            The number of ranges fetched concurrently, between 1 and 62.
+	 * @param ordered
+	 *            If true, objects are returned in objectId order; ranges after
+	 *            the one being consumed only fetch their first page ahead. If
+	 *            false, objects are returned as soon as any range has them.
+	 * @return A lazy iterator over the matching objects.
+	 */
+	public Iterator<ParseObject> iterateParallel(int parallelism, boolean ordered)
+	{
+		if (parallelism <= 0 || parallelism > ParseParallelScan.MAX_PARALLELISM)
+		{
+			throw new IllegalArgumentException("Parallelism must be between 1 and "
+					+ ParseParallelScan.MAX_PARALLELISM + ".");
+		}
+
+		if (hasOrderConstraints() || hasSkipConstraints())
+		{
+			throw new IllegalStateException(
+					"Iteration is ordered by objectId; remove the order and skip from the query.");
+		}
+
+		return new ParseParallelScan(copy(), parallelism, DEFAULT_PAGE_SIZE, ordered);
+	}
+
+	/**
+	 * Builds a copy of this query restricted to objectIds in [lower, upper),
+	 * within the constraints it already places on objectId.
+	 * 
+	 * @param lower
+	 *            The inclusive lower bound, or null for none.
+	 * @param upper
+	 *            The exclusive upper bound, or null for none.
+	 * @return The query, or null if none of its objects is in the range.
+	 */
+	ParseQuery newObjectIdRange(String lower, String upper)
+	{
+		ParseQuery range = copy();
+
+		if (lower != null && !range.restrictObjectId("$gte", lower))
+		{
+			return null;
+		}
+
+		if (upper != null && !range.restrictObjectId("$lt", upper))
+		{
+			return null;
+		}
+
+		return range;
+	}
+
+	/**
+	 * Builds the query for one page of a keyset iteration: this query ordered
+	 * by objectId, limited to limit objects, and starting after afterObjectId.
+	 * 
+	 * @param afterObjectId
+	 *            The last objectId of the previous page, or null for the first
+	 *            page.
+	 * @param limit
+	 *            The number of objects in the page.
+	 * @return The query, or null if no object of this query comes after
+	 *         afterObjectId.
+	 */
+	ParseQuery newKeysetPage(String afterObjectId, int limit)
+	{
+		ParseQuery page = copy();
+		page.mOrder.clear();
+		page.mOrder.add(FIELD_OBJECT_ID);
+		page.mSkip = 0;
+		page.mLimit = limit;
+		page.mCachePolicy = CachePolicy.IGNORE_CACHE;
+		page.mPriority = ParseRateLimiter.Priority.BACKGROUND;
+
+		if (afterObjectId != null && !page.restrictObjectId("$gt", afterObjectId))
+		{
+			return null;
+		}
+
+		return page;
+	}
+
+	/**
+	 * Creates a copy of this query, which can be changed without affecting
+	 * this one.
+	 */
+	@SuppressWarnings("unchecked")
+	ParseQuery copy()
+	{
+		ParseQuery query = new ParseQuery(mClassName);
+
+		for (Map.Entry<String, Object> entry : mWhere.entrySet())
+		{
+			Object value = entry.getValue();
+
+			if (value instanceof Map)
+			{
+				value = new LinkedHashMap<String, Object>((Map<String, Object>) value);
+			}
+
+			query.mWhere.put(entry.getKey(), value);
+		}
+
+		query.mOr.addAll(mOr);
+		query.mWhereJSON = mWhereJSON;
+
+		query.mOrder.addAll(mOrder);
+		query.mLimit = mLimit;
+		query.mSkip = mSkip;
+		query.mCachePolicy = mCachePolicy;
+		query.mInclude.addAll(mInclude);
+		query.mSelectedKeys = mSelectedKeys;
+		query.mPriority = mPriority;
+		query.mFromLocalDatastore = mFromLocalDatastore;
+
+		return query;
+	}
+
+	/**
+	 * Makes this query read the objects pinned to the local datastore instead
+	 * of asking Parse, see ParseObject.pin(). The where constraints, order,
+	 * limit, skip, include and selected keys apply as they do on Parse; the
+	 * cache policy is ignored. Included keys only embed objects that are
+	 * pinned themselves.
+	 * 
+	 * @return Returns the query, so you can chain this call.
+	 */
+	public ParseQuery fromLocalDatastore()
+	{
+		mFromLocalDatastore = true;
+		return this;
+	}
+
+	/**
+	 * Sets the lane in which the requests of this query wait when they are
+	 * held by a rate limiter. Bulk work such as iterations uses BACKGROUND.
+	 */
+	void setPriority(ParseRateLimiter.Priority priority)
+	{
+		mPriority = priority;
+	}
+
+	/**
+	 * Controls how this query uses the cache. Defaults to IGNORE_CACHE.
+	 * 
+	 * @param newCachePolicy
+	 */
+	public void setCachePolicy(CachePolicy newCachePolicy)
+	{
+		mCachePolicy = newCachePolicy;
+	}
+
+	/**
+	 * Accessor for the cache policy.
+	 * 
+	 * @return
+	 */
+	public CachePolicy getCachePolicy()
+	{
+		return mCachePolicy;
+	}
+
+	/**
+	 * Decides if the cache holds a result of find() for this query.
+	 * 
+	 * @return True if find() with CACHE_ONLY would succeed.
+	 */
+	public boolean hasCachedResult()
+	{
+		return Parse.getCache().get(getCacheKey()) != null;
+	}
+
+	/**
+	 * Removes the cached result of find() for this query.
+	 */
+	public void clearCachedResult()
+	{
+		Parse.getCache().remove(getCacheKey());
+	}
+
+	/**
+	 * Removes every cached query result.
+	 */
+	public static void clearAllCachedResults()
+	{
+		Parse.getCache().clear();
+	}
+
+	/**
+	 * Identifies the result of find() for this query in the cache: the class
+	 * and every constraint.
+	 */
+	String getCacheKey()
+	{
+		return mClassName + getURLConstraints();
+	}
+
+	/**
+	 * Identifies the result of get(objectId) on a class in the cache.
+	 */
+	static String getCacheKey(String className, String objectId)
+	{
+		return className + "/" + objectId;
+	}
+
+	/**
+	 * Identifies the result of get(objectId) for this query, which differs
+	 * from getCacheKey(className, objectId) when keys are included or
+	 * selected.
+	 */
+	private String getGetCacheKey(String objectId)
+	{
+		return getCacheKey(mClassName, objectId) + getURLObjectParameters();
+	}
+
+	/**
+	 * Accessor to the name of the class this query retrieves ParseObjects for.
+	 * 
+	 * @return The class name.
+	 */
+	public String getClassName()
+	{
+		return mClassName;
+	}
+
+	/**
+	 * Add a constraint to the query that requires a particular key's value to
+	 * be equal to the provided value.
+	 * 
+	 * @param key
+	 *            The key to check.
+	 * @param value
+	 *            The value that the ParseObject must contain.
+	 * @return Returns the query, so you can chain this call.
+	 */
+	public ParseQuery whereEqualTo(String key, Object value)
+	{
+		checkValue(value);
+		mWhere.put(key, value);
+		mWhereJSON = null;
+		return this;
+	}
+
+	/**
+	 * Add a constraint to the query that requires a particular key's value to
+	 * be not equal to the provided value.
+	 * 
+	 * @param key
+	 *            The key to check.
+	 * @param value
+	 *            The value that must not be equalled.
+	 * @return Returns the query, so you can chain this call.
+	 */
+	public ParseQuery whereNotEqualTo(String key, Object value)
+	{
+		return addCondition(key, "$ne", value);
+	}
+
+	/**
+	 * Add a constraint to the query that requires a particular key's value to
+	 * be less than the provided value.
+	 * 
+	 * @param key
+	 *            The key to check.
+	 * @param value
+	 *            The value that provides an upper bound.
+	 * @return Returns the query, so you can chain this call.
+	 */
+	public ParseQuery whereLessThan(String key, Object value)
+	{
+		return addCondition(key, "$lt", value);
+	}
+
+	/**
+	 * Add a constraint to the query that requires a particular key's value to
+	 * be less than or equal to the provided value.
+	 * 
+	 * @param key
+	 *            The key to check.
+	 * @param value
+	 *            The value that provides an upper bound.
+	 * @return Returns the query, so you can chain this call.
+	 */
+	public ParseQuery whereLessThanOrEqualTo(String key, Object value)
+	{
+		return addCondition(key, "$lte", value);
+	}
+
+	/**
+	 * Add a constraint to the query that requires a particular key's value to
+	 * be greater than the provided value.
+	 * 
+	 * @param key
+	 *            The key to check.
+	 * @param value
+	 *            The value that provides an lower bound.
+	 * @return Returns the query, so you can chain this call.
+	 */
+	public ParseQuery whereGreaterThan(String key, Object value)
+	{
+		return addCondition(key, "$gt", value);
+	}
+
+	/**
+	 * Add a constraint to the query that requires a particular key's value to
+	 * be greater than or equal to the provided value.
+	 * 
+	 * @param key
+	 *            The key to check.
+	 * @param value
+	 *            The value that provides a lower bound.
+	 * @return Returns the query, so you can chain this call.
+	 */
+	public ParseQuery whereGreaterThanOrEqualTo(String key, Object value)
+	{
+		return addCondition(key, "$gte", value);
+	}
+
+	/**
+	 * Add a constraint to the query that requires a particular key's value to
+	 * be contained in the provided list of values.
+	 * 
+	 * @param key
+	 *            The key to check.
+	 * @param values
+	 *            The values that will match.
+	 * @return Returns the query, so you can chain this call.
+	 */
+	public ParseQuery whereContainedIn(String key, Collection<?> values)
+	{
+		return addCondition(key, "$in", new ArrayList<Object>(values));
+	}
+
+	/**
+	 * Add a constraint to the query that requires a particular key's value not
+	 * be contained in the provided list of values.
+	 * 
+	 * @param key
+	 *            The key to check.
+	 * @param values
+	 *            The values that will not match.
+	 * @return Returns the query, so you can chain this call.
+	 */
+	public ParseQuery whereNotContainedIn(String key, Collection<?> values)
+	{
+		return addCondition(key, "$nin", new ArrayList<Object>(values));
+	}
+
+	/**
+	 * Add a constraint to the query that requires a particular key's value,
+	 * which must be an array, to contain every one of the provided values.
+	 * 
+	 * @param key
+	 *            The key to check.
+	 * @param values
+	 *            The values that must all be contained.
+	 * @return Returns the query, so you can chain this call.
+	 */
+	public ParseQuery whereContainsAll(String key, Collection<?> values)
+	{
+		return addCondition(key, "$all", new ArrayList<Object>(values));
+	}
+
+	/**
+	 * Add a constraint for finding objects that contain the given key.
+	 * 
+	 * @param key
+	 *            The key that should exist.
+	 * @return Returns the query, so you can chain this call.
+	 */
+	public ParseQuery whereExists(String key)
+	{
+		return addCondition(key, "$exists", Boolean.TRUE);
+	}
 
 	/**
-	 * Constructs a query. A default query with no further parameters will
-	 * retrieve all ParseObjects of the provided class.
+	 * Add a constraint for finding objects that do not contain the given key.
 	 * 
-	 * @param className
-	 *            The name of the class to retrieve ParseObjects for.
+	 * @param key
+	 *            The key that should not exist.
+	 * @return Returns the query, so you can chain this call.
 	 */
-	public ParseQuery(String className)
+	public ParseQuery whereDoesNotExist(String key)
 	{
-		mClassName = className;
+		return addCondition(key, "$exists", Boolean.FALSE);
 	}
 
 	/**
-	 * Helper Thread to execute Parse Get calls off of the main application
-	 * thread.
+	 * Add a regular expression constraint for finding string values that match
+	 * the provided regular expression. This may be slow for large datasets.
 	 * 
+	 * @param key
+	 *            The key that the string to match is stored in.
+	 * @param regex
+	 *            The regular expression pattern to match.
+	 * @return Returns the query, so you can chain this call.
 	 */
-	class GetInBackgroundThread extends Thread
+	public ParseQuery whereMatches(String key, String regex)
 	{
-		GetCallback mGetCallback;
-		String mObjectId;
+		return addCondition(key, "$regex", regex);
+	}
 
-		/**
-		 * @param objectId
-		 * @param callback
-		 */
-		GetInBackgroundThread(String objectId, GetCallback callback)
-		{
-			mGetCallback = callback;
-			mObjectId = objectId;
-		}
+	/**
+	 * Add a regular expression constraint for finding string values that match
+	 * the provided regular expression. This may be slow for large datasets.
+	 * 
+	 * @param key
+	 *            The key that the string to match is stored in.
+	 * @param regex
+	 *            The regular expression pattern to match.
+	 * @param modifiers
+	 *            Any of the following supported PCRE modifiers: i - Case
+	 *            insensitive search, m - Search across multiple lines of input
+	 * @return Returns the query, so you can chain this call.
+	 */
+	public ParseQuery whereMatches(String key, String regex, String modifiers)
+	{
+		addCondition(key, "$regex", regex);
+		return addCondition(key, "$options", modifiers);
+	}
 
-		public void run()
-		{
-			try
-			{
-				ParseObject getObject = get(mObjectId);
-				mGetCallback.done(getObject);
-			}
-			catch (ParseException e)
-			{
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
-		}
+	/**
+	 * Add a constraint for finding string values that start with a provided
+	 * string. Unlike whereMatches(), this can use an index on the key.
+	 * 
+	 * @param key
+	 *            The key that the string to match is stored in.
+	 * @param prefix
+	 *            The substring that the value must start with.
+	 * @return Returns the query, so you can chain this call.
+	 */
+	public ParseQuery whereStartsWith(String key, String prefix)
+	{
+		return whereMatches(key, "^" + Pattern.quote(prefix));
 	}
 
 	/**
-	 * Constructs a ParseObject whose id is already known by fetching data from
-	 * the server in a background thread. This does not use caching. This is
-	 * preferable to using the ParseObject(className, objectId) constructor,
-	 * unless your code is already running in a background thread.
+	 * Add a constraint for finding string values that contain a provided
+	 * string. This may be slow for large datasets.
 	 * 
-	 * @param objectId
-	 *            Object id of the ParseObject to fetch.
-	 * @param callback
-	 *            callback.done(object, e) will be called when the fetch
-	 *            completes.
+	 * @param key
+	 *            The key that the string to match is stored in.
+	 * @param substring
+	 *            The substring that the value must contain.
+	 * @return Returns the query, so you can chain this call.
 	 */
-	public void getInBackground(String objectId, GetCallback callback)
+	public ParseQuery whereContains(String key, String substring)
 	{
-		GetInBackgroundThread t = new GetInBackgroundThread(objectId, callback);
-		t.start();
+		return whereMatches(key, Pattern.quote(substring));
 	}
 
 	/**
-	 * Constructs a ParseObject whose id is already known by fetching data from
-	 * the server. This does not use caching.
+	 * Include nested ParseObjects for the provided key. The key's value must
+	 * be a pointer; the object it points to is returned embedded in each
+	 * result, in the same request, and can be read with
+	 * ParseObject.getParseObject(). Use a dot-separated path such as
+	 * "customer.address" to also include the objects pointed to by an
+	 * included object.
 	 * 
-	 * @param theObjectId
-	 *            Object id of the ParseObject to fetch.
-	 * @return
-	 * @throws ParseException
-	 *             Throws an exception when there is no such object or when the
-	 *             network connection fails.
+	 * @param key
+	 *            The key, or dot-separated path of keys, to include.
+	 * @return Returns the query, so you can chain this call.
 	 */
-	public ParseObject get(String theObjectId) throws ParseException
+	public ParseQuery include(String key)
 	{
-		try
-		{
-			HttpClient httpclient = Util.newHttpClient();
-			HttpGet httpget = new HttpGet(Parse.getParseAPIUrlClasses() + mClassName + "/"
-					+ theObjectId);
-			httpget.addHeader("X-Parse-Application-Id", Parse.getApplicationId());
-			httpget.addHeader("X-Parse-REST-API-Key", Parse.getRestAPIKey());
+		mInclude.add(key);
+		return this;
+	}
+
+	/**
+	 * Restricts the keys of the ParseObjects returned to the given keys, so
+	 * that large values the caller does not need are not transferred. The
+	 * objects returned are partial: ParseObject.isDataAvailable() is false for
+	 * the other keys, and reading them throws an IllegalStateException.
+	 * objectId, createdAt and updatedAt are always returned.
+	 * 
+	 * @param keys
+	 *            The keys to fetch. Use a dot-separated path such as
+	 *            "customer.name" to select keys of an included object.
+	 * @return Returns the query, so you can chain this call.
+	 */
+	public ParseQuery selectKeys(Collection<String> keys)
+	{
+		mSelectedKeys = Collections.unmodifiableSet(new LinkedHashSet<String>(keys));
+		return this;
+	}
 
-			HttpResponse httpResponse = httpclient.execute(httpget);
+	/**
+	 * Adds an operator constraint such as {"$gt": value} on a key, alongside
+	 * any other operator constraints already placed on that key.
+	 */
+	@SuppressWarnings("unchecked")
+	private ParseQuery addCondition(String key, String operator, Object value)
+	{
+		checkValue(value);
 
-			ParseResponse response = new ParseResponse(httpResponse);
+		Object condition = mWhere.get(key);
+		Map<String, Object> operators;
 
-			if (!response.isFailed())
-			{
-				return new ParseObject(mClassName, response.getJsonObject());
-			}
-			else
-			{
-				throw response.getException();
-			}
-		}
-		catch (ClientProtocolException e)
+		if (condition instanceof Map)
 		{
-			throw ParseResponse.getConnectionFailedException(e.getMessage());
+			operators = (Map<String, Object>) condition;
 		}
-		catch (IOException e)
+		else
 		{
-			throw ParseResponse.getConnectionFailedException(e.getMessage());
+			operators = new LinkedHashMap<String, Object>();
+			mWhere.put(key, operators);
 		}
+
+		operators.put(operator, value);
+		mWhereJSON = null;
+		return this;
 	}
 
 	/**
-	 * A thread used to execute a ParseQuery find off of the main thread.
-	 * 
+	 * Rejects a value JSON cannot hold, NaN or an infinite number, also inside
+	 * collections and maps, when the constraint is placed rather than when the
+	 * query is sent.
 	 */
-	private class FindInBackgroundThread extends Thread
+	private static void checkValue(Object value)
 	{
-		FindCallback mFindCallback;
-
-		FindInBackgroundThread(FindCallback callback)
+		if (value instanceof Double || value instanceof Float)
 		{
-			mFindCallback = callback;
-		}
+			double number = ((Number) value).doubleValue();
 
-		public void run()
+			if (Double.isNaN(number) || Double.isInfinite(number))
+			{
+				throw new IllegalArgumentException("A query cannot compare with " + value + ".");
+			}
+		}
+		else if (value instanceof Collection)
 		{
-			List<ParseObject> objects = null;
-			ParseException exception = null;
-			
-			try
+			for (Object element : (Collection<?>) value)
 			{
-				objects = find();
+				checkValue(element);
 			}
-			catch (ParseException e)
+		}
+		else if (value instanceof Map)
+		{
+			for (Object element : ((Map<?, ?>) value).values())
 			{
-				exception = e;
+				checkValue(element);
 			}
-			
-			mFindCallback.done (objects, exception);
 		}
 	}
 
 	/**
-	 * Retrieves a list of ParseObjects that satisfy this query from the server
-	 * in a background thread. This is preferable to using find(), unless your
-	 * code is already running in a background thread.
+	 * Narrows the objectIds this query matches with a bound, keeping the
+	 * constraints already placed on objectId: an objectId the query must equal
+	 * stays, and of two bounds given with the same operator the tighter one
+	 * is kept.
 	 * 
-	 * @param callback
-	 *            callback - callback.done(object, e) is called when the find
-	 *            completes.
+	 * @param operator
+	 *            "$gt", "$gte", "$lt" or "$lte".
+	 * @param bound
+	 *            The objectId to compare with.
+	 * @return False if no objectId can satisfy the constraints any more.
 	 */
-	public void findInBackground(FindCallback callback)
+	@SuppressWarnings("unchecked")
+	private boolean restrictObjectId(String operator, String bound)
 	{
-		FindInBackgroundThread t = new FindInBackgroundThread(callback);
-		t.start();
+		Object condition = mWhere.get(FIELD_OBJECT_ID);
+
+		if (condition != null && !(condition instanceof Map))
+		{
+			// whereEqualTo(), which the bound either keeps or excludes
+			return compareObjectId(String.valueOf(condition), operator, bound);
+		}
+
+		Object current = condition == null ? null
+				: ((Map<String, Object>) condition).get(operator);
+
+		if (!(current instanceof String) || compareObjectId(bound,
+				operator.startsWith("$g") ? "$gt" : "$lt", (String) current))
+		{
+			addCondition(FIELD_OBJECT_ID, operator, bound);
+		}
+
+		return !isObjectIdRangeEmpty((Map<String, Object>) mWhere.get(FIELD_OBJECT_ID));
 	}
 
 	/**
-	 * Retrieves a list of ParseObjects that satisfy this query. Uses the
-	 * network and/or the cache, depending on the cache policy.
-	 * 
-	 * @return A list of all ParseObjects obeying the conditions set in this
-	 *         query.
+	 * @return Whether the bounds among the operators on objectId leave no
+	 *         objectId between them.
 	 */
-	public List<ParseObject> find() throws ParseException
+	private static boolean isObjectIdRangeEmpty(Map<String, Object> operators)
 	{
-		try
-		{
-			HttpClient httpclient = Util.newHttpClient();
-			HttpGet httpget = new HttpGet(Parse.getParseAPIUrlClasses() + mClassName
-					+ getURLConstraints());
-			httpget.addHeader("X-Parse-Application-Id", Parse.getApplicationId());
-			httpget.addHeader("X-Parse-REST-API-Key", Parse.getRestAPIKey());
+		String lower = null;
+		String upper = null;
+		boolean lowerOpen = false;
+		boolean upperOpen = false;
 
-			HttpResponse httpResponse = httpclient.execute(httpget);
-			ParseResponse parseResponse = new ParseResponse(httpResponse);
-
-			if (parseResponse.isFailed())
+		for (Map.Entry<String, Object> entry : operators.entrySet())
+		{
+			if (!(entry.getValue() instanceof String))
 			{
-				throw parseResponse.getException();
+				continue;
 			}
 
-			JSONObject obj = parseResponse.getJsonObject();
+			String value = (String) entry.getValue();
+			boolean open = entry.getKey().equals("$gt") || entry.getKey().equals("$lt");
 
-			if (obj == null)
-			{
-				throw parseResponse.getException();
-			}
-
-			try
+			if (entry.getKey().startsWith("$gt"))
 			{
-				ArrayList<ParseObject> objects = new ArrayList<ParseObject>();
-				JSONArray results = obj.getJSONArray("results");
-
-				for (int i = 0; i < results.length(); i++)
+				if (lower == null || compareObjectId(value, open ? "$gte" : "$gt", lower))
 				{
-					ParseObject parseObject = new ParseObject(mClassName);
-					JSONObject jsonObject = results.getJSONObject(i);
-
-					for (String name : JSONObject.getNames(jsonObject))
-					{
-						parseObject.put(name, jsonObject.get(name));
-					}
-
-					objects.add(parseObject);
-
+					lower = value;
+					lowerOpen = open;
 				}
-
-				return objects;
 			}
-			catch (JSONException e)
+			else if (entry.getKey().startsWith("$lt"))
 			{
-				throw new ParseException(ParseException.INVALID_JSON,
-						"Error parsing the array of results returned by query.", e);
+				if (upper == null || compareObjectId(value, open ? "$lte" : "$lt", upper))
+				{
+					upper = value;
+					upperOpen = open;
+				}
 			}
 		}
-		catch (ClientProtocolException e)
-		{
-			throw ParseResponse.getConnectionFailedException(e);
-		}
-		catch (IOException e)
+
+		if (lower == null || upper == null)
 		{
-			throw ParseResponse.getConnectionFailedException(e);
+			return false;
 		}
-	}
 
-	/**
-	 * Add a constraint to the query that requires a particular key's value to
-	 * be equal to the provided value.
-	 * 
-	 * @param key
-	 *            The key to check.
-	 * @param value
-	 *            The value that the ParseObject must contain.
-	 * @return Returns the query, so you can chain this call.
-	 */
-	public ParseQuery whereEqualTo(String key, Object value)
-	{
-		mWhereEqualTo = new SimpleEntry<String, Object>(key, value);
-		return this;
+		int c = lower.compareTo(upper);
+
+		return c > 0 || c == 0 && (lowerOpen || upperOpen);
 	}
 
 	/**
-	 * Add a constraint to the query that requires a particular key's value to
-	 * be greater than the provided value.
-	 * 
-	 * @param key
-	 *            The key to check.
-	 * @param value
-	 *            The value that provides an lower bound.
-	 * @return Returns the query, so you can chain this call.
+	 * @return Whether objectId satisfies {operator: bound}, objectIds being
+	 *         compared as Parse compares them.
 	 */
-	public ParseQuery whereGreaterThan(String key, Object value)
+	private static boolean compareObjectId(String objectId, String operator, String bound)
 	{
-		// MultiValueMap map = new MultiValueMap();
-		return this;
+		int c = objectId.compareTo(bound);
+
+		switch (operator)
+		{
+			case "$gt":
+				return c > 0;
+			case "$gte":
+				return c >= 0;
+			case "$lt":
+				return c < 0;
+			case "$lte":
+				return c <= 0;
+			default:
+				return true;
+		}
 	}
 
 	/**
@@ -307,7 +1549,17 @@ public class ParseQuery
 	private boolean hasConstraints()
 	{
 		return hasWhereConstraints() || hasOrderConstraints() || hasLimitConstraints()
-				|| hasSkipConstraints();
+				|| hasSkipConstraints() || hasIncludeConstraints() || hasSelectedKeys();
+	}
+
+	private boolean hasSelectedKeys()
+	{
+		return mSelectedKeys != null;
+	}
+
+	private boolean hasIncludeConstraints()
+	{
+		return !mInclude.isEmpty();
 	}
 
 	private boolean hasLimitConstraints()
@@ -317,7 +1569,7 @@ public class ParseQuery
 
 	private boolean hasWhereConstraints()
 	{
-		return mWhereEqualTo != null;
+		return !mWhere.isEmpty() || !mOr.isEmpty();
 	}
 
 	private boolean hasOrderConstraints()
@@ -331,8 +1583,8 @@ public class ParseQuery
 	}
 
 	/**
-	 * Constraints on a Query using the REST API are communicated as 'where' and
-	 * 'order', 'limit' and 'skip' parameters in the URL. This method takes the
+	 * Constraints on a Query using the REST API are communicated as 'where',
+	 * 'order', 'limit', 'skip', 'include' and 'keys' parameters in the URL. This method takes the
 	 * current constraints on the Query and returns them formatted as a partial
 	 * URL.
 	 * 
@@ -403,7 +1655,7 @@ public class ParseQuery
 						firstParam = false;
 					}
 
-					url += URLEncoder.encode("limit=" + mLimit, "UTF-8");
+					url += "limit=" + mLimit;
 				}
 
 				if (hasSkipConstraints())
@@ -417,7 +1669,35 @@ public class ParseQuery
 						firstParam = false;
 					}
 
-					url += URLEncoder.encode("skip=" + mSkip, "UTF-8");
+					url += "skip=" + mSkip;
+				}
+
+				if (hasIncludeConstraints())
+				{
+					if (!firstParam)
+					{
+						url += "&";
+					}
+					else
+					{
+						firstParam = false;
+					}
+
+					url += getURLKeys("include", mInclude);
+				}
+
+				if (hasSelectedKeys())
+				{
+					if (!firstParam)
+					{
+						url += "&";
+					}
+					else
+					{
+						firstParam = false;
+					}
+
+					url += getURLKeys("keys", mSelectedKeys);
 				}
 			}
 		}
@@ -429,32 +1709,118 @@ public class ParseQuery
 		return url;
 	}
 
+	/**
+	 * The parameters of this query that also apply to fetching a single
+	 * object: 'include' and 'keys'.
+	 * 
+	 * @return The URL formatted parameters, or "" if there are none.
+	 */
+	private String getURLObjectParameters()
+	{
+		String url = "";
+
+		if (hasIncludeConstraints())
+		{
+			url += "?" + getURLKeys("include", mInclude);
+		}
+
+		if (hasSelectedKeys())
+		{
+			url += (url.isEmpty() ? "?" : "&") + getURLKeys("keys", mSelectedKeys);
+		}
+
+		return url;
+	}
+
+	/**
+	 * @return A parameter listing keys, such as 'include' or 'keys'.
+	 */
+	private static String getURLKeys(String name, Collection<String> keyList)
+	{
+		String keys = "";
+
+		for (Iterator<String> i = keyList.iterator(); i.hasNext();)
+		{
+			keys += i.next();
+
+			if (i.hasNext())
+			{
+				keys += ",";
+			}
+		}
+
+		try
+		{
+			return name + "=" + URLEncoder.encode(keys, "UTF-8");
+		}
+		catch (UnsupportedEncodingException e)
+		{
+			return "";
+		}
+	}
+
 	/**
 	 * Creates a Parse readable JSON string containing the current Query where
 	 * constraints. This can then be URL formatted for using in an HTTP request.
+	 * The constraints are compiled once, and again only after they change.
 	 * 
 	 * @return A Parse readable JSON string of constraints to place on a Query.
 	 */
 	private String getJSONWhereConstraints()
 	{
-		String js = "";
+		String js = mWhereJSON;
 
-		if (mWhereEqualTo != null)
+		if (js == null)
 		{
-			JSONObject jo = new JSONObject();
+			js = "";
 
-			try
+			if (hasWhereConstraints())
 			{
-				jo.put(((String) mWhereEqualTo.getKey()), mWhereEqualTo.getValue());
-				js = jo.toString();
+				try
+				{
+					js = compileWhere().toString();
+				}
+				catch (JSONException e)
+				{
+					// without its where, the query would match the whole class
+					throw new IllegalStateException("Could not encode the constraints of the query.",
+							e);
+				}
 			}
-			catch (JSONException e)
+
+			mWhereJSON = js;
+		}
+
+		return js;
+	}
+
+	/**
+	 * Builds the "where" object: each key maps to the value it must equal or
+	 * to its operators, with values encoded as Parse expects them, and the
+	 * queries of an or are listed under "$or".
+	 */
+	private JSONObject compileWhere() throws JSONException
+	{
+		JSONObject jo = new JSONObject();
+
+		for (Map.Entry<String, Object> entry : mWhere.entrySet())
+		{
+			jo.put(entry.getKey(), ParseObject.encode(entry.getValue()));
+		}
+
+		if (!mOr.isEmpty())
+		{
+			JSONArray or = new JSONArray();
+
+			for (ParseQuery query : mOr)
 			{
-				e.printStackTrace();
+				or.put(query.compileWhere());
 			}
+
+			jo.put("$or", or);
 		}
 
-		return js;
+		return jo;
 	}
 
 	/**
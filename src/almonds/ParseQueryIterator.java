@@ -0,0 +1,147 @@
+package almonds;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Iterates over every object matching a query, fetching pages on demand.
+ * 
+ * Pages are ordered by objectId and each page asks for the objects whose
+ * objectId is greater than the last one seen (keyset pagination), so the
+ * server never has to skip over earlier rows and the cost of a page does not
+ * grow with its position. As soon as a page arrives the next one is requested
+ * in the background, while the current page is being consumed.
+ * 
+ * @author js
+ */
+class ParseQueryIterator implements Iterator<ParseObject>
+{
+	private ParseQuery mQuery;
+	private int mPageSize;
+	private int mRemaining; // objects still wanted, or -1 for no limit
+
+	private Iterator<ParseObject> mPage = Collections.<ParseObject> emptyList().iterator();
+	private CompletableFuture<List<ParseObject>> mNextPage;
+
+	/**
+	 * @param query
+	 *            The query to iterate over. Its limit, if any, caps the total
+	 *            number of objects returned.
+	 * @param pageSize
+	 *            The number of objects to fetch per request.
+	 */
+	ParseQueryIterator(ParseQuery query, int pageSize)
+	{
+		mQuery = query;
+		mPageSize = pageSize;
+		mRemaining = query.getLimit();
+		mNextPage = fetch(null);
+	}
+
+	public boolean hasNext()
+	{
+		while (!mPage.hasNext())
+		{
+			if (mNextPage == null)
+			{
+				return false;
+			}
+
+			List<ParseObject> page = await(mNextPage);
+			int requested = nextPageLimit();
+			mNextPage = null;
+
+			if (mRemaining > 0)
+			{
+				mRemaining = Math.max(0, mRemaining - page.size());
+			}
+
+			if (page.size() >= requested && mRemaining != 0)
+			{
+				mNextPage = fetch(page.get(page.size() - 1).getObjectId());
+			}
+
+			mPage = page.iterator();
+		}
+
+		return true;
+	}
+
+	/**
+	 * Decides if hasNext() can answer without waiting on the network.
+	 * 
+	 * @return True if a fetched object is waiting, the iteration is over, or
+	 *         the page being fetched has arrived.
+	 */
+	boolean isReady()
+	{
+		return mPage.hasNext() || mNextPage == null || mNextPage.isDone();
+	}
+
+	/**
+	 * @return A future that completes once isReady() is true.
+	 */
+	CompletableFuture<?> whenReady()
+	{
+		return isReady() ? CompletableFuture.completedFuture(null) : mNextPage;
+	}
+
+	public ParseObject next()
+	{
+		if (!hasNext())
+		{
+			throw new NoSuchElementException();
+		}
+
+		return mPage.next();
+	}
+
+	public void remove()
+	{
+		throw new UnsupportedOperationException();
+	}
+
+	private int nextPageLimit()
+	{
+		return mRemaining < 0 ? mPageSize : Math.min(mPageSize, mRemaining);
+	}
+
+	private CompletableFuture<List<ParseObject>> fetch(String afterObjectId)
+	{
+		if (mRemaining == 0)
+		{
+			return CompletableFuture.completedFuture(Collections.<ParseObject> emptyList());
+		}
+
+		ParseQuery page = mQuery.newKeysetPage(afterObjectId, nextPageLimit());
+
+		if (page == null)
+		{
+			return CompletableFuture.completedFuture(Collections.<ParseObject> emptyList());
+		}
+
+		return page.findAsync();
+	}
+
+	private static List<ParseObject> await(CompletableFuture<List<ParseObject>> future)
+	{
+		try
+		{
+			return future.get();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new ParseRuntimeException(new ParseException(ParseException.OTHER_CAUSE,
+					"Interrupted while fetching the next page.", e));
+		}
+		catch (ExecutionException e)
+		{
+			throw new ParseRuntimeException(ParseCommand.toParseException(e));
+		}
+	}
+}
@@ -0,0 +1,626 @@
+package almonds;
+
+import java.util.Comparator;
+import java.util.Date;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Evaluates the constraints of a ParseQuery against objects encoded as Parse
+ * returns them, for queries on the local datastore. It supports the same
+ * constraints as ParseQuery: equality, $ne, $lt, $lte, $gt, $gte, $in, $nin,
+ * $all, $exists, $regex with $options and $or, on keys that may be dotted to
+ * reach into embedded objects. As on Parse, equality and $in on an array
+ * match if any element matches, and values are compared by type: numbers by
+ * value, dates by time, pointers by class and objectId. $lt, $lte, $gt and
+ * $gte only match values of the type of their operand, so that {"$gt": 10}
+ * does not match a String. The patterns of $regex are compiled once, with
+ * the matcher.
+ *
+ * @author js
+ */
+class ParseQueryMatcher
+{
+	private static final String FIELD_TYPE = "__type";
+	private static final String FIELD_CLASS_NAME = "className";
+	private static final String FIELD_OBJECT_ID = "objectId";
+	private static final String FIELD_ISO = "iso";
+	private static final String FIELD_CREATED_AT = "createdAt";
+	private static final String FIELD_UPDATED_AT = "updatedAt";
+
+	private static final String TYPE_POINTER = "Pointer";
+	private static final String TYPE_OBJECT = "Object";
+	private static final String TYPE_DATE = "Date";
+
+	private final JSONObject mWhere;
+
+	// the pattern of each map of operators that holds a $regex
+	private final Map<JSONObject, Pattern> mPatterns = new IdentityHashMap<JSONObject, Pattern>();
+
+	/**
+	 * @param where
+	 *            The compiled "where" constraints of the query.
+	 * @throws ParseException
+	 *             INVALID_QUERY if a constraint is not supported or a $regex
+	 *             is not a valid pattern.
+	 */
+	ParseQueryMatcher(JSONObject where) throws ParseException
+	{
+		mWhere = where;
+		validate(where);
+	}
+
+	/**
+	 * @param object
+	 *            An object encoded as Parse returns it.
+	 * @return Whether the object satisfies every constraint.
+	 */
+	boolean matches(JSONObject object)
+	{
+		return matches(mWhere, object);
+	}
+
+	/**
+	 * Orders objects by the keys of a query, each ascending or, prefixed with
+	 * "-", descending, and then by objectId.
+	 */
+	static Comparator<JSONObject> getComparator(final List<String> order)
+	{
+		return (a, b) -> {
+			for (String key : order)
+			{
+				boolean descending = key.startsWith("-");
+				String path = descending ? key.substring(1) : key;
+				int c = compare(getValue(a, path), getValue(b, path));
+
+				if (c != 0)
+				{
+					return descending ? -c : c;
+				}
+			}
+
+			return a.optString(FIELD_OBJECT_ID).compareTo(b.optString(FIELD_OBJECT_ID));
+		};
+	}
+
+	private void validate(JSONObject where) throws ParseException
+	{
+		String[] keys = JSONObject.getNames(where);
+
+		if (keys == null)
+		{
+			return;
+		}
+
+		for (String key : keys)
+		{
+			Object condition = where.opt(key);
+
+			if ("$or".equals(key))
+			{
+				JSONArray or = where.optJSONArray(key);
+
+				for (int i = 0; or != null && i < or.length(); i++)
+				{
+					validate(or.optJSONObject(i));
+				}
+			}
+			else if (key.startsWith("$"))
+			{
+				throw unsupported(key);
+			}
+			else if (isOperators(condition))
+			{
+				JSONObject operators = (JSONObject) condition;
+
+				for (String operator : JSONObject.getNames(operators))
+				{
+					if (!isSupported(operator))
+					{
+						throw unsupported(operator);
+					}
+				}
+
+				if (operators.has("$regex"))
+				{
+					mPatterns.put(operators, compilePattern(operators));
+				}
+			}
+		}
+	}
+
+	private static boolean isSupported(String operator)
+	{
+		switch (operator)
+		{
+			case "$ne":
+			case "$lt":
+			case "$lte":
+			case "$gt":
+			case "$gte":
+			case "$in":
+			case "$nin":
+			case "$all":
+			case "$exists":
+			case "$regex":
+			case "$options":
+				return true;
+
+			default:
+				return false;
+		}
+	}
+
+	private static ParseException unsupported(String operator)
+	{
+		return new ParseException(ParseException.INVALID_QUERY, "The constraint " + operator
+				+ " is not supported by the local datastore.");
+	}
+
+	/**
+	 * Decides whether a condition is a map of operators rather than a value to
+	 * equal.
+	 */
+	private static boolean isOperators(Object condition)
+	{
+		if (!(condition instanceof JSONObject))
+		{
+			return false;
+		}
+
+		String[] keys = JSONObject.getNames((JSONObject) condition);
+
+		return keys != null && keys[0].startsWith("$");
+	}
+
+	private boolean matches(JSONObject where, JSONObject object)
+	{
+		String[] keys = JSONObject.getNames(where);
+
+		if (keys == null)
+		{
+			return true;
+		}
+
+		for (String key : keys)
+		{
+			if ("$or".equals(key))
+			{
+				if (!matchesAny(where.optJSONArray(key), object))
+				{
+					return false;
+				}
+
+				continue;
+			}
+
+			Object condition = where.opt(key);
+			Object value = getValue(object, key);
+
+			if (isOperators(condition))
+			{
+				if (!matchesOperators((JSONObject) condition, value))
+				{
+					return false;
+				}
+			}
+			else if (!matchesEqual(value, condition))
+			{
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	private boolean matchesAny(JSONArray or, JSONObject object)
+	{
+		for (int i = 0; or != null && i < or.length(); i++)
+		{
+			if (matches(or.optJSONObject(i), object))
+			{
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	private boolean matchesOperators(JSONObject operators, Object value)
+	{
+		for (String operator : JSONObject.getNames(operators))
+		{
+			Object operand = operators.opt(operator);
+
+			switch (operator)
+			{
+				case "$ne":
+					if (matchesEqual(value, operand))
+					{
+						return false;
+					}
+					break;
+
+				case "$lt":
+					if (!isOrdered(value, operand) || compare(value, operand) >= 0)
+					{
+						return false;
+					}
+					break;
+
+				case "$lte":
+					if (!isOrdered(value, operand) || compare(value, operand) > 0)
+					{
+						return false;
+					}
+					break;
+
+				case "$gt":
+					if (!isOrdered(value, operand) || compare(value, operand) <= 0)
+					{
+						return false;
+					}
+					break;
+
+				case "$gte":
+					if (!isOrdered(value, operand) || compare(value, operand) < 0)
+					{
+						return false;
+					}
+					break;
+
+				case "$in":
+					if (!matchesIn(value, (JSONArray) operand))
+					{
+						return false;
+					}
+					break;
+
+				case "$nin":
+					if (matchesIn(value, (JSONArray) operand))
+					{
+						return false;
+					}
+					break;
+
+				case "$all":
+					if (!matchesAll(value, (JSONArray) operand))
+					{
+						return false;
+					}
+					break;
+
+				case "$exists":
+					if ((value != null) != Boolean.TRUE.equals(operand))
+					{
+						return false;
+					}
+					break;
+
+				case "$regex":
+					if (!(value instanceof String)
+							|| !mPatterns.get(operators).matcher((String) value).find())
+					{
+						return false;
+					}
+					break;
+
+				default:
+					break;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Decides whether a value equals a constant, or holds it if the value is
+	 * an array.
+	 */
+	private static boolean matchesEqual(Object value, Object constant)
+	{
+		if (value instanceof JSONArray && !(constant instanceof JSONArray))
+		{
+			JSONArray array = (JSONArray) value;
+
+			for (int i = 0; i < array.length(); i++)
+			{
+				if (isEqual(array.opt(i), constant))
+				{
+					return true;
+				}
+			}
+
+			return false;
+		}
+
+		return isEqual(value, constant);
+	}
+
+	private static boolean matchesIn(Object value, JSONArray constants)
+	{
+		for (int i = 0; i < constants.length(); i++)
+		{
+			if (matchesEqual(value, constants.opt(i)))
+			{
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	private static boolean matchesAll(Object value, JSONArray constants)
+	{
+		if (!(value instanceof JSONArray))
+		{
+			return false;
+		}
+
+		for (int i = 0; i < constants.length(); i++)
+		{
+			if (!matchesEqual(value, constants.opt(i)))
+			{
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Compiles the $regex of a map of operators with its $options.
+	 */
+	private static Pattern compilePattern(JSONObject operators) throws ParseException
+	{
+		int flags = 0;
+
+		for (char option : operators.optString("$options").toCharArray())
+		{
+			switch (option)
+			{
+				case 'i':
+					flags |= Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE;
+					break;
+				case 'm':
+					flags |= Pattern.MULTILINE;
+					break;
+				case 's':
+					flags |= Pattern.DOTALL;
+					break;
+				case 'x':
+					flags |= Pattern.COMMENTS;
+					break;
+				default:
+					break;
+			}
+		}
+
+		try
+		{
+			return Pattern.compile(operators.optString("$regex"), flags);
+		}
+		catch (PatternSyntaxException e)
+		{
+			throw new ParseException(ParseException.INVALID_QUERY, "The $regex "
+					+ operators.optString("$regex") + " is not a valid pattern.", e);
+		}
+	}
+
+	/**
+	 * Follows a dotted key into embedded objects.
+	 *
+	 * @return The value, or null if there is none.
+	 */
+	private static Object getValue(JSONObject object, String key)
+	{
+		Object value = object;
+
+		for (String part : key.split("\\."))
+		{
+			if (!(value instanceof JSONObject))
+			{
+				return null;
+			}
+
+			value = ((JSONObject) value).opt(part);
+		}
+
+		// Parse returns the timestamps as plain strings
+		if (value instanceof String && (FIELD_CREATED_AT.equals(key) || FIELD_UPDATED_AT.equals(key)))
+		{
+			Date date = ParseDateFormat.parse((String) value);
+			return date != null ? date : value;
+		}
+
+		return value == JSONObject.NULL ? null : value;
+	}
+
+	private static boolean isEqual(Object a, Object b)
+	{
+		if (a == null || b == null || b == JSONObject.NULL)
+		{
+			return a == null && (b == null || b == JSONObject.NULL);
+		}
+
+		if (a instanceof Number && b instanceof Number)
+		{
+			return ((Number) a).doubleValue() == ((Number) b).doubleValue();
+		}
+
+		if (getSortKey(a) instanceof Date || getSortKey(b) instanceof Date)
+		{
+			return compare(a, b) == 0;
+		}
+
+		String pa = getPointerKey(a);
+		String pb = getPointerKey(b);
+
+		if (pa != null && pb != null)
+		{
+			return pa.equals(pb);
+		}
+
+		if (a instanceof JSONArray && b instanceof JSONArray)
+		{
+			// element by element, since pointers are written in any order of
+			// their members
+			JSONArray ja = (JSONArray) a;
+			JSONArray jb = (JSONArray) b;
+
+			if (ja.length() != jb.length())
+			{
+				return false;
+			}
+
+			for (int i = 0; i < ja.length(); i++)
+			{
+				if (!isEqual(ja.opt(i), jb.opt(i)))
+				{
+					return false;
+				}
+			}
+
+			return true;
+		}
+
+		if (a instanceof JSONObject || a instanceof JSONArray)
+		{
+			return a.toString().equals(b.toString());
+		}
+
+		return a.equals(b);
+	}
+
+	/**
+	 * Identifies the object a value stands for by class and objectId, if it
+	 * is a pointer, either a ParsePointer of the constraints or one as Parse
+	 * returns it, or an embedded object as returned for an included key.
+	 *
+	 * @return The class and objectId, or null if value is none of these.
+	 */
+	private static String getPointerKey(Object value)
+	{
+		if (value instanceof ParsePointer)
+		{
+			ParsePointer pointer = (ParsePointer) value;
+			return pointer.getClassName() + "/"
+					+ (pointer.getObjectId() == null ? "" : pointer.getObjectId());
+		}
+
+		if (value instanceof JSONObject)
+		{
+			JSONObject object = (JSONObject) value;
+			String type = object.optString(FIELD_TYPE);
+
+			if (TYPE_POINTER.equals(type) || TYPE_OBJECT.equals(type))
+			{
+				return object.optString(FIELD_CLASS_NAME) + "/"
+						+ object.optString(FIELD_OBJECT_ID);
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Decides whether a value can be ordered against the operand of $lt, $lte,
+	 * $gt or $gte: it is present and of the same type.
+	 */
+	private static boolean isOrdered(Object value, Object operand)
+	{
+		return value != null && getRank(getSortKey(value)) == getRank(getSortKey(operand));
+	}
+
+	/**
+	 * Compares two values of the same type; values of different types are
+	 * ordered by type, and absent values first.
+	 */
+	private static int compare(Object a, Object b)
+	{
+		Object ka = getSortKey(a);
+		Object kb = getSortKey(b);
+		int ra = getRank(ka);
+		int rb = getRank(kb);
+
+		if (ra != rb)
+		{
+			return Integer.compare(ra, rb);
+		}
+
+		switch (ra)
+		{
+			case 1:
+				return Double.compare(((Number) ka).doubleValue(), ((Number) kb).doubleValue());
+			case 2:
+				return ((String) ka).compareTo((String) kb);
+			case 3:
+				return ((Date) ka).compareTo((Date) kb);
+			case 4:
+				return ((Boolean) ka).compareTo((Boolean) kb);
+			case 5:
+				return ka.toString().compareTo(kb.toString());
+			default:
+				return 0;
+		}
+	}
+
+	/**
+	 * Reduces a value to what it is compared by: dates to Dates, pointers to
+	 * their objectIds.
+	 */
+	private static Object getSortKey(Object value)
+	{
+		if (value instanceof JSONObject
+				&& TYPE_DATE.equals(((JSONObject) value).optString(FIELD_TYPE)))
+		{
+			Date date = ParseDateFormat.parse(((JSONObject) value).optString(FIELD_ISO));
+			return date != null ? date : value;
+		}
+
+		String pointer = getPointerKey(value);
+
+		if (pointer != null)
+		{
+			return pointer;
+		}
+
+		return value == JSONObject.NULL ? null : value;
+	}
+
+	private static int getRank(Object key)
+	{
+		if (key == null)
+		{
+			return 0;
+		}
+
+		if (key instanceof Number)
+		{
+			return 1;
+		}
+
+		if (key instanceof String)
+		{
+			return 2;
+		}
+
+		if (key instanceof Date)
+		{
+			return 3;
+		}
+
+		if (key instanceof Boolean)
+		{
+			return 4;
+		}
+
+		return 5;
+	}
+}
@@ -0,0 +1,279 @@
+package almonds;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps requests to Parse under a rate, so that a burst of work stays within
+ * the request quota of the app instead of being rejected by the server. Set
+ * one with Parse.setRateLimiter(), for all requests or for the requests on one
+ * class.
+ *
+ * The limiter is a token bucket: it holds up to burst permits, refilled at
+ * permitsPerSecond, and each request takes one. When none is left, a queueing
+ * limiter holds the request until a permit is available, and a rejecting one
+ * fails it at once with REQUEST_LIMIT_EXCEEDED. Held requests do not occupy a
+ * thread unless the caller is waiting on a synchronous operation.
+ *
+ * Requests held by a queueing limiter are let through in two lanes: every
+ * INTERACTIVE request is let through before any BACKGROUND one, so that bulk
+ * work such as batches and iterations does not delay the requests a user is
+ * waiting on.
+ *
+ * @author js
+ */
+public class ParseRateLimiter
+{
+	public static final int DEFAULT_MAX_QUEUE_LENGTH = 10000;
+
+	/**
+	 * The lanes in which queued requests wait.
+	 */
+	public enum Priority
+	{
+		/**
+		 * Requests of single objects and queries, let through first.
+		 */
+		INTERACTIVE,
+
+		/**
+		 * Bulk work: batches, iterations and fetchAllPointers().
+		 */
+		BACKGROUND
+	}
+
+	private static final CompletableFuture<Void> GRANTED = CompletableFuture.completedFuture(null);
+
+	private final double mPermitsPerNano;
+	private final int mBurst;
+	private final boolean mQueueing;
+	private final int mMaxQueueLength;
+
+	private double mTokens;
+	private long mLastRefill = System.nanoTime();
+	private boolean mDrainScheduled = false;
+
+	private final Deque<CompletableFuture<Void>> mInteractive =
+			new ArrayDeque<CompletableFuture<Void>>();
+	private final Deque<CompletableFuture<Void>> mBackground =
+			new ArrayDeque<CompletableFuture<Void>>();
+
+	private final LongAdder mGranted = new LongAdder();
+	private final LongAdder mQueued = new LongAdder();
+	private final LongAdder mRejected = new LongAdder();
+	private int mMaxQueueLengthSeen = 0;
+
+	/**
+	 * Constructs a queueing limiter that holds up to DEFAULT_MAX_QUEUE_LENGTH
+	 * requests.
+	 *
+	 * @param permitsPerSecond
+	 *            The sustained rate of requests.
+	 * @param burst
+	 *            The most requests let through at once after a quiet period.
+	 */
+	public ParseRateLimiter(double permitsPerSecond, int burst)
+	{
+		this(permitsPerSecond, burst, true, DEFAULT_MAX_QUEUE_LENGTH);
+	}
+
+	/**
+	 * @param permitsPerSecond
+	 *            The sustained rate of requests.
+	 * @param burst
+	 *            The most requests let through at once after a quiet period.
+	 * @param queueing
+	 *            Whether requests over the rate are held rather than
+	 *            rejected.
+	 * @param maxQueueLength
+	 *            The most requests held; requests beyond it are rejected.
+	 */
+	public ParseRateLimiter(double permitsPerSecond, int burst, boolean queueing,
+			int maxQueueLength)
+	{
+		if (permitsPerSecond <= 0 || burst <= 0 || maxQueueLength < 0)
+		{
+			throw new IllegalArgumentException(
+					"Rate and burst must be positive, and the queue length not negative.");
+		}
+
+		mPermitsPerNano = permitsPerSecond / TimeUnit.SECONDS.toNanos(1);
+		mBurst = burst;
+		mQueueing = queueing;
+		mMaxQueueLength = maxQueueLength;
+		mTokens = burst;
+	}
+
+	/**
+	 * @return The number of requests held in a lane.
+	 */
+	public synchronized int getQueueLength(Priority priority)
+	{
+		return getQueue(priority).size();
+	}
+
+	/**
+	 * @return The number of requests held in both lanes.
+	 */
+	public synchronized int getQueueLength()
+	{
+		return mInteractive.size() + mBackground.size();
+	}
+
+	/**
+	 * @return The largest number of requests held at once so far.
+	 */
+	public synchronized int getMaxQueueLength()
+	{
+		return mMaxQueueLengthSeen;
+	}
+
+	/**
+	 * @return The number of requests let through, at once or after being
+	 *         held.
+	 */
+	public long getGrantedCount()
+	{
+		return mGranted.sum();
+	}
+
+	/**
+	 * @return The number of requests that had to be held.
+	 */
+	public long getQueuedCount()
+	{
+		return mQueued.sum();
+	}
+
+	/**
+	 * @return The number of requests rejected.
+	 */
+	public long getRejectedCount()
+	{
+		return mRejected.sum();
+	}
+
+	/**
+	 * Takes a permit for one request.
+	 *
+	 * @return A future completed once the request may be sent, or
+	 *         exceptionally with REQUEST_LIMIT_EXCEEDED if it is rejected.
+	 *         Cancelling the future gives up the place in the queue.
+	 */
+	synchronized CompletableFuture<Void> acquire(Priority priority)
+	{
+		refill();
+
+		if (mInteractive.isEmpty() && mBackground.isEmpty() && mTokens >= 1)
+		{
+			mTokens -= 1;
+			mGranted.increment();
+			return GRANTED;
+		}
+
+		if (!mQueueing || getQueueLength() >= mMaxQueueLength)
+		{
+			mRejected.increment();
+			return ParseCommand.failedFuture(new ParseException(
+					ParseException.REQUEST_LIMIT_EXCEEDED,
+					"Request rate limit exceeded; the request was not sent."));
+		}
+
+		CompletableFuture<Void> permit = new CompletableFuture<Void>();
+		getQueue(priority).add(permit);
+		mQueued.increment();
+		mMaxQueueLengthSeen = Math.max(mMaxQueueLengthSeen, getQueueLength());
+
+		scheduleDrain();
+
+		return permit;
+	}
+
+	private Deque<CompletableFuture<Void>> getQueue(Priority priority)
+	{
+		return priority == Priority.BACKGROUND ? mBackground : mInteractive;
+	}
+
+	private void refill()
+	{
+		long now = System.nanoTime();
+		mTokens = Math.min(mBurst, mTokens + (now - mLastRefill) * mPermitsPerNano);
+		mLastRefill = now;
+	}
+
+	/**
+	 * Arranges for held requests to be let through once the next permit is
+	 * available.
+	 */
+	private void scheduleDrain()
+	{
+		if (mDrainScheduled)
+		{
+			return;
+		}
+
+		long delay = (long) Math.ceil(Math.max(0, 1 - mTokens) / mPermitsPerNano);
+
+		ParseExecutors.getScheduler().schedule(this::drain, delay, TimeUnit.NANOSECONDS);
+		mDrainScheduled = true;
+	}
+
+	private void drain()
+	{
+		List<CompletableFuture<Void>> permits = new ArrayList<CompletableFuture<Void>>();
+
+		synchronized (this)
+		{
+			mDrainScheduled = false;
+			refill();
+
+			while (mTokens >= 1)
+			{
+				CompletableFuture<Void> permit = mInteractive.poll();
+
+				if (permit == null)
+				{
+					permit = mBackground.poll();
+				}
+
+				if (permit == null)
+				{
+					break;
+				}
+
+				// a cancelled request does not use its permit
+				if (!permit.isDone())
+				{
+					mTokens -= 1;
+					mGranted.increment();
+					permits.add(permit);
+				}
+			}
+
+			if (!mInteractive.isEmpty() || !mBackground.isEmpty())
+			{
+				scheduleDrain();
+			}
+		}
+
+		// the requests start on Parse.getExecutor(), outside of the lock, since
+		// preparing and compressing them is no work for the scheduler
+		for (CompletableFuture<Void> permit : permits)
+		{
+			try
+			{
+				Parse.getExecutor().execute(() -> permit.complete(null));
+			}
+			catch (RejectedExecutionException e)
+			{
+				permit.complete(null);
+			}
+		}
+	}
+}
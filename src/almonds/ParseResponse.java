@@ -1,11 +1,19 @@
 package almonds;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 
-import javax.net.ssl.SSLEngineResult.Status;
-
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.entity.ContentType;
 import org.apache.http.util.EntityUtils;
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -41,6 +49,50 @@ class ParseResponse
 		}
 	}
 
+	/**
+	 * Opens the response body for reading without buffering it. The body can
+	 * only be read once.
+	 * 
+	 * @return A reader over the body, decoded with the charset declared by
+	 *         the response or UTF-8.
+	 * @throws IOException
+	 *             If the body cannot be read.
+	 */
+	public Reader getReader() throws IOException
+	{
+		HttpEntity entity = mHttpResponse.getEntity();
+		Charset charset = ContentType.getOrDefault(entity).getCharset();
+
+		return new InputStreamReader(entity.getContent(),
+				charset != null ? charset : StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Parses the response body as a JSON array, as returned by the batch
+	 * endpoint.
+	 * 
+	 * @return The array, or null if the body is not a JSON array.
+	 */
+	public JSONArray getJsonArray()
+	{
+		try
+		{
+			return new JSONArray(EntityUtils.toString(mHttpResponse.getEntity()));
+		}
+		catch (org.apache.http.ParseException e)
+		{
+			return null;
+		}
+		catch (JSONException e)
+		{
+			return null;
+		}
+		catch (IOException e)
+		{
+			return null;
+		}
+	}
+
 	public boolean isFailed()
 	{
 		return hasConnectionFailed() || hasErrorCode();
@@ -58,6 +110,49 @@ class ParseResponse
 		return (statusCode < 200 || statusCode >= 300);
 	}
 
+	public int getStatusCode()
+	{
+		return mHttpResponse.getStatusLine().getStatusCode();
+	}
+
+	/**
+	 * Decides if the failure may go away on its own, so that the request is
+	 * worth retrying: the server is overloaded or failing (5xx), or asks the
+	 * client to slow down (429).
+	 * 
+	 * @return True for a transient failure.
+	 */
+	public boolean isTransientFailure()
+	{
+		int statusCode = getStatusCode();
+
+		return statusCode == HttpStatus.SC_TOO_MANY_REQUESTS
+				|| statusCode >= HttpStatus.SC_INTERNAL_SERVER_ERROR;
+	}
+
+	/**
+	 * @return The delay asked for by a Retry-After header in seconds, in
+	 *         milliseconds, or 0 if there is none.
+	 */
+	long getRetryAfter()
+	{
+		Header header = mHttpResponse.getFirstHeader("Retry-After");
+
+		if (header != null)
+		{
+			try
+			{
+				return Math.max(0, Long.parseLong(header.getValue().trim()) * 1000);
+			}
+			catch (NumberFormatException e)
+			{
+				// an HTTP date, which is not worth the parsing
+			}
+		}
+
+		return 0;
+	}
+
 	public ParseException getException()
 	{
 		if (hasConnectionFailed())
@@ -121,6 +216,28 @@ class ParseResponse
 
 	}
 
+	/**
+	 * Releases the connection held by this response back to the pool. Any
+	 * unread content is consumed first so that the connection can be reused.
+	 * Safe to call more than once.
+	 */
+	public void release()
+	{
+		EntityUtils.consumeQuietly(mHttpResponse.getEntity());
+
+		if (mHttpResponse instanceof Closeable)
+		{
+			try
+			{
+				((Closeable) mHttpResponse).close();
+			}
+			catch (IOException e)
+			{
+				// the connection is discarded rather than reused
+			}
+		}
+	}
+
 	static ParseException getConnectionFailedException(String message)
 	{
 		return new ParseException(ParseException.CONNECTION_FAILED,
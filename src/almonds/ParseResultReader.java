@@ -0,0 +1,193 @@
+package almonds;
+
+import java.io.Reader;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+/**
+ * Reads the objects of a query response one at a time, straight from the
+ * response body. The response is a JSON object whose "results" member is an
+ * array of objects; only the row being decoded is held in memory, so the
+ * memory needed to read a page does not grow with its size.
+ *
+ * @author js
+ */
+class ParseResultReader
+{
+	static final String FIELD_RESULTS = "results";
+
+	private String mClassName;
+	private JSONTokener mTokener;
+
+	private boolean mInResults = false;
+	private boolean mFinished = false;
+	private boolean mFirstRow = true;
+
+	/**
+	 * @param className
+	 *            The class of the objects being read.
+	 * @param reader
+	 *            The response body.
+	 */
+	ParseResultReader(String className, Reader reader)
+	{
+		mClassName = className;
+		mTokener = new JSONTokener(reader);
+	}
+
+	/**
+	 * Reads the next object of the results.
+	 *
+	 * @return The next object, or null once all results have been read.
+	 * @throws ParseException
+	 *             If the response is not a valid query response.
+	 */
+	ParseObject next() throws ParseException
+	{
+		try
+		{
+			if (!mInResults && !mFinished)
+			{
+				seekResults();
+			}
+
+			if (mFinished)
+			{
+				return null;
+			}
+
+			char c = mTokener.nextClean();
+
+			if (!mFirstRow)
+			{
+				if (c == ']')
+				{
+					endResults();
+					return null;
+				}
+
+				if (c != ',')
+				{
+					throw mTokener.syntaxError("Expected a ',' or ']'");
+				}
+
+				c = mTokener.nextClean();
+			}
+			else if (c == ']')
+			{
+				endResults();
+				return null;
+			}
+
+			mFirstRow = false;
+			mTokener.back();
+
+			Object value = mTokener.nextValue();
+
+			if (!(value instanceof JSONObject))
+			{
+				throw mTokener.syntaxError("Expected an object in the results");
+			}
+
+			return new ParseObject(mClassName, (JSONObject) value);
+		}
+		catch (JSONException e)
+		{
+			throw new ParseException(ParseException.INVALID_JSON,
+					"Error parsing the array of results returned by query.", e);
+		}
+	}
+
+	/**
+	 * Advances to the first element of the results array, skipping any other
+	 * members of the response that come before it.
+	 */
+	private void seekResults() throws JSONException
+	{
+		if (mTokener.nextClean() != '{')
+		{
+			throw mTokener.syntaxError("A query response must begin with '{'");
+		}
+
+		boolean first = true;
+
+		while (true)
+		{
+			char c = mTokener.nextClean();
+
+			if (c == '}')
+			{
+				mFinished = true;
+				return;
+			}
+
+			if (!first)
+			{
+				if (c != ',')
+				{
+					throw mTokener.syntaxError("Expected a ',' or '}'");
+				}
+
+				c = mTokener.nextClean();
+			}
+
+			first = false;
+			mTokener.back();
+
+			String key = mTokener.nextValue().toString();
+
+			if (mTokener.nextClean() != ':')
+			{
+				throw mTokener.syntaxError("Expected a ':' after a key");
+			}
+
+			if (FIELD_RESULTS.equals(key))
+			{
+				if (mTokener.nextClean() != '[')
+				{
+					throw mTokener.syntaxError("Expected the results to be an array");
+				}
+
+				mInResults = true;
+				return;
+			}
+
+			mTokener.nextValue();
+		}
+	}
+
+	/**
+	 * Skips the members of the response that follow the results array.
+	 */
+	private void endResults() throws JSONException
+	{
+		mInResults = false;
+		mFinished = true;
+
+		while (true)
+		{
+			char c = mTokener.nextClean();
+
+			if (c == '}' || c == 0)
+			{
+				return;
+			}
+
+			if (c != ',')
+			{
+				throw mTokener.syntaxError("Expected a ',' or '}'");
+			}
+
+			mTokener.nextValue();
+
+			if (mTokener.nextClean() != ':')
+			{
+				throw mTokener.syntaxError("Expected a ':' after a key");
+			}
+
+			mTokener.nextValue();
+		}
+	}
+}
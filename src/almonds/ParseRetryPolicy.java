@@ -0,0 +1,187 @@
+package almonds;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Decides whether and when a request that failed transiently is sent again. A
+ * failure is transient when the connection fails or Parse answers with a 5xx
+ * status or 429 (too many requests); other errors are never retried.
+ *
+ * By default reads, counts, updates and deletes are retried, since sending
+ * them twice has the same effect as sending them once. Saves of new objects
+ * and batches are not, since a save whose response was lost may have created
+ * the object; setRetryNonIdempotent(true) retries them as well.
+ *
+ * The delay before each retry is drawn at random between zero and an
+ * exponentially growing cap, so that clients that failed together do not
+ * retry together, and no retry is made after the deadline.
+ *
+ * @author js
+ */
+public class ParseRetryPolicy
+{
+	public static final int DEFAULT_MAX_ATTEMPTS = 4;
+	public static final long DEFAULT_INITIAL_BACKOFF = 100;
+	public static final long DEFAULT_MAX_BACKOFF = 5000;
+	public static final long DEFAULT_DEADLINE = 30000;
+
+	private int mMaxAttempts = DEFAULT_MAX_ATTEMPTS;
+	private long mInitialBackoff = DEFAULT_INITIAL_BACKOFF;
+	private long mMaxBackoff = DEFAULT_MAX_BACKOFF;
+	private long mDeadline = DEFAULT_DEADLINE;
+	private boolean mRetryNonIdempotent = false;
+
+	/**
+	 * @return A policy that never retries.
+	 */
+	public static ParseRetryPolicy noRetries()
+	{
+		return new ParseRetryPolicy().setMaxAttempts(1);
+	}
+
+	/**
+	 * @param maxAttempts
+	 *            The most times a request is sent, including the first.
+	 * @return This policy, so you can chain this call.
+	 */
+	public ParseRetryPolicy setMaxAttempts(int maxAttempts)
+	{
+		if (maxAttempts <= 0)
+		{
+			throw new IllegalArgumentException("Max attempts must be positive.");
+		}
+
+		mMaxAttempts = maxAttempts;
+		return this;
+	}
+
+	public int getMaxAttempts()
+	{
+		return mMaxAttempts;
+	}
+
+	/**
+	 * @param initialBackoff
+	 *            The cap on the delay before the first retry, in
+	 *            milliseconds. The cap doubles with each retry.
+	 * @param maxBackoff
+	 *            The largest cap on the delay before a retry, in
+	 *            milliseconds.
+	 * @return This policy, so you can chain this call.
+	 */
+	public ParseRetryPolicy setBackoff(long initialBackoff, long maxBackoff)
+	{
+		if (initialBackoff <= 0 || maxBackoff < initialBackoff)
+		{
+			throw new IllegalArgumentException(
+					"Backoff must be positive, and the maximum at least the initial backoff.");
+		}
+
+		mInitialBackoff = initialBackoff;
+		mMaxBackoff = maxBackoff;
+		return this;
+	}
+
+	public long getInitialBackoff()
+	{
+		return mInitialBackoff;
+	}
+
+	public long getMaxBackoff()
+	{
+		return mMaxBackoff;
+	}
+
+	/**
+	 * @param deadline
+	 *            The time from the first attempt after which no retry is
+	 *            started, in milliseconds.
+	 * @return This policy, so you can chain this call.
+	 */
+	public ParseRetryPolicy setDeadline(long deadline)
+	{
+		if (deadline <= 0)
+		{
+			throw new IllegalArgumentException("Deadline must be positive.");
+		}
+
+		mDeadline = deadline;
+		return this;
+	}
+
+	public long getDeadline()
+	{
+		return mDeadline;
+	}
+
+	/**
+	 * @param retryNonIdempotent
+	 *            Whether saves of new objects and batches are retried too,
+	 *            at the risk of creating an object twice.
+	 * @return This policy, so you can chain this call.
+	 */
+	public ParseRetryPolicy setRetryNonIdempotent(boolean retryNonIdempotent)
+	{
+		mRetryNonIdempotent = retryNonIdempotent;
+		return this;
+	}
+
+	public boolean isRetryNonIdempotent()
+	{
+		return mRetryNonIdempotent;
+	}
+
+	/**
+	 * @param operation
+	 * @return Whether requests of the operation may be retried.
+	 */
+	public boolean isRetryable(ParseOperation operation)
+	{
+		switch (operation)
+		{
+			case SAVE:
+			case BATCH:
+				return mRetryNonIdempotent;
+
+			default:
+				return true;
+		}
+	}
+
+	/**
+	 * Decides how long to wait before sending a request again.
+	 * 
+	 * @param operation
+	 *            The kind of request that failed.
+	 * @param attempt
+	 *            The number of times it has been sent.
+	 * @param elapsed
+	 *            The time since it was first sent, in milliseconds.
+	 * @param retryAfter
+	 *            The delay asked for by the server, or 0.
+	 * @return The delay in milliseconds, or -1 if the request is not retried.
+	 */
+	long getRetryDelay(ParseOperation operation, int attempt, long elapsed, long retryAfter)
+	{
+		if (attempt >= mMaxAttempts || !isRetryable(operation))
+		{
+			return -1;
+		}
+
+		long cap = mInitialBackoff << Math.min(attempt - 1, 30);
+
+		if (cap <= 0 || cap > mMaxBackoff)
+		{
+			cap = mMaxBackoff;
+		}
+
+		long delay = Math.max(ThreadLocalRandom.current().nextLong(cap + 1), retryAfter);
+
+		if (elapsed + delay > mDeadline)
+		{
+			return -1;
+		}
+
+		return delay;
+	}
+}
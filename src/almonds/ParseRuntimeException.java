@@ -0,0 +1,38 @@
+package almonds;
+
+/**
+ * Unchecked wrapper for a ParseException, thrown where an interface such as
+ * Iterator does not allow checked exceptions, for example when the next page
+ * of ParseQuery.iterate() cannot be fetched.
+ * 
+ * @author js
+ */
+public class ParseRuntimeException extends RuntimeException
+{
+	private static final long serialVersionUID = 1L;
+
+	public ParseRuntimeException(ParseException cause)
+	{
+		super(cause.getMessage(), cause);
+	}
+
+	/**
+	 * Accessor to the wrapped exception.
+	 * 
+	 * @return The ParseException that caused this exception.
+	 */
+	public ParseException getParseException()
+	{
+		return (ParseException) getCause();
+	}
+
+	/**
+	 * Accessor to the code of the wrapped exception.
+	 * 
+	 * @return The ParseException code.
+	 */
+	public int getCode()
+	{
+		return getParseException().getCode();
+	}
+}
@@ -0,0 +1,206 @@
+package almonds;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The keys of a ParseObject, each assigned the slot of ParseFields that holds
+ * its value. The objects of a class that have the same keys, added in the
+ * same order, share one shape, so that the keys are held once per class
+ * rather than once per object; objects decoded from the rows of a query all
+ * end up with the same few shapes.
+ *
+ * Shapes are immutable. Adding a key to an object moves it to the shape with
+ * that key appended, which is created once and then found among the
+ * transitions of the shape it was added to. The shapes of a class form a tree
+ * rooted in the empty shape of getRoot().
+ *
+ * Once a class has MAX_SHAPES_PER_CLASS shapes, a key that leads off the tree
+ * gives an unshared shape, which belongs to one object and has no
+ * transitions. Decoding adds the keys of an object with with(String[], int),
+ * which builds such a shape in one step rather than one per key.
+ *
+ * @author js
+ */
+class ParseShape
+{
+	// beyond this many shapes in a class, further shapes are not shared, so
+	// that objects getting keys in ever different orders cannot make the
+	// shapes grow without bound
+	static final int MAX_SHAPES_PER_CLASS = 1024;
+
+	// shapes with fewer keys find their slots by scanning
+	private static final int MIN_INDEXED_KEYS = 8;
+
+	private static final ConcurrentMap<String, ParseShape> mRoots =
+			new ConcurrentHashMap<String, ParseShape>();
+
+	private final String[] mKeys;
+	private final Map<String, Integer> mSlots;
+
+	// null for a shape that is not shared
+	private final ConcurrentMap<String, ParseShape> mTransitions;
+
+	// the number of shapes of the class, shared by all of them
+	private final AtomicInteger mClassShapeCount;
+
+	/**
+	 * @return The shape of the objects of a class that have no key.
+	 */
+	static ParseShape getRoot(String className)
+	{
+		ParseShape root = mRoots.get(className);
+
+		if (root == null)
+		{
+			root = new ParseShape(new String[0], new AtomicInteger(1), true);
+			ParseShape previous = mRoots.putIfAbsent(className, root);
+
+			if (previous != null)
+			{
+				root = previous;
+			}
+		}
+
+		return root;
+	}
+
+	private ParseShape(String[] keys, AtomicInteger classShapeCount, boolean shared)
+	{
+		mKeys = keys;
+		mClassShapeCount = classShapeCount;
+		mTransitions = shared ? new ConcurrentHashMap<String, ParseShape>(4) : null;
+
+		if (keys.length < MIN_INDEXED_KEYS)
+		{
+			mSlots = null;
+		}
+		else
+		{
+			mSlots = new HashMap<String, Integer>(keys.length * 4 / 3 + 1);
+
+			for (int i = 0; i < keys.length; i++)
+			{
+				mSlots.put(keys[i], i);
+			}
+		}
+	}
+
+	/**
+	 * @return The number of keys, which are in the slots from 0 to size() - 1.
+	 */
+	int size()
+	{
+		return mKeys.length;
+	}
+
+	/**
+	 * @return The key held in a slot.
+	 */
+	String getKey(int slot)
+	{
+		return mKeys[slot];
+	}
+
+	/**
+	 * @return The slot of a key, or -1 if this shape does not have it.
+	 */
+	int getSlot(String key)
+	{
+		if (mSlots != null)
+		{
+			Integer slot = mSlots.get(key);
+			return slot != null ? slot : -1;
+		}
+
+		for (int i = 0; i < mKeys.length; i++)
+		{
+			if (mKeys[i].equals(key))
+			{
+				return i;
+			}
+		}
+
+		return -1;
+	}
+
+	/**
+	 * @param key
+	 *            A key this shape does not have.
+	 * @return The shape with the keys of this one and then key, in the slot
+	 *         numbered size().
+	 */
+	ParseShape with(String key)
+	{
+		ParseShape next = mTransitions == null ? null : mTransitions.get(key);
+
+		if (next != null)
+		{
+			return next;
+		}
+
+		boolean shared = mTransitions != null
+				&& mClassShapeCount.get() < MAX_SHAPES_PER_CLASS;
+		next = new ParseShape(append(mKeys, new String[] {key}, 0, 1), mClassShapeCount, shared);
+
+		if (!shared)
+		{
+			return next;
+		}
+
+		ParseShape previous = mTransitions.putIfAbsent(key, next);
+
+		if (previous != null)
+		{
+			return previous;
+		}
+
+		mClassShapeCount.incrementAndGet();
+		return next;
+	}
+
+	/**
+	 * @param keys
+	 *            Keys this shape does not have, each given once.
+	 * @param count
+	 *            The number of keys to add, from the first.
+	 * @return The shape with the keys of this one and then the given keys in
+	 *         their order. The keys from the first that leads off the shared
+	 *         shapes are added in one step.
+	 */
+	ParseShape with(String[] keys, int count)
+	{
+		ParseShape shape = this;
+
+		for (int i = 0; i < count; i++)
+		{
+			ParseShape next = shape.mTransitions == null ? null
+					: shape.mTransitions.get(keys[i]);
+
+			if (next == null && (shape.mTransitions == null
+					|| mClassShapeCount.get() >= MAX_SHAPES_PER_CLASS))
+			{
+				return new ParseShape(append(shape.mKeys, keys, i, count), mClassShapeCount,
+						false);
+			}
+
+			shape = next != null ? next : shape.with(keys[i]);
+		}
+
+		return shape;
+	}
+
+	/**
+	 * @return The keys followed by those of more from index from to index to.
+	 */
+	private static String[] append(String[] keys, String[] more, int from, int to)
+	{
+		String[] all = new String[keys.length + to - from];
+		System.arraycopy(keys, 0, all, 0, keys.length);
+		System.arraycopy(more, from, all, keys.length, to - from);
+		return all;
+	}
+}
@@ -0,0 +1,98 @@
+package almonds;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces identical reads that are in flight at the same time. The first
+ * caller for a key issues the request; callers that arrive with the same key
+ * before it completes wait on that request instead of issuing their own, and
+ * all of them receive its result or its exception.
+ *
+ * Every caller receives its own copies of the objects, so one caller changing
+ * its results is never seen by another.
+ *
+ * @author js
+ */
+class ParseSingleFlight
+{
+	private final ConcurrentMap<String, CompletableFuture<List<ParseObject>>> mInFlight =
+			new ConcurrentHashMap<String, CompletableFuture<List<ParseObject>>>();
+
+	/**
+	 * Runs the request for the key, or joins the one already in flight.
+	 *
+	 * @param key
+	 *            Identifies the read: the class and objectId of a get, or the
+	 *            class and constraints of a find.
+	 * @param request
+	 *            Issues the request; only called if none is in flight for the
+	 *            key.
+	 * @return A future completed with copies of the objects read, or
+	 *         exceptionally with the exception of the shared request.
+	 */
+	CompletableFuture<List<ParseObject>> execute(final String key,
+			Supplier<CompletableFuture<List<ParseObject>>> request)
+	{
+		final CompletableFuture<List<ParseObject>> shared =
+				new CompletableFuture<List<ParseObject>>();
+		CompletableFuture<List<ParseObject>> inFlight = mInFlight.putIfAbsent(key, shared);
+
+		if (inFlight != null)
+		{
+			return inFlight.thenApply(ParseSingleFlight::copy);
+		}
+
+		CompletableFuture<List<ParseObject>> future;
+
+		try
+		{
+			future = request.get();
+		}
+		catch (RuntimeException e)
+		{
+			future = ParseCommand.failedFuture(e);
+		}
+
+		// later callers must issue a new request once this one has completed,
+		// so the key is released before the waiters are
+		future.whenComplete((objects, t) -> {
+			mInFlight.remove(key, shared);
+
+			if (t == null)
+			{
+				shared.complete(objects);
+			}
+			else
+			{
+				shared.completeExceptionally(ParseCommand.toParseException(t));
+			}
+		});
+
+		return shared.thenApply(ParseSingleFlight::copy);
+	}
+
+	/**
+	 * @return The number of distinct reads in flight.
+	 */
+	int size()
+	{
+		return mInFlight.size();
+	}
+
+	private static List<ParseObject> copy(List<ParseObject> objects)
+	{
+		List<ParseObject> copies = new ArrayList<ParseObject>(objects.size());
+
+		for (ParseObject object : objects)
+		{
+			copies.add(object.copy());
+		}
+
+		return copies;
+	}
+}
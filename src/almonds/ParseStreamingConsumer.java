@@ -0,0 +1,138 @@
+package almonds;
+
+import java.io.IOException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.entity.ContentInputStream;
+import org.apache.http.nio.protocol.AbstractAsyncResponseConsumer;
+import org.apache.http.nio.util.ContentInputBuffer;
+import org.apache.http.nio.util.SharedInputBuffer;
+import org.apache.http.nio.util.SimpleInputBuffer;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * Receives a response of the non-blocking client so that a successful body
+ * can be read while it arrives, rather than once it is held whole in memory
+ * as the default consumer does.
+ *
+ * As soon as the headers of a successful response with a body are in, the
+ * response is handed to a listener with an entity that reads from a buffer
+ * of BUFFER_SIZE bytes, which the I/O thread fills as data comes. When the
+ * buffer is full, the connection stops being read until the reader catches
+ * up, so a large body never needs more than the buffer. Other responses,
+ * such as failures whose body is an error, are buffered whole and are the
+ * result of the exchange as usual.
+ *
+ * @author js
+ */
+class ParseStreamingConsumer extends AbstractAsyncResponseConsumer<HttpResponse>
+{
+	static final int BUFFER_SIZE = 32 * 1024;
+
+	private final Consumer<HttpResponse> mListener;
+
+	private HttpResponse mResponse;
+	private ContentInputBuffer mBuffer;
+	private volatile boolean mStreamed;
+	private volatile boolean mRejected;
+
+	/**
+	 * @param listener
+	 *            Given a streamed response on the I/O thread, as soon as its
+	 *            headers are in. It must hand the response to another thread
+	 *            to be read, or throw a RejectedExecutionException, which
+	 *            fails the exchange.
+	 */
+	ParseStreamingConsumer(Consumer<HttpResponse> listener)
+	{
+		mListener = listener;
+	}
+
+	/**
+	 * @return Whether the response was handed to the listener, in which case
+	 *         the reader of its body sees how the exchange ends.
+	 */
+	boolean isStreamed()
+	{
+		return mStreamed;
+	}
+
+	/**
+	 * @return Whether the listener could not take the response.
+	 */
+	boolean isRejected()
+	{
+		return mRejected;
+	}
+
+	protected void onResponseReceived(HttpResponse response)
+	{
+		mResponse = response;
+	}
+
+	protected void onEntityEnclosed(HttpEntity entity, ContentType contentType)
+			throws IOException
+	{
+		int status = mResponse.getStatusLine().getStatusCode();
+		boolean stream = status >= 200 && status < 300;
+
+		mBuffer = stream ? new SharedInputBuffer(BUFFER_SIZE) : new SimpleInputBuffer(4096);
+
+		BasicHttpEntity content = new BasicHttpEntity();
+		content.setContent(new ContentInputStream(mBuffer));
+		content.setContentLength(entity.getContentLength());
+		content.setContentType(entity.getContentType());
+		content.setContentEncoding(entity.getContentEncoding());
+		content.setChunked(entity.isChunked());
+		mResponse.setEntity(content);
+
+		if (stream)
+		{
+			try
+			{
+				mListener.accept(mResponse);
+				mStreamed = true;
+			}
+			catch (RejectedExecutionException e)
+			{
+				mRejected = true;
+				throw new IOException("The response could not be handed off.", e);
+			}
+		}
+	}
+
+	protected void onContentReceived(ContentDecoder decoder, IOControl ioctrl)
+			throws IOException
+	{
+		if (mBuffer instanceof SharedInputBuffer)
+		{
+			((SharedInputBuffer) mBuffer).consumeContent(decoder, ioctrl);
+		}
+		else
+		{
+			((SimpleInputBuffer) mBuffer).consumeContent(decoder);
+		}
+	}
+
+	protected HttpResponse buildResult(HttpContext context)
+	{
+		return mResponse;
+	}
+
+	protected void releaseResources()
+	{
+		// a body cut short makes its reader fail rather than wait; a complete
+		// one is left to be read
+		if (mBuffer instanceof SharedInputBuffer && getResult() == null)
+		{
+			((SharedInputBuffer) mBuffer).shutdown();
+		}
+	}
+}
@@ -0,0 +1,107 @@
+package almonds;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the bytes of the requests of one ParseOperation, both as encoded by
+ * the application and as sent over the network, so the effect of compression
+ * can be measured. The counters only grow until reset().
+ *
+ * @author js
+ */
+public class ParseTransferStats
+{
+	private final ParseOperation mOperation;
+
+	private final LongAdder mRequests = new LongAdder();
+	private final LongAdder mRequestBytes = new LongAdder();
+	private final LongAdder mRequestBytesSent = new LongAdder();
+	private final LongAdder mResponseBytes = new LongAdder();
+	private final LongAdder mResponseBytesReceived = new LongAdder();
+
+	ParseTransferStats(ParseOperation operation)
+	{
+		mOperation = operation;
+	}
+
+	public ParseOperation getOperation()
+	{
+		return mOperation;
+	}
+
+	/**
+	 * @return The number of requests made.
+	 */
+	public long getRequests()
+	{
+		return mRequests.sum();
+	}
+
+	/**
+	 * @return The bytes of request bodies before compression.
+	 */
+	public long getRequestBytes()
+	{
+		return mRequestBytes.sum();
+	}
+
+	/**
+	 * @return The bytes of request bodies sent, after compression.
+	 */
+	public long getRequestBytesSent()
+	{
+		return mRequestBytesSent.sum();
+	}
+
+	/**
+	 * @return The bytes of response bodies read, after decompression.
+	 */
+	public long getResponseBytes()
+	{
+		return mResponseBytes.sum();
+	}
+
+	/**
+	 * @return The bytes of response bodies received, before decompression.
+	 */
+	public long getResponseBytesReceived()
+	{
+		return mResponseBytesReceived.sum();
+	}
+
+	/**
+	 * Sets every counter back to zero.
+	 */
+	public void reset()
+	{
+		mRequests.reset();
+		mRequestBytes.reset();
+		mRequestBytesSent.reset();
+		mResponseBytes.reset();
+		mResponseBytesReceived.reset();
+	}
+
+	public String toString()
+	{
+		return mOperation + ": " + getRequests() + " requests, sent " + getRequestBytesSent()
+				+ " of " + getRequestBytes() + " bytes, received " + getResponseBytesReceived()
+				+ " of " + getResponseBytes() + " bytes";
+	}
+
+	void addRequest(long bytes, long bytesSent)
+	{
+		mRequests.increment();
+		mRequestBytes.add(bytes);
+		mRequestBytesSent.add(bytesSent);
+	}
+
+	LongAdder getResponseBytesCounter()
+	{
+		return mResponseBytes;
+	}
+
+	LongAdder getResponseBytesReceivedCounter()
+	{
+		return mResponseBytesReceived;
+	}
+}
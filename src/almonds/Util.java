@@ -1,33 +1,355 @@
 package almonds;
 
+import java.io.Closeable;
+import java.io.IOException;
 import java.util.Properties;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.http.HttpHost;
 import org.apache.http.client.HttpClient;
-import org.apache.http.conn.params.ConnRoutePNames;
-import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClientBuilder;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.reactor.IOReactorException;
 
 public class Util
 {
 	private static Properties properties = new Properties();
-	
+
 	private static final String PROXY_HOST = "http.proxyHost";
-	
+
 	private static final String PROXY_PORT = "http.proxyPort";
-	
+
+	private static final int DEFAULT_MAX_CONNECTIONS_TOTAL = 50;
+	private static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 20;
+	private static final long DEFAULT_IDLE_CONNECTION_TIMEOUT = 30000;
+	private static final int DEFAULT_VALIDATE_AFTER_INACTIVITY = 2000;
+	private static final int DEFAULT_IO_THREAD_COUNT = Math.min(4, Runtime.getRuntime()
+			.availableProcessors());
+
+	private static int mMaxConnectionsTotal = DEFAULT_MAX_CONNECTIONS_TOTAL;
+	private static int mMaxConnectionsPerRoute = DEFAULT_MAX_CONNECTIONS_PER_ROUTE;
+	private static long mIdleConnectionTimeout = DEFAULT_IDLE_CONNECTION_TIMEOUT;
+	private static int mValidateAfterInactivity = DEFAULT_VALIDATE_AFTER_INACTIVITY;
+	private static int mIoThreadCount = DEFAULT_IO_THREAD_COUNT;
+
+	private static volatile CloseableHttpClient mHttpClient;
+	private static PoolingHttpClientConnectionManager mConnectionManager;
+	private static volatile CloseableHttpAsyncClient mAsyncHttpClient;
+
+	// closes the idle and expired connections of the non-blocking client,
+	// which has no evictor of its own
+	private static ScheduledFuture<?> mAsyncEvictor;
+
 	public static void setHttpProxy(String host, String port){
-		properties.setProperty(PROXY_HOST, host);
-		properties.setProperty(PROXY_PORT, port);
+		synchronized (Util.class)
+		{
+			properties.setProperty(PROXY_HOST, host);
+			properties.setProperty(PROXY_PORT, port);
+			resetHttpClient();
+		}
 	}
 
-	public static HttpClient newHttpClient()
+	/**
+	 * Sets the limits of the connection pool shared by all requests to Parse.
+	 * Changing the limits replaces the shared client, so this should be called
+	 * before the first request is made.
+	 *
+	 * @param maxTotal
+	 *            The maximum number of pooled connections overall.
+	 * @param maxPerRoute
+	 *            The maximum number of pooled connections to a single host.
+	 */
+	public static void setMaxConnections(int maxTotal, int maxPerRoute)
+	{
+		if (maxTotal <= 0 || maxPerRoute <= 0)
+		{
+			throw new IllegalArgumentException("Connection limits must be positive.");
+		}
+
+		synchronized (Util.class)
+		{
+			mMaxConnectionsTotal = maxTotal;
+			mMaxConnectionsPerRoute = maxPerRoute;
+			resetHttpClient();
+		}
+	}
+
+	/**
+	 * Sets how long a pooled connection may stay idle before it is evicted
+	 * from the pool, on both clients. Defaults to 30 seconds.
+	 *
+	 * @param millis
+	 *            The idle time in milliseconds.
+	 */
+	public static void setIdleConnectionTimeout(long millis)
+	{
+		if (millis <= 0)
+		{
+			throw new IllegalArgumentException("Idle timeout must be positive.");
+		}
+
+		synchronized (Util.class)
+		{
+			mIdleConnectionTimeout = millis;
+			resetHttpClient();
+		}
+	}
+
+	/**
+	 * Sets the period of inactivity after which a pooled connection is checked
+	 * for staleness before it is leased again. Defaults to 2 seconds. A
+	 * non-positive value disables the check. The non-blocking client cannot
+	 * check a connection as it is leased; instead its pool is swept at this
+	 * period, if shorter than the idle timeout, for connections whose
+	 * keep-alive has expired or that have been idle too long.
+	 *
+	 * @param millis
+	 *            The inactivity period in milliseconds.
+	 */
+	public static void setValidateAfterInactivity(int millis)
 	{
-		HttpClient httpclient = new DefaultHttpClient();
-		if(null != properties.getProperty(PROXY_HOST) && "".equals(properties.getProperty(PROXY_HOST).trim())){
-			HttpHost proxy = new HttpHost(properties.getProperty(PROXY_HOST),Integer.parseInt(properties.getProperty(PROXY_PORT)));
-			httpclient.getParams().setParameter(ConnRoutePNames.DEFAULT_PROXY,proxy);
+		synchronized (Util.class)
+		{
+			mValidateAfterInactivity = millis;
+			resetHttpClient();
 		}
-		
+	}
+
+	/**
+	 * Sets the number of I/O threads of the non-blocking client that serves
+	 * the *Async operations. Each thread multiplexes many connections, so a
+	 * handful is enough for thousands of requests in flight. Defaults to the
+	 * number of processors, up to 4.
+	 *
+	 * @param count
+	 *            The number of I/O threads.
+	 */
+	public static void setIoThreadCount(int count)
+	{
+		if (count <= 0)
+		{
+			throw new IllegalArgumentException("I/O thread count must be positive.");
+		}
+
+		synchronized (Util.class)
+		{
+			mIoThreadCount = count;
+			resetHttpClient();
+		}
+	}
+
+	/**
+	 * Accessor to the process-wide client used for all requests to Parse. The
+	 * client keeps a pool of keep-alive connections, so callers must release
+	 * every response they receive (see ParseResponse.release()) for its
+	 * connection to be reused.
+	 *
+	 * @return The shared HttpClient.
+	 */
+	public static CloseableHttpClient getHttpClient()
+	{
+		CloseableHttpClient httpclient = mHttpClient;
+
+		if (httpclient == null)
+		{
+			synchronized (Util.class)
+			{
+				httpclient = mHttpClient;
+
+				if (httpclient == null)
+				{
+					httpclient = buildHttpClient();
+					mHttpClient = httpclient;
+				}
+			}
+		}
+
 		return httpclient;
 	}
+
+	/**
+	 * Accessor to the process-wide non-blocking client used by the *Async
+	 * operations. It shares the connection limits and proxy of the blocking
+	 * client, and is started on first use.
+	 *
+	 * @return The shared, started HttpAsyncClient.
+	 */
+	public static CloseableHttpAsyncClient getAsyncHttpClient()
+	{
+		CloseableHttpAsyncClient httpclient = mAsyncHttpClient;
+
+		if (httpclient == null)
+		{
+			synchronized (Util.class)
+			{
+				httpclient = mAsyncHttpClient;
+
+				if (httpclient == null)
+				{
+					httpclient = buildAsyncHttpClient();
+					httpclient.start();
+					mAsyncHttpClient = httpclient;
+				}
+			}
+		}
+
+		return httpclient;
+	}
+
+	/**
+	 * @deprecated Requests share a single pooled client; use getHttpClient().
+	 *
+	 * @return The shared HttpClient.
+	 */
+	@Deprecated
+	public static HttpClient newHttpClient()
+	{
+		return getHttpClient();
+	}
+
+	/**
+	 * Closes the shared clients and all of their pooled connections. New
+	 * clients are built on the next request.
+	 */
+	public static void shutdown()
+	{
+		synchronized (Util.class)
+		{
+			resetHttpClient();
+		}
+	}
+
+	/**
+	 * Accessor to the connection manager of the shared client, or null if no
+	 * request has been made yet.
+	 */
+	static PoolingHttpClientConnectionManager getConnectionManager()
+	{
+		return mConnectionManager;
+	}
+
+	private static CloseableHttpClient buildHttpClient()
+	{
+		PoolingHttpClientConnectionManager cm = new PoolingHttpClientConnectionManager();
+		cm.setMaxTotal(mMaxConnectionsTotal);
+		cm.setDefaultMaxPerRoute(mMaxConnectionsPerRoute);
+		cm.setValidateAfterInactivity(mValidateAfterInactivity);
+
+		HttpClientBuilder builder = HttpClients.custom()
+				.setConnectionManager(cm)
+				// ParseCommand compresses and decompresses bodies itself, on
+				// both clients
+				.disableContentCompression()
+				.evictExpiredConnections()
+				.evictIdleConnections(mIdleConnectionTimeout, TimeUnit.MILLISECONDS);
+
+		HttpHost proxy = getProxy();
+
+		if (proxy != null)
+		{
+			builder.setProxy(proxy);
+		}
+
+		mConnectionManager = cm;
+
+		return builder.build();
+	}
+
+	private static CloseableHttpAsyncClient buildAsyncHttpClient()
+	{
+		IOReactorConfig config = IOReactorConfig.custom()
+				.setIoThreadCount(mIoThreadCount)
+				.build();
+
+		final PoolingNHttpClientConnectionManager cm;
+
+		try
+		{
+			cm = new PoolingNHttpClientConnectionManager(new DefaultConnectingIOReactor(config,
+					ParseExecutors.newIoThreadFactory()));
+		}
+		catch (IOReactorException e)
+		{
+			throw new IllegalStateException("Could not start the I/O reactor.", e);
+		}
+
+		cm.setMaxTotal(mMaxConnectionsTotal);
+		cm.setDefaultMaxPerRoute(mMaxConnectionsPerRoute);
+
+		HttpAsyncClientBuilder builder = HttpAsyncClients.custom()
+				.setConnectionManager(cm)
+				.setThreadFactory(ParseExecutors.newIoThreadFactory());
+
+		HttpHost proxy = getProxy();
+
+		if (proxy != null)
+		{
+			builder.setProxy(proxy);
+		}
+
+		final long idleTimeout = mIdleConnectionTimeout;
+		long period = mValidateAfterInactivity > 0 ? Math.min(mValidateAfterInactivity,
+				idleTimeout) : idleTimeout;
+
+		mAsyncEvictor = ParseExecutors.getScheduler().scheduleWithFixedDelay(() -> {
+			cm.closeExpiredConnections();
+			cm.closeIdleConnections(idleTimeout, TimeUnit.MILLISECONDS);
+		}, period, period, TimeUnit.MILLISECONDS);
+
+		return builder.build();
+	}
+
+	static HttpHost getProxy()
+	{
+		String host = properties.getProperty(PROXY_HOST);
+
+		if (null != host && !"".equals(host.trim()))
+		{
+			return new HttpHost(host, Integer.parseInt(properties.getProperty(PROXY_PORT)));
+		}
+
+		return null;
+	}
+
+	private static void resetHttpClient()
+	{
+		Closeable httpclient = mHttpClient;
+		Closeable asyncHttpClient = mAsyncHttpClient;
+		mHttpClient = null;
+		mAsyncHttpClient = null;
+		mConnectionManager = null;
+
+		if (mAsyncEvictor != null)
+		{
+			mAsyncEvictor.cancel(false);
+			mAsyncEvictor = null;
+		}
+
+		closeQuietly(httpclient);
+		closeQuietly(asyncHttpClient);
+	}
+
+	private static void closeQuietly(Closeable httpclient)
+	{
+		if (httpclient != null)
+		{
+			try
+			{
+				httpclient.close();
+			}
+			catch (IOException e)
+			{
+				// the pool is being discarded anyway
+			}
+		}
+	}
 }
@@ -0,0 +1,194 @@
+package almonds;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Recovery of ParseEventuallyLog after a crash and out-of-order consumption.
+ *
+ * @author js
+ */
+public class ParseEventuallyLogTest
+{
+	@Rule
+	public TemporaryFolder mFolder = new TemporaryFolder();
+
+	private File mDirectory;
+	private ParseEventuallyLog mLog;
+
+	@Before
+	public void open() throws IOException
+	{
+		mDirectory = mFolder.newFolder("eventually");
+		mLog = new ParseEventuallyLog(mDirectory);
+	}
+
+	@After
+	public void close() throws IOException
+	{
+		mLog.close();
+	}
+
+	@Test
+	public void recordsSurviveReopening() throws Exception
+	{
+		append(0, 1, 2);
+		reopen();
+
+		assertEquals(3, mLog.size());
+		assertEquals(Arrays.asList(0, 1, 2), numbers(mLog.peek(10)));
+	}
+
+	@Test
+	public void tornTailIsDroppedAndOverwritten() throws Exception
+	{
+		append(0, 1, 2);
+
+		// a crash in the middle of the last append leaves its bytes damaged
+		List<ParseEventuallyLog.Record> records = mLog.peek(10);
+		corrupt(records.get(2).mEnd - 2);
+		reopen();
+
+		assertEquals(2, mLog.size());
+		assertEquals(Arrays.asList(0, 1), numbers(mLog.peek(10)));
+
+		append(3);
+		reopen();
+
+		assertEquals(Arrays.asList(0, 1, 3), numbers(mLog.peek(10)));
+	}
+
+	@Test
+	public void consumingInOrderMovesTheCheckpoint() throws Exception
+	{
+		append(0, 1, 2);
+
+		List<ParseEventuallyLog.Record> records = mLog.peek(2);
+		mLog.consume(records, Collections.<String, String> emptyMap());
+		reopen();
+
+		assertEquals(1, mLog.size());
+		assertEquals(Arrays.asList(2), numbers(mLog.peek(10)));
+	}
+
+	@Test
+	public void consumingOutOfOrderSurvivesReopening() throws Exception
+	{
+		append(0, 1, 2, 3, 4);
+
+		List<ParseEventuallyLog.Record> records = mLog.peek(10);
+		mLog.consume(Arrays.asList(records.get(0), records.get(2), records.get(3)),
+				Collections.<String, String> emptyMap());
+
+		assertEquals(2, mLog.size());
+		assertEquals(Arrays.asList(1, 4), numbers(mLog.peek(10)));
+
+		reopen();
+
+		assertEquals(2, mLog.size());
+		records = mLog.peek(10);
+		assertEquals(Arrays.asList(1, 4), numbers(records));
+
+		mLog.consume(records.subList(0, 1), Collections.<String, String> emptyMap());
+		reopen();
+
+		assertEquals(1, mLog.size());
+		assertEquals(Arrays.asList(4), numbers(mLog.peek(10)));
+	}
+
+	@Test
+	public void peekSkipsConsumedRecordsWithinItsLimit() throws Exception
+	{
+		append(0, 1, 2, 3);
+
+		List<ParseEventuallyLog.Record> records = mLog.peek(10);
+		mLog.consume(Arrays.asList(records.get(1), records.get(2)),
+				Collections.<String, String> emptyMap());
+
+		assertEquals(Arrays.asList(0, 3), numbers(mLog.peek(2)));
+	}
+
+	@Test
+	public void objectIdsAreKeptUntilTheLogIsEmpty() throws Exception
+	{
+		append(0, 1);
+
+		Map<String, String> objectIds = new HashMap<String, String>();
+		objectIds.put("local", "remote");
+
+		List<ParseEventuallyLog.Record> records = mLog.peek(10);
+		mLog.consume(records.subList(0, 1), objectIds);
+		reopen();
+
+		assertEquals("remote", mLog.getObjectId("local"));
+
+		mLog.consume(mLog.peek(10), Collections.<String, String> emptyMap());
+
+		assertEquals(null, mLog.getObjectId("local"));
+		assertEquals(0, mLog.size());
+	}
+
+	private void append(int... numbers) throws IOException, JSONException
+	{
+		for (int number : numbers)
+		{
+			mLog.append(new JSONObject().put("n", number));
+		}
+	}
+
+	private void reopen() throws IOException
+	{
+		mLog.close();
+		mLog = new ParseEventuallyLog(mDirectory);
+	}
+
+	private void corrupt(int offset) throws IOException
+	{
+		File[] segments = mDirectory.listFiles((dir, name) -> name.endsWith(".log"));
+		assertTrue(segments != null && segments.length == 1);
+
+		RandomAccessFile file = new RandomAccessFile(segments[0], "rw");
+
+		try
+		{
+			file.seek(offset);
+			int b = file.read();
+			file.seek(offset);
+			file.write(b ^ 0xff);
+		}
+		finally
+		{
+			file.close();
+		}
+	}
+
+	private static List<Integer> numbers(List<ParseEventuallyLog.Record> records)
+	{
+		List<Integer> numbers = new ArrayList<Integer>();
+
+		for (ParseEventuallyLog.Record record : records)
+		{
+			numbers.add(record.mJson.optInt("n"));
+		}
+
+		return numbers;
+	}
+}
@@ -0,0 +1,199 @@
+package almonds;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+/**
+ * The values held by ParseFields, in particular those packed into its long[],
+ * and the sharing of ParseShapes up to and past MAX_SHAPES_PER_CLASS.
+ *
+ * @author js
+ */
+public class ParseFieldsTest
+{
+	// shapes are kept per class for the life of the process, so each test
+	// uses classes of its own
+	private static final AtomicInteger mClassCount = new AtomicInteger();
+
+	private static final Object[] VALUES = {0, 1, -1, Integer.MAX_VALUE, Integer.MIN_VALUE, 0L,
+			-1L, Long.MAX_VALUE, Long.MIN_VALUE, 0.0, -0.0, 1.5, -2.25, Double.NaN,
+			Double.POSITIVE_INFINITY, Double.MIN_VALUE, "text", "", true, false};
+
+	@Test
+	public void valuesRoundTripThroughWith()
+	{
+		Object[] fields = ParseFields.empty(ParseShape.getRoot(newClassName()));
+
+		for (int i = 0; i < VALUES.length; i++)
+		{
+			fields = ParseFields.with(fields, "k" + i, VALUES[i]);
+		}
+
+		for (int i = 0; i < VALUES.length; i++)
+		{
+			assertValue(VALUES[i], ParseFields.get(fields, "k" + i));
+		}
+
+		assertNull(ParseFields.get(fields, "missing"));
+	}
+
+	@Test
+	public void valuesRoundTripThroughOf()
+	{
+		ParseShape shape = ParseShape.getRoot(newClassName());
+		String[] keys = new String[VALUES.length];
+
+		for (int i = 0; i < keys.length; i++)
+		{
+			keys[i] = "k" + i;
+		}
+
+		Object[] fields = ParseFields.of(shape.with(keys, keys.length), VALUES);
+
+		for (int i = 0; i < VALUES.length; i++)
+		{
+			assertValue(VALUES[i], ParseFields.get(fields, "k" + i));
+		}
+	}
+
+	@Test
+	public void replacingAValueKeepsTheOthers()
+	{
+		Object[] fields = ParseFields.empty(ParseShape.getRoot(newClassName()));
+		fields = ParseFields.with(fields, "a", 1);
+		fields = ParseFields.with(fields, "b", 2L);
+
+		Object[] replaced = ParseFields.with(fields, "a", "one");
+
+		assertEquals("one", ParseFields.get(replaced, "a"));
+		assertValue(2L, ParseFields.get(replaced, "b"));
+
+		replaced = ParseFields.with(replaced, "a", 3.5);
+
+		assertValue(3.5, ParseFields.get(replaced, "a"));
+		assertValue(2L, ParseFields.get(replaced, "b"));
+
+		// the fields replaced are left as they were
+		assertValue(1, ParseFields.get(fields, "a"));
+		assertSame(ParseFields.getShape(fields), ParseFields.getShape(replaced));
+	}
+
+	@Test
+	public void valuesRoundTripThroughParseObject() throws Exception
+	{
+		String className = newClassName();
+		ParseObject object = new ParseObject(className);
+
+		object.put("int", 7);
+		object.put("long", -8L);
+		object.put("double", -0.0);
+		object.put("string", "s");
+		object.put("long", 9L);
+
+		assertEquals(Long.valueOf(9), object.getLong("long"));
+		assertNull(object.getLong("int"));
+		assertEquals("s", object.getString("string"));
+
+		JSONObject json = object.toJSONObject();
+
+		assertValue(7, json.get("int"));
+		assertValue(9L, json.get("long"));
+		assertValue(-0.0, json.get("double"));
+
+		ParseObject decoded = new ParseObject(className, json);
+
+		assertEquals(Long.valueOf(9), decoded.getLong("long"));
+		assertValue(7, decoded.toJSONObject().get("int"));
+		assertValue(-0.0, decoded.toJSONObject().get("double"));
+	}
+
+	@Test
+	public void sameKeysShareAShape()
+	{
+		ParseShape root = ParseShape.getRoot(newClassName());
+
+		Object[] first = ParseFields.with(ParseFields.empty(root), "a", 1);
+		first = ParseFields.with(first, "b", "x");
+		Object[] second = ParseFields.with(ParseFields.empty(root), "a", 2L);
+		second = ParseFields.with(second, "b", 3);
+
+		assertSame(ParseFields.getShape(first), ParseFields.getShape(second));
+		assertSame(ParseFields.getShape(first), root.with(new String[] {"a", "b"}, 2));
+		assertNotSame(ParseFields.getShape(first), root.with(new String[] {"b", "a"}, 2));
+	}
+
+	@Test
+	public void shapesPastTheLimitAreNotShared() throws Exception
+	{
+		String className = newClassName();
+		ParseShape root = ParseShape.getRoot(className);
+
+		// each key leads off the tree, adding a shape to the class
+		for (int i = 0; i < ParseShape.MAX_SHAPES_PER_CLASS; i++)
+		{
+			root.with("k" + i);
+		}
+
+		// the shapes made before the limit are still found
+		assertSame(root.with("k0"), root.with("k0"));
+		assertNotSame(root.with("new"), root.with("new"));
+
+		// an unshared shape still takes keys and values
+		Object[] fields = ParseFields.with(ParseFields.empty(root), "new", 1);
+		fields = ParseFields.with(fields, "n", 2L);
+		fields = ParseFields.with(fields, "d", 2.5);
+		fields = ParseFields.with(fields, "new", "one");
+
+		assertEquals("one", ParseFields.get(fields, "new"));
+		assertValue(2L, ParseFields.get(fields, "n"));
+		assertValue(2.5, ParseFields.get(fields, "d"));
+
+		// decoding builds an unshared shape in one step
+		JSONObject json = new JSONObject();
+
+		for (int i = 0; i < 10; i++)
+		{
+			json.put("decoded" + i, i % 2 == 0 ? (Object) Long.valueOf(i) : (Object) ("v" + i));
+		}
+
+		ParseObject object = new ParseObject(className, json);
+		object.put("decoded0", -1L);
+		object.put("extra", Double.valueOf(0.5));
+
+		assertEquals(Long.valueOf(-1), object.getLong("decoded0"));
+		assertEquals(Long.valueOf(8), object.getLong("decoded8"));
+		assertEquals("v9", object.getString("decoded9"));
+		assertValue(0.5, object.toJSONObject().get("extra"));
+	}
+
+	private static String newClassName()
+	{
+		return "ParseFieldsTest" + mClassCount.incrementAndGet();
+	}
+
+	/**
+	 * Asserts that a value comes back with its type and, for a Double, with
+	 * its bits, so that -0.0 and NaN are told apart from 0.0.
+	 */
+	private static void assertValue(Object expected, Object actual)
+	{
+		assertEquals(expected.getClass(), actual.getClass());
+
+		if (expected instanceof Double)
+		{
+			assertEquals(Double.doubleToRawLongBits((Double) expected),
+					Double.doubleToRawLongBits((Double) actual));
+		}
+		else
+		{
+			assertEquals(expected, actual);
+		}
+	}
+}
@@ -0,0 +1,257 @@
+package almonds;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Recovery of ParseLocalDatastore from a damaged data or index file and
+ * compaction of its data file.
+ *
+ * @author js
+ */
+public class ParseLocalDatastoreTest
+{
+	private static final String CLASS_NAME = "Item";
+
+	@Rule
+	public TemporaryFolder mFolder = new TemporaryFolder();
+
+	private File mDirectory;
+	private File mOtherDirectory;
+
+	@Before
+	public void open() throws IOException
+	{
+		mDirectory = mFolder.newFolder("datastore");
+		mOtherDirectory = mFolder.newFolder("other");
+		Parse.setLocalDatastoreDirectory(mDirectory);
+	}
+
+	@After
+	public void close() throws Exception
+	{
+		// opening another store closes the one in use
+		Parse.setLocalDatastoreDirectory(mFolder.newFolder("closed"));
+		ParseLocalDatastore.getInstance();
+		Parse.setLocalDatastoreDirectory(null);
+	}
+
+	@Test
+	public void objectsSurviveReopening() throws Exception
+	{
+		pin("a", "1");
+		pin("b", "2");
+		pin("a", "3");
+		unpin("b");
+		reopen();
+
+		assertEquals("3", get("a"));
+		assertNull(get("b"));
+	}
+
+	@Test
+	public void garbageAfterTheLastRecordIsTruncated() throws Exception
+	{
+		pin("a", "1");
+		pin("b", "2");
+		closeStore();
+
+		File data = new File(mDirectory, ParseLocalDatastore.DATA_FILE);
+		long length = data.length();
+		RandomAccessFile file = new RandomAccessFile(data, "rw");
+
+		try
+		{
+			// the header of a record whose body was never written
+			file.seek(length);
+			file.writeInt(100);
+			file.writeInt(0x12345678);
+			file.write(new byte[] { 1, 2, 3 });
+		}
+		finally
+		{
+			file.close();
+		}
+
+		reopen();
+
+		assertEquals(length, data.length());
+		assertEquals("1", get("a"));
+		assertEquals("2", get("b"));
+
+		pin("c", "3");
+		reopen();
+
+		assertEquals("3", get("c"));
+	}
+
+	@Test
+	public void tornLastRecordIsDropped() throws Exception
+	{
+		pin("a", "1");
+		pin("a", "2");
+		closeStore();
+
+		File data = new File(mDirectory, ParseLocalDatastore.DATA_FILE);
+		RandomAccessFile file = new RandomAccessFile(data, "rw");
+
+		try
+		{
+			file.setLength(file.length() - 3);
+		}
+		finally
+		{
+			file.close();
+		}
+
+		reopen();
+
+		// the index file covers more than is left and is ignored
+		assertEquals("1", get("a"));
+	}
+
+	@Test
+	public void corruptIndexFallsBackToTheDataFile() throws Exception
+	{
+		pin("a", "1");
+		pin("b", "2");
+		unpin("b");
+		closeStore();
+
+		File index = new File(mDirectory, ParseLocalDatastore.INDEX_FILE);
+		assertTrue(index.exists());
+
+		RandomAccessFile file = new RandomAccessFile(index, "rw");
+
+		try
+		{
+			file.seek(file.length() / 2);
+			int b = file.read();
+			file.seek(file.length() / 2);
+			file.write(b ^ 0xff);
+		}
+		finally
+		{
+			file.close();
+		}
+
+		reopen();
+
+		assertEquals("1", get("a"));
+		assertNull(get("b"));
+	}
+
+	@Test
+	public void recordsAfterTheIndexAreReplayed() throws Exception
+	{
+		String payload = payload(100 * 1024);
+
+		for (int i = 0; i < 12; i++)
+		{
+			pin("big" + i, payload);
+		}
+
+		File index = new File(mDirectory, ParseLocalDatastore.INDEX_FILE);
+		assertTrue(index.exists());
+
+		pin("big0", "small");
+		pin("c", "3");
+		unpin("big1");
+
+		// a copy taken while the store is open is what a crash leaves behind
+		Files.copy(new File(mDirectory, ParseLocalDatastore.DATA_FILE).toPath(),
+				new File(mOtherDirectory, ParseLocalDatastore.DATA_FILE).toPath());
+		Files.copy(index.toPath(),
+				new File(mOtherDirectory, ParseLocalDatastore.INDEX_FILE).toPath());
+
+		Parse.setLocalDatastoreDirectory(mOtherDirectory);
+
+		assertEquals("small", get("big0"));
+		assertNull(get("big1"));
+		assertEquals(payload, get("big11"));
+		assertEquals("3", get("c"));
+	}
+
+	@Test
+	public void compactionDropsReplacedRecords() throws Exception
+	{
+		String payload = payload(100 * 1024);
+
+		for (int i = 0; i < 30; i++)
+		{
+			pin("a", payload + i);
+		}
+
+		pin("b", "2");
+
+		// without compaction the file would hold all 30 copies
+		File data = new File(mDirectory, ParseLocalDatastore.DATA_FILE);
+		long limit = ParseLocalDatastore.MIN_COMPACTION_BYTES + 2 * payload.length();
+		assertTrue(data.length() < limit);
+
+		String[] temps = mDirectory.list((dir, name) -> name.endsWith(".tmp"));
+		assertEquals(0, temps.length);
+
+		reopen();
+
+		assertEquals(payload + 29, get("a"));
+		assertEquals("2", get("b"));
+	}
+
+	private static void pin(String objectId, String value) throws ParseException
+	{
+		ParseObject object = new ParseObject(CLASS_NAME);
+		object.setObjectId(objectId);
+		object.put("value", value);
+		ParseLocalDatastore.getInstance().pin(Arrays.asList(object));
+	}
+
+	private static void unpin(String objectId) throws ParseException
+	{
+		ParseObject object = new ParseObject(CLASS_NAME);
+		object.setObjectId(objectId);
+		ParseLocalDatastore.getInstance().unpin(Arrays.asList(object));
+	}
+
+	private static String get(String objectId) throws ParseException
+	{
+		JSONObject object = ParseLocalDatastore.getInstance().get(CLASS_NAME, objectId);
+
+		return object == null ? null : object.optString("value");
+	}
+
+	private void closeStore() throws ParseException
+	{
+		Parse.setLocalDatastoreDirectory(mOtherDirectory);
+		ParseLocalDatastore.getInstance();
+	}
+
+	private void reopen() throws ParseException
+	{
+		closeStore();
+		Parse.setLocalDatastoreDirectory(mDirectory);
+		ParseLocalDatastore.getInstance();
+	}
+
+	private static String payload(int length)
+	{
+		char[] chars = new char[length];
+		Arrays.fill(chars, 'x');
+
+		return new String(chars);
+	}
+}
@@ -0,0 +1,144 @@
+package almonds;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import almonds.ParseRateLimiter.Priority;
+
+/**
+ * The lanes, cancellation and rejection of ParseRateLimiter.
+ *
+ * @author js
+ */
+public class ParseRateLimiterTest
+{
+	private static final long TIMEOUT_SECONDS = 5;
+
+	@Test
+	public void burstIsGrantedAtOnce()
+	{
+		ParseRateLimiter limiter = new ParseRateLimiter(1, 3);
+
+		for (int i = 0; i < 3; i++)
+		{
+			assertTrue(limiter.acquire(Priority.BACKGROUND).isDone());
+		}
+
+		CompletableFuture<Void> held = limiter.acquire(Priority.INTERACTIVE);
+
+		assertFalse(held.isDone());
+		assertEquals(1, limiter.getQueueLength());
+		assertEquals(3, limiter.getGrantedCount());
+
+		held.cancel(false);
+	}
+
+	@Test
+	public void interactiveRequestsOvertakeBackgroundOnes() throws Exception
+	{
+		ParseRateLimiter limiter = new ParseRateLimiter(5, 1);
+
+		assertTrue(limiter.acquire(Priority.INTERACTIVE).isDone());
+
+		CompletableFuture<Void> background = limiter.acquire(Priority.BACKGROUND);
+		CompletableFuture<Void> first = limiter.acquire(Priority.INTERACTIVE);
+		CompletableFuture<Void> second = limiter.acquire(Priority.INTERACTIVE);
+
+		assertEquals(1, limiter.getQueueLength(Priority.BACKGROUND));
+		assertEquals(2, limiter.getQueueLength(Priority.INTERACTIVE));
+
+		first.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+		assertFalse(second.isDone());
+		assertFalse(background.isDone());
+
+		second.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+		assertFalse(background.isDone());
+
+		background.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+		assertEquals(4, limiter.getGrantedCount());
+		assertEquals(3, limiter.getQueuedCount());
+		assertEquals(3, limiter.getMaxQueueLength());
+	}
+
+	@Test
+	public void cancelledRequestDoesNotUseAPermit() throws Exception
+	{
+		ParseRateLimiter limiter = new ParseRateLimiter(5, 1);
+
+		assertTrue(limiter.acquire(Priority.INTERACTIVE).isDone());
+
+		CompletableFuture<Void> cancelled = limiter.acquire(Priority.INTERACTIVE);
+		CompletableFuture<Void> next = limiter.acquire(Priority.BACKGROUND);
+
+		cancelled.cancel(false);
+		next.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+		assertEquals(2, limiter.getGrantedCount());
+		assertEquals(0, limiter.getQueueLength());
+
+		// the permit of the cancelled request was left for the next one, so
+		// the bucket is empty again
+		assertFalse(limiter.acquire(Priority.INTERACTIVE).isDone());
+	}
+
+	@Test
+	public void rejectingLimiterFailsAtOnce()
+	{
+		ParseRateLimiter limiter = new ParseRateLimiter(10, 1, false, 0);
+
+		assertTrue(limiter.acquire(Priority.INTERACTIVE).isDone());
+		assertRejected(limiter.acquire(Priority.INTERACTIVE));
+
+		assertEquals(1, limiter.getGrantedCount());
+		assertEquals(1, limiter.getRejectedCount());
+		assertEquals(0, limiter.getQueuedCount());
+	}
+
+	@Test
+	public void fullQueueRejects()
+	{
+		ParseRateLimiter limiter = new ParseRateLimiter(10, 1, true, 1);
+
+		assertTrue(limiter.acquire(Priority.INTERACTIVE).isDone());
+
+		CompletableFuture<Void> held = limiter.acquire(Priority.BACKGROUND);
+
+		assertFalse(held.isDone());
+		assertRejected(limiter.acquire(Priority.INTERACTIVE));
+		assertEquals(1, limiter.getRejectedCount());
+
+		held.cancel(false);
+	}
+
+	private static void assertRejected(CompletableFuture<Void> permit)
+	{
+		assertTrue(permit.isCompletedExceptionally());
+
+		try
+		{
+			permit.get();
+			fail();
+		}
+		catch (ExecutionException e)
+		{
+			assertTrue(e.getCause() instanceof ParseException);
+			assertEquals(ParseException.REQUEST_LIMIT_EXCEEDED,
+					((ParseException) e.getCause()).getCode());
+		}
+		catch (InterruptedException e)
+		{
+			throw new AssertionError(e);
+		}
+	}
+}